@@ -0,0 +1,132 @@
+package org.mayocat.shop.paymentgateways.benchmarks;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, and compares their results to a recorded baseline.
+ *
+ * Exits with a non-zero status when a benchmark throughput drops, or its allocation per operation grows, by more than
+ * the configured threshold, and when a benchmark has no baseline : a benchmark the gate does not know about must have
+ * its baseline recorded before it can pass. System properties :
+ * <ul>
+ * <li>{@code benchmarks.baseline} : the baseline file (default "baseline.properties")</li>
+ * <li>{@code benchmarks.threshold} : the tolerated relative regression (default 0.10)</li>
+ * <li>{@code benchmarks.updateBaseline} : when true, records the results as the new baseline instead of checking
+ * them</li>
+ * </ul>
+ *
+ * @version $Id$
+ */
+public class BenchmarkMain
+{
+    private static final String SCORE = ".score";
+
+    private static final String ALLOCATION = ".allocation";
+
+    private static final String ALLOCATION_RESULT = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws Exception {
+        String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+        File baselineFile = new File(System.getProperty("benchmarks.baseline", "baseline.properties"));
+        double threshold = Double.parseDouble(System.getProperty("benchmarks.threshold", "0.10"));
+        boolean updateBaseline = Boolean.getBoolean("benchmarks.updateBaseline");
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        Properties baseline = load(baselineFile);
+        Properties current = new Properties();
+        List<String> regressions = Lists.newArrayList();
+
+        for (RunResult result : results) {
+            BenchmarkParams params = result.getParams();
+            String name = params.getBenchmark();
+            double score = result.getPrimaryResult().getScore();
+            current.setProperty(name + SCORE, String.valueOf(score));
+
+            Double allocation = getAllocation(result);
+            if (allocation != null) {
+                current.setProperty(name + ALLOCATION, String.valueOf(allocation));
+            }
+
+            String baselineScore = baseline.getProperty(name + SCORE);
+            if (baselineScore == null) {
+                regressions.add(String.format("%s : no baseline throughput recorded", name));
+            } else if (score < Double.parseDouble(baselineScore) * (1 - threshold)) {
+                regressions.add(String.format("%s : throughput %.3f ops/ms, baseline %s ops/ms", name, score,
+                        baselineScore));
+            }
+            String baselineAllocation = baseline.getProperty(name + ALLOCATION);
+            if (allocation != null && baselineAllocation == null) {
+                regressions.add(String.format("%s : no baseline allocation recorded", name));
+            } else if (allocation != null && allocation > Double.parseDouble(baselineAllocation) * (1 + threshold)) {
+                regressions.add(String.format("%s : %.1f bytes allocated per operation, baseline %s", name,
+                        allocation, baselineAllocation));
+            }
+        }
+
+        if (updateBaseline) {
+            store(current, baselineFile);
+            System.out.println("Baseline recorded to " + baselineFile);
+            return;
+        }
+
+        if (!regressions.isEmpty()) {
+            System.err.println("Benchmark regressions beyond " + (threshold * 100) + "% :");
+            for (String regression : regressions) {
+                System.err.println("  " + regression);
+            }
+            System.err.println("Record missing baselines with -Dbenchmarks.updateBaseline=true");
+            System.exit(1);
+        }
+        System.out.println("No benchmark regression beyond " + (threshold * 100) + "%");
+    }
+
+    private static Double getAllocation(RunResult result) {
+        for (Map.Entry<String, Result> secondary : result.getSecondaryResults().entrySet()) {
+            if (secondary.getKey().endsWith(ALLOCATION_RESULT)) {
+                return secondary.getValue().getScore();
+            }
+        }
+        return null;
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), Charsets.UTF_8)) {
+                properties.load(reader);
+            }
+        }
+        return properties;
+    }
+
+    private static void store(Properties properties, File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8)) {
+            properties.store(writer, "Benchmark baseline, see BenchmarkMain");
+        }
+    }
+}
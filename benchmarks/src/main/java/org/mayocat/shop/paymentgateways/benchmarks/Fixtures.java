@@ -0,0 +1,176 @@
+package org.mayocat.shop.paymentgateways.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.fasterxml.jackson.datatype.guava.GuavaModule;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import javax.inject.Inject;
+import org.apache.commons.codec.binary.Base64;
+import org.mayocat.shop.billing.model.Order;
+import org.mayocat.shop.customer.model.Customer;
+import org.mayocat.shop.payment.BasePaymentData;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentData;
+import org.mayocat.shop.paymentgateways.common.IdempotencyStore;
+
+/**
+ * Objects shared by the benchmarks : configurations, purchase options, signed IPNs...
+ *
+ * @version $Id$
+ */
+public final class Fixtures
+{
+    public static final String PAYBOX_CONFIGURATION = "site: '1999888'\n"
+            + "rang: '32'\n"
+            + "id: '107904482'\n"
+            + "secret: '0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF"
+            + "0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF'\n";
+
+    public static final String STRIPE_CONFIGURATION = "apiKey: sk_test_benchmarks\n";
+
+    public static final String MONETAWEB_CONFIGURATION = "id: '99999999'\n"
+            + "password: '99999999'\n";
+
+    /**
+     * Does not remember anything, so that acknowledgement benchmarks measure the whole path every time.
+     */
+    public static final IdempotencyStore NO_IDEMPOTENCY = new IdempotencyStore()
+    {
+        @Override
+        public GatewayResponse get(String key) {
+            return null;
+        }
+
+        @Override
+        public void put(String key, GatewayResponse response) {
+        }
+    };
+
+    private static final ObjectMapper MAPPER = createMapper();
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return a YAML mapper configured like the platform one
+     */
+    public static ObjectMapper createMapper() {
+        ObjectMapper mapper = new ObjectMapper(new YAMLFactory());
+        mapper.registerModule(new GuavaModule());
+        return mapper;
+    }
+
+    public static <T> T configuration(String yaml, Class<T> type) throws IOException {
+        return MAPPER.readValue(yaml, type);
+    }
+
+    public static File writeTemporaryFile(File directory, String name, String content) throws IOException {
+        File file = new File(directory, name);
+        Files.createParentDirs(file);
+        Files.write(content, file, Charsets.UTF_8);
+        file.deleteOnExit();
+        return file;
+    }
+
+    public static Map<PaymentData, Object> purchaseOptions() {
+        UUID orderId = UUID.randomUUID();
+
+        Customer customer = new Customer();
+        customer.setId(UUID.randomUUID());
+        customer.setEmail("buyer@example.com");
+
+        Order order = new Order();
+        order.setId(orderId);
+        order.setCustomer(customer);
+
+        Map<PaymentData, Object> options = new LinkedHashMap<>();
+        options.put(BasePaymentData.CURRENCY, Currency.getInstance("EUR"));
+        options.put(BasePaymentData.ORDER, order);
+        options.put(BasePaymentData.ORDER_ID, orderId);
+        options.put(BasePaymentData.CUSTOMER, customer);
+        options.put(BasePaymentData.BASE_URL, "http://shop.example.com");
+        options.put(BasePaymentData.IPN_URL, "http://shop.example.com/api/payment/" + orderId + "/ack/paybox");
+        options.put(BasePaymentData.RETURN_URL, "http://shop.example.com/checkout/return/" + orderId);
+        options.put(BasePaymentData.CANCEL_URL, "http://shop.example.com/checkout/cancel/" + orderId);
+        return options;
+    }
+
+    public static KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        return generator.generateKeyPair();
+    }
+
+    public static String toPem(KeyPair keyPair) {
+        return "-----BEGIN PUBLIC KEY-----\n"
+                + Base64.encodeBase64String(keyPair.getPublic().getEncoded())
+                + "\n-----END PUBLIC KEY-----\n";
+    }
+
+    /**
+     * @return the raw query string of a Paybox IPN, signed with the given key
+     */
+    public static String payboxIpn(KeyPair keyPair, String transactionId) throws Exception {
+        String message = "status=00000&authorization=XXXXXX&transactionId=" + transactionId + "&requestId=1234";
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(message.getBytes(Charsets.UTF_8));
+        return message + "&signature="
+                + URLEncoder.encode(Base64.encodeBase64String(signature.sign()), "UTF-8");
+    }
+
+    /**
+     * @return the given IPN query string, parsed the way the container does
+     */
+    public static Map<String, List<String>> parseQuery(String query) throws IOException {
+        Map<String, List<String>> parameters = new LinkedHashMap<>();
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            List<String> values = new ArrayList<>(Collections.singletonList(
+                    URLDecoder.decode(pair.substring(separator + 1), "UTF-8")));
+            parameters.put(pair.substring(0, separator), values);
+        }
+        return parameters;
+    }
+
+    /**
+     * Injects the {@link Inject} fields of a component, matching them by type.
+     *
+     * @param component the component to inject
+     * @param dependencies the objects to inject
+     */
+    public static <T> T inject(T component, Object... dependencies) throws IllegalAccessException {
+        for (Class<?> type = component.getClass(); type != Object.class; type = type.getSuperclass()) {
+            for (Field field : type.getDeclaredFields()) {
+                if (!field.isAnnotationPresent(Inject.class)) {
+                    continue;
+                }
+                for (Object dependency : dependencies) {
+                    if (field.getType().isInstance(dependency)) {
+                        field.setAccessible(true);
+                        field.set(component, dependency);
+                        break;
+                    }
+                }
+            }
+        }
+        return component;
+    }
+}
@@ -0,0 +1,135 @@
+package org.mayocat.shop.paymentgateways.benchmarks;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+import com.yammer.dropwizard.json.ObjectMapperFactory;
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.mayocat.accounts.model.Tenant;
+import org.mayocat.configuration.MultitenancySettings;
+import org.mayocat.configuration.SiteSettings;
+import org.mayocat.configuration.general.FilesSettings;
+import org.mayocat.context.WebContext;
+import org.mayocat.shop.payment.PaymentGateway;
+import org.mayocat.shop.paymentgateways.common.DefaultBulkheads;
+import org.mayocat.shop.paymentgateways.common.DefaultGatewayMetricsRegistry;
+import org.mayocat.shop.paymentgateways.common.DefaultNotificationPipelines;
+import org.mayocat.shop.paymentgateways.common.DefaultTenantConfigurationCache;
+import org.mayocat.shop.paymentgateways.common.InMemoryIdempotencyStore;
+import org.mayocat.shop.paymentgateways.monetaweb.MonetaWebGatewayFactory;
+import org.mayocat.shop.paymentgateways.paybox.PayboxGatewayFactory;
+import org.mayocat.shop.paymentgateways.stripe.StripeGatewayFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gateway creation by each factory, as the platform does for every payment.
+ *
+ * Factories are injected by hand, the platform components they depend on are mocked and the tenant configuration
+ * files are written to a temporary directory.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GatewayFactoryBenchmark
+{
+    private static final String TENANT = "benchmarks";
+
+    private PayboxGatewayFactory payboxFactory;
+
+    private StripeGatewayFactory stripeFactory;
+
+    private MonetaWebGatewayFactory monetaWebFactory;
+
+    @Setup
+    public void setUp() throws Exception {
+        File root = Files.createTempDir();
+        final File payboxDirectory = new File(root, PayboxGatewayFactory.ID);
+        final File stripeDirectory = new File(root, StripeGatewayFactory.ID);
+        Fixtures.writeTemporaryFile(payboxDirectory, "configuration.yml", Fixtures.PAYBOX_CONFIGURATION);
+        Fixtures.writeTemporaryFile(stripeDirectory, "configuration.yml", Fixtures.STRIPE_CONFIGURATION);
+        Fixtures.writeTemporaryFile(
+                new File(root, "tenants/" + TENANT + "/payments/" + MonetaWebGatewayFactory.ID),
+                "configuration.yml", Fixtures.MONETAWEB_CONFIGURATION);
+
+        ObjectMapper mapper = Fixtures.createMapper();
+        Logger logger = LoggerFactory.getLogger(GatewayFactoryBenchmark.class);
+        InMemoryIdempotencyStore idempotencyStore = new InMemoryIdempotencyStore();
+        DefaultTenantConfigurationCache configurationCache = new DefaultTenantConfigurationCache();
+        MetricRegistry registry = new MetricRegistry();
+        DefaultGatewayMetricsRegistry metricsRegistry = Fixtures.inject(new DefaultGatewayMetricsRegistry(), registry);
+        DefaultNotificationPipelines notificationPipelines =
+                Fixtures.inject(new DefaultNotificationPipelines(), registry);
+        DefaultBulkheads bulkheads = Fixtures.inject(new DefaultBulkheads(), registry);
+        Tenant tenant = mock(Tenant.class);
+        when(tenant.getSlug()).thenReturn(TENANT);
+        WebContext context = mock(WebContext.class);
+        when(context.getTenant()).thenReturn(tenant);
+
+        payboxFactory = Fixtures.inject(new PayboxGatewayFactory()
+        {
+            @Override
+            protected Optional<File> getTenantConfigurationFile(String name) {
+                return existing(new File(payboxDirectory, name));
+            }
+        }, mapper, logger, context, configurationCache, metricsRegistry, idempotencyStore,
+                notificationPipelines);
+
+        stripeFactory = Fixtures.inject(new StripeGatewayFactory()
+        {
+            @Override
+            protected Optional<File> getTenantConfigurationFile(String name) {
+                return existing(new File(stripeDirectory, name));
+            }
+        }, mapper, logger, context, configurationCache, metricsRegistry, bulkheads);
+
+        FilesSettings filesSettings = mock(FilesSettings.class);
+        when(filesSettings.getPermanentDirectory()).thenReturn(root.toPath());
+        SiteSettings siteSettings = mock(SiteSettings.class);
+        when(siteSettings.getDomainName()).thenReturn("shop.example.com");
+
+        monetaWebFactory = Fixtures.inject(new MonetaWebGatewayFactory(), filesSettings, context, siteSettings,
+                mock(MultitenancySettings.class), new ObjectMapperFactory(), logger, idempotencyStore,
+                configurationCache, metricsRegistry, registry, notificationPipelines, bulkheads);
+        monetaWebFactory.initialize();
+    }
+
+    @Benchmark
+    public PaymentGateway createPayboxGateway() {
+        return payboxFactory.createGateway();
+    }
+
+    @Benchmark
+    public PaymentGateway createStripeGateway() {
+        return stripeFactory.createGateway();
+    }
+
+    @Benchmark
+    public PaymentGateway createMonetaWebGateway() {
+        return monetaWebFactory.createGateway();
+    }
+
+    private static Optional<File> existing(File file) {
+        return file.exists() ? Optional.of(file) : Optional.<File>absent();
+    }
+}
@@ -0,0 +1,86 @@
+package org.mayocat.shop.paymentgateways.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.mayocat.shop.payment.GatewayException;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentData;
+import org.mayocat.shop.paymentgateways.monetaweb.MonetaWebGatewayConfiguration;
+import org.mayocat.shop.paymentgateways.monetaweb.MonetaWebPaymentGateway;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * MonetaWeb payment initialization, against a local stub of the MonetaWeb init endpoint, and acknowledgement.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MonetaWebBenchmark
+{
+    private static final BigDecimal AMOUNT = new BigDecimal("42.50");
+
+    private static final String INIT_PATH = "/monetaweb/hosted/init/http";
+
+    private StubServer server;
+
+    private MonetaWebPaymentGateway gateway;
+
+    private Map<PaymentData, Object> options;
+
+    private UUID orderId;
+
+    private Map<String, List<String>> approved;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new StubServer().respond(INIT_PATH, "text/plain",
+                "123456789012345678:" + "https://test.monetaonline.it/monetaweb/hpp").start();
+
+        MonetaWebGatewayConfiguration configuration = Fixtures.configuration(
+                Fixtures.MONETAWEB_CONFIGURATION + "endpoint: '" + server.getBaseUrl() + INIT_PATH + "'\n",
+                MonetaWebGatewayConfiguration.class);
+        gateway = new MonetaWebPaymentGateway(configuration, "http://shop.example.com", Fixtures.NO_IDEMPOTENCY);
+
+        options = Fixtures.purchaseOptions();
+        orderId = UUID.randomUUID();
+        approved = ImmutableMap.<String, List<String>>of(
+                "result", Arrays.asList("APPROVED"),
+                "paymentid", Arrays.asList("123456789012345678"));
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public GatewayResponse purchase() throws GatewayException {
+        return gateway.purchase(AMOUNT, options);
+    }
+
+    @Benchmark
+    public GatewayResponse acknowledge() throws GatewayException {
+        return gateway.acknowledge(orderId, approved);
+    }
+}
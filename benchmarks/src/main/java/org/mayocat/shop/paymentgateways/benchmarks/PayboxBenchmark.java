@@ -0,0 +1,124 @@
+package org.mayocat.shop.paymentgateways.benchmarks;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.io.Files;
+import java.io.File;
+import java.math.BigDecimal;
+import java.security.KeyPair;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.mayocat.shop.payment.GatewayException;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentData;
+import org.mayocat.shop.paymentgateways.common.InMemoryIdempotencyStore;
+import org.mayocat.shop.paymentgateways.paybox.PayboxKeyStore;
+import org.mayocat.shop.paymentgateways.paybox.PayboxPaymentGateway;
+import org.mayocat.shop.paymentgateways.paybox.PayboxTenantConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Paybox form generation and IPN acknowledgement.
+ *
+ * IPNs are signed with a key generated for the benchmark, which the gateway trusts through a key override file.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PayboxBenchmark
+{
+    private static final BigDecimal AMOUNT = new BigDecimal("42.50");
+
+    private PayboxPaymentGateway gateway;
+
+    private PayboxPaymentGateway idempotentGateway;
+
+    private Map<PaymentData, Object> options;
+
+    private UUID orderId;
+
+    private Map<String, List<String>> validIpn;
+
+    private Map<String, List<String>> forgedIpn;
+
+    private byte[] validRawIpn;
+
+    private byte[] forgedRawIpn;
+
+    @Setup
+    public void setUp() throws Exception {
+        KeyPair keyPair = Fixtures.generateKeyPair();
+        File keyFile = Fixtures.writeTemporaryFile(Files.createTempDir(),
+                PayboxKeyStore.KEY_FILENAME, Fixtures.toPem(keyPair));
+        PayboxKeyStore keyStore = new PayboxKeyStore(Optional.of(keyFile));
+
+        PayboxTenantConfiguration configuration =
+                Fixtures.configuration(Fixtures.PAYBOX_CONFIGURATION, PayboxTenantConfiguration.class);
+        gateway = new PayboxPaymentGateway(configuration, keyStore, Fixtures.NO_IDEMPOTENCY);
+        idempotentGateway = new PayboxPaymentGateway(configuration, keyStore, new InMemoryIdempotencyStore());
+
+        options = Fixtures.purchaseOptions();
+        orderId = UUID.randomUUID();
+
+        String ipn = Fixtures.payboxIpn(keyPair, "123456");
+        String forged = ipn.replace("transactionId=123456", "transactionId=654321");
+        validIpn = Fixtures.parseQuery(ipn);
+        forgedIpn = Fixtures.parseQuery(forged);
+        validRawIpn = ipn.getBytes(Charsets.US_ASCII);
+        forgedRawIpn = forged.getBytes(Charsets.US_ASCII);
+    }
+
+    @Benchmark
+    public GatewayResponse purchase() throws GatewayException {
+        return gateway.purchase(AMOUNT, options);
+    }
+
+    @Benchmark
+    public GatewayResponse acknowledgeValid() throws GatewayException {
+        return gateway.acknowledge(orderId, validIpn);
+    }
+
+    @Benchmark
+    public Object acknowledgeInvalid() {
+        try {
+            return gateway.acknowledge(orderId, forgedIpn);
+        } catch (GatewayException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public GatewayResponse acknowledgeRawValid() throws GatewayException {
+        return gateway.acknowledge(orderId, validRawIpn);
+    }
+
+    @Benchmark
+    public Object acknowledgeRawInvalid() {
+        try {
+            return gateway.acknowledge(orderId, forgedRawIpn);
+        } catch (GatewayException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public GatewayResponse acknowledgeDuplicate() throws GatewayException {
+        return idempotentGateway.acknowledge(orderId, validIpn);
+    }
+}
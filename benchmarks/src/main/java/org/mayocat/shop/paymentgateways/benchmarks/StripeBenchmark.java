@@ -0,0 +1,75 @@
+package org.mayocat.shop.paymentgateways.benchmarks;
+
+import com.stripe.Stripe;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.mayocat.shop.payment.CreditCardPaymentData;
+import org.mayocat.shop.payment.GatewayException;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentData;
+import org.mayocat.shop.paymentgateways.stripe.StripePaymentGateway;
+import org.mayocat.shop.paymentgateways.stripe.StripeTenantConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Stripe charges, against a local stub of the Stripe API.
+ *
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StripeBenchmark
+{
+    private static final BigDecimal AMOUNT = new BigDecimal("42.50");
+
+    private static final String CHARGE = "{\"id\": \"ch_benchmark\", \"object\": \"charge\", \"livemode\": false, "
+            + "\"paid\": true, \"status\": \"succeeded\", \"amount\": 4250, \"currency\": \"eur\", "
+            + "\"refunded\": false, \"captured\": true, \"card\": {\"id\": \"card_benchmark\", \"object\": \"card\", "
+            + "\"last4\": \"4242\", \"brand\": \"Visa\", \"exp_month\": 12, \"exp_year\": 2030}, \"metadata\": {}}";
+
+    private StubServer server;
+
+    private StripePaymentGateway gateway;
+
+    private Map<PaymentData, Object> options;
+
+    @Setup
+    public void setUp() throws Exception {
+        server = new StubServer().respond("/v1/charges", "application/json", CHARGE).start();
+        Stripe.overrideApiBase(server.getBaseUrl());
+
+        gateway = new StripePaymentGateway(
+                Fixtures.configuration(Fixtures.STRIPE_CONFIGURATION, StripeTenantConfiguration.class));
+
+        options = Fixtures.purchaseOptions();
+        options.put(CreditCardPaymentData.CARD_NUMBER, "4242424242424242");
+        options.put(CreditCardPaymentData.EXPIRATION_MONTH, 12);
+        options.put(CreditCardPaymentData.EXPIRATION_YEAR, 2030);
+        options.put(CreditCardPaymentData.VERIFICATION_CODE, "123");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Benchmark
+    public GatewayResponse purchase() throws GatewayException {
+        return gateway.purchase(AMOUNT, options);
+    }
+}
@@ -0,0 +1,73 @@
+package org.mayocat.shop.paymentgateways.benchmarks;
+
+import com.google.common.base.Charsets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local HTTP server answering every request on a path with the same canned body, standing in for a provider API.
+ *
+ * @version $Id$
+ */
+public class StubServer
+{
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    public StubServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.executor = Executors.newFixedThreadPool(4);
+        this.server.setExecutor(executor);
+    }
+
+    /**
+     * @param path the path to answer on
+     * @param contentType the response content type
+     * @param body the response body
+     */
+    public StubServer respond(String path, final String contentType, String body) {
+        final byte[] bytes = body.getBytes(Charsets.UTF_8);
+        server.createContext(path, new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                // Drain the request so that the connection can be kept alive
+                InputStream request = exchange.getRequestBody();
+                byte[] buffer = new byte[1024];
+                while (request.read(buffer) >= 0) {
+                }
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream response = exchange.getResponseBody();
+                response.write(bytes);
+                response.close();
+            }
+        });
+        return this;
+    }
+
+    public StubServer start() {
+        server.start();
+        return this;
+    }
+
+    /**
+     * @return the base URL of the server, without trailing slash
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
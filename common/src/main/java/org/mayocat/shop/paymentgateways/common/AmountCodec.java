@@ -0,0 +1,149 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Map;
+import org.joda.money.CurrencyUnit;
+
+/**
+ * Converts amounts to and from {@code long} minor units of their currency, using the decimal places joda-money knows
+ * for each currency : 1250 is 12.50 EUR, but 1250 JPY and 1.250 TND.
+ *
+ * Decimal places are looked up in a table built once from the joda-money registry, indexed by ISO 4217 numeric code,
+ * so conversions only do arithmetic on longs. Currencies joda-money does not know fall back to the default fraction
+ * digits of the JDK.
+ *
+ * @version $Id$
+ */
+public final class AmountCodec
+{
+    private static final int NUMERIC_CODES = 1000;
+
+    private static final long[] POWERS_OF_TEN = {
+        1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L, 10000000000L
+    };
+
+    /**
+     * Decimal places by numeric code, -1 when joda-money does not know the currency.
+     */
+    private static final byte[] DECIMAL_PLACES = new byte[NUMERIC_CODES];
+
+    private static final Map<String, Integer> DECIMAL_PLACES_BY_CODE = new HashMap<>();
+
+    /**
+     * Large enough for any long, a sign and a decimal separator.
+     */
+    private static final ThreadLocal<char[]> BUFFERS = new ThreadLocal<char[]>()
+    {
+        @Override
+        protected char[] initialValue() {
+            return new char[24];
+        }
+    };
+
+    static {
+        Arrays.fill(DECIMAL_PLACES, (byte) -1);
+        for (CurrencyUnit unit : CurrencyUnit.registeredCurrencies()) {
+            // Pseudo currencies have no decimal places
+            int decimalPlaces = Math.max(0, unit.getDecimalPlaces());
+            if (unit.getNumericCode() >= 0 && unit.getNumericCode() < NUMERIC_CODES) {
+                DECIMAL_PLACES[unit.getNumericCode()] = (byte) decimalPlaces;
+            }
+            DECIMAL_PLACES_BY_CODE.put(unit.getCode(), decimalPlaces);
+        }
+    }
+
+    private AmountCodec() {
+    }
+
+    /**
+     * @return the number of decimal places of the minor units of a currency
+     */
+    public static int getDecimalPlaces(Currency currency) {
+        int numericCode = currency.getNumericCode();
+        if (numericCode >= 0 && numericCode < NUMERIC_CODES && DECIMAL_PLACES[numericCode] >= 0) {
+            return DECIMAL_PLACES[numericCode];
+        }
+        return Math.max(0, currency.getDefaultFractionDigits());
+    }
+
+    /**
+     * @param currency the ISO 4217 alphabetic code of a currency
+     * @return the number of decimal places of the minor units of the currency, 2 if the currency is unknown
+     */
+    public static int getDecimalPlaces(String currency) {
+        if (currency == null) {
+            return 2;
+        }
+        Integer decimalPlaces = DECIMAL_PLACES_BY_CODE.get(currency);
+        if (decimalPlaces != null) {
+            return decimalPlaces;
+        }
+        try {
+            return Math.max(0, Currency.getInstance(currency).getDefaultFractionDigits());
+        } catch (IllegalArgumentException e) {
+            return 2;
+        }
+    }
+
+    /**
+     * @param amount an amount, rounded half up when it has more decimals than the currency
+     * @param currency the currency of the amount
+     * @return the amount in minor units
+     * @throws ArithmeticException if the amount does not fit in a long
+     */
+    public static long toMinorUnits(BigDecimal amount, Currency currency) {
+        int decimalPlaces = getDecimalPlaces(currency);
+        int scale = amount.scale();
+        if (scale >= 0 && scale <= decimalPlaces && amount.precision() < 18 - decimalPlaces) {
+            // Exact and small : the unscaled value only needs shifting
+            return amount.unscaledValue().longValue() * POWERS_OF_TEN[decimalPlaces - scale];
+        }
+        BigInteger minorUnits = amount.setScale(decimalPlaces, RoundingMode.HALF_UP).unscaledValue();
+        if (minorUnits.bitLength() > 63) {
+            throw new ArithmeticException("Amount too large : " + amount);
+        }
+        return minorUnits.longValue();
+    }
+
+    /**
+     * @param minorUnits an amount in minor units
+     * @param currency the currency of the amount
+     * @return the amount, with the decimal places of the currency
+     */
+    public static BigDecimal fromMinorUnits(long minorUnits, Currency currency) {
+        return BigDecimal.valueOf(minorUnits, getDecimalPlaces(currency));
+    }
+
+    /**
+     * Formats an amount as a plain decimal number with the decimal places of its currency, such as "12.50" or "1250"
+     * for JPY. The digits are written into a buffer reused by the calling thread, so the result is the only allocation.
+     *
+     * @param minorUnits an amount in minor units
+     * @param currency the currency of the amount
+     * @return the formatted amount
+     */
+    public static String format(long minorUnits, Currency currency) {
+        int decimalPlaces = getDecimalPlaces(currency);
+        char[] buffer = BUFFERS.get();
+        int position = buffer.length;
+        boolean negative = minorUnits < 0;
+        // Works on the negated value, since the smallest long has no positive counterpart
+        long value = negative ? minorUnits : -minorUnits;
+        for (int digits = 0; value != 0 || digits <= decimalPlaces; digits++) {
+            if (digits == decimalPlaces && decimalPlaces > 0) {
+                buffer[--position] = '.';
+            }
+            buffer[--position] = (char) ('0' - value % 10);
+            value /= 10;
+        }
+        if (negative) {
+            buffer[--position] = '-';
+        }
+        return new String(buffer, position, buffer.length - position);
+    }
+}
@@ -0,0 +1,31 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentData;
+import org.mayocat.shop.payment.PaymentGateway;
+
+/**
+ * A payment gateway that can also run its operations without blocking the calling thread, so that a slow provider
+ * does not pin a container thread for the whole remote round trip.
+ *
+ * Futures fail with the {@link org.mayocat.shop.payment.GatewayException} the synchronous method would have thrown.
+ *
+ * @version $Id$
+ */
+public interface AsyncPaymentGateway extends PaymentGateway
+{
+    /**
+     * @see PaymentGateway#purchase(BigDecimal, Map)
+     */
+    ListenableFuture<GatewayResponse> purchaseAsync(BigDecimal amount, Map<PaymentData, Object> options);
+
+    /**
+     * @see PaymentGateway#acknowledge(UUID, Map)
+     */
+    ListenableFuture<GatewayResponse> acknowledgeAsync(UUID orderId, Map<String, List<String>> data);
+}
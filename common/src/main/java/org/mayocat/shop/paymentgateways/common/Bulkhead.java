@@ -0,0 +1,55 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * The concurrency budget of the remote calls of a gateway, shared by all its tenants, so that a provider that hangs
+ * can only hold that many threads and leaves the others to the gateways of other providers.
+ *
+ * Calls beyond the budget are refused at once rather than waiting for a permit.
+ *
+ * @version $Id$
+ */
+public class Bulkhead
+{
+    private final int capacity;
+
+    private final Semaphore permits;
+
+    /**
+     * @param capacity the number of concurrent calls allowed
+     */
+    public Bulkhead(int capacity) {
+        this.capacity = capacity;
+        this.permits = new Semaphore(capacity);
+    }
+
+    /**
+     * @return a bulkhead that never refuses calls, for gateways created outside of the platform
+     */
+    public static Bulkhead unbounded() {
+        return new Bulkhead(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return true if the call may start, in which case {@link #exit()} must be called once it completes
+     */
+    public boolean tryEnter() {
+        return permits.tryAcquire();
+    }
+
+    public void exit() {
+        permits.release();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of calls that may still start
+     */
+    public int getAvailable() {
+        return permits.availablePermits();
+    }
+}
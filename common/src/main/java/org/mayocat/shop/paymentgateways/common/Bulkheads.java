@@ -0,0 +1,18 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Hands out the {@link Bulkhead} of each gateway, shared by all its tenants.
+ *
+ * @version $Id$
+ */
+@Role
+public interface Bulkheads
+{
+    /**
+     * @param gatewayId the gateway
+     * @return the bulkhead of the gateway
+     */
+    Bulkhead get(String gatewayId);
+}
@@ -0,0 +1,108 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stops calling a provider that keeps failing, so that checkouts fail fast instead of each waiting for timeouts.
+ *
+ * The breaker opens after a number of consecutive failed calls, and refuses calls while open. Once the open duration
+ * has elapsed it lets a few probe calls through : the breaker closes again if a probe succeeds, and opens for another
+ * open duration if one fails. State changes are compare-and-sets, nothing blocks.
+ *
+ * @version $Id$
+ */
+public class CircuitBreaker
+{
+    /**
+     * The states of a breaker.
+     */
+    public enum State
+    {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+
+    private final long openDuration;
+
+    private final int maxProbes;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private final AtomicInteger probes = new AtomicInteger();
+
+    private volatile long openedAt;
+
+    /**
+     * @param failureThreshold the number of consecutive failures that opens the breaker
+     * @param openDuration the time, in milliseconds, the breaker stays open before probing
+     * @param maxProbes the number of concurrent probe calls let through when half open
+     */
+    public CircuitBreaker(int failureThreshold, long openDuration, int maxProbes) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDuration = TimeUnit.MILLISECONDS.toNanos(openDuration);
+        this.maxProbes = Math.max(1, maxProbes);
+    }
+
+    /**
+     * @return true if a call may be made, in which case its outcome must be passed to {@link #onSuccess()} or
+     *         {@link #onFailure()}
+     */
+    public boolean tryAcquire() {
+        State current = state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        if (current == State.OPEN) {
+            if (System.nanoTime() - openedAt < openDuration) {
+                return false;
+            }
+            if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+                probes.set(0);
+            }
+        }
+        if (probes.incrementAndGet() <= maxProbes) {
+            return true;
+        }
+        probes.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records a successful call.
+     */
+    public void onSuccess() {
+        consecutiveFailures.set(0);
+        state.compareAndSet(State.HALF_OPEN, State.CLOSED);
+    }
+
+    /**
+     * Records a failed call.
+     */
+    public void onFailure() {
+        State current = state.get();
+        if (current == State.HALF_OPEN) {
+            open(State.HALF_OPEN);
+        } else if (current == State.CLOSED && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            open(State.CLOSED);
+        }
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    private void open(State from) {
+        // Set before the state, so that no caller sees the breaker open with the time it was previously opened at
+        openedAt = System.nanoTime();
+        if (state.compareAndSet(from, State.OPEN)) {
+            consecutiveFailures.set(0);
+        }
+    }
+}
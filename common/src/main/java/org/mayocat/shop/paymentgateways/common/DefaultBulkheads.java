@@ -0,0 +1,69 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Default {@link Bulkheads}, reporting the capacity and the available permits of each bulkhead under
+ * {@code payments.<gatewayId>.bulkhead}.
+ *
+ * The capacity of the bulkhead of a gateway is set by the {@code mayocat.paymentgateways.<gatewayId>.bulkhead} system
+ * property.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultBulkheads implements Bulkheads
+{
+    public static final String CAPACITY_PROPERTY_FORMAT = "mayocat.paymentgateways.%s.bulkhead";
+
+    private static final int DEFAULT_CAPACITY = 50;
+
+    @Inject
+    private MetricRegistry registry;
+
+    private final ConcurrentMap<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+
+    @Override
+    public Bulkhead get(String gatewayId) {
+        Bulkhead bulkhead = bulkheads.get(gatewayId);
+        if (bulkhead == null) {
+            synchronized (bulkheads) {
+                // Creating a bulkhead registers its metrics, so it must only be done once per gateway
+                bulkhead = bulkheads.get(gatewayId);
+                if (bulkhead == null) {
+                    bulkhead = create(gatewayId);
+                    bulkheads.put(gatewayId, bulkhead);
+                }
+            }
+        }
+        return bulkhead;
+    }
+
+    private Bulkhead create(String gatewayId) {
+        final Bulkhead bulkhead = new Bulkhead(
+                Integer.getInteger(String.format(CAPACITY_PROPERTY_FORMAT, gatewayId), DEFAULT_CAPACITY));
+        String prefix = MetricRegistry.name("payments", gatewayId, "bulkhead");
+        registry.register(MetricRegistry.name(prefix, "capacity"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue() {
+                return bulkhead.getCapacity();
+            }
+        });
+        registry.register(MetricRegistry.name(prefix, "available"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue() {
+                return bulkhead.getAvailable();
+            }
+        });
+        return bulkhead;
+    }
+}
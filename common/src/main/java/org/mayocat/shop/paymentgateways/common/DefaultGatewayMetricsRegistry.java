@@ -0,0 +1,70 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Default {@link GatewayMetricsRegistry}, recording in the platform metric registry. The metrics of a bounded number of
+ * tenants are kept resolved for each gateway, and removed from the platform registry once evicted.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultGatewayMetricsRegistry implements GatewayMetricsRegistry
+{
+    private static final long MAXIMUM_SIZE = 10000;
+
+    @Inject
+    private MetricRegistry registry;
+
+    /**
+     * The metrics of each gateway, by tenant : looked up without building a key.
+     */
+    private final ConcurrentMap<String, LoadingCache<String, GatewayMetrics>> metrics = new ConcurrentHashMap<>();
+
+    @Override
+    public GatewayMetrics get(String gatewayId, String tenant, Set<GatewayMetrics.Operation> operations) {
+        LoadingCache<String, GatewayMetrics> gatewayMetrics = metrics.get(gatewayId);
+        if (gatewayMetrics == null) {
+            LoadingCache<String, GatewayMetrics> created = createCache(gatewayId, operations);
+            gatewayMetrics = metrics.putIfAbsent(gatewayId, created);
+            if (gatewayMetrics == null) {
+                gatewayMetrics = created;
+            }
+        }
+        return gatewayMetrics.getUnchecked(tenant);
+    }
+
+    private LoadingCache<String, GatewayMetrics> createCache(final String gatewayId,
+            final Set<GatewayMetrics.Operation> operations) {
+        return CacheBuilder.newBuilder()
+                .maximumSize(MAXIMUM_SIZE)
+                .expireAfterAccess(1, TimeUnit.HOURS)
+                .removalListener(new RemovalListener<String, GatewayMetrics>()
+                {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, GatewayMetrics> notification) {
+                        notification.getValue().unregister();
+                    }
+                })
+                .build(new CacheLoader<String, GatewayMetrics>()
+                {
+                    @Override
+                    public GatewayMetrics load(String tenant) {
+                        return new GatewayMetrics(registry, gatewayId, tenant, operations);
+                    }
+                });
+    }
+}
@@ -0,0 +1,205 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.mayocat.configuration.general.FilesSettings;
+import org.mayocat.shop.payment.GatewayFactory;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+
+/**
+ * Default {@link GatewayWarmUp}, started when the component is initialized. The {@link GatewayWarmUpListener} looks
+ * it up once the application has started, and the readiness check of the node can hold traffic until it is ready.
+ *
+ * Tenants are those with a {@code tenants/<tenant>/payments/<gatewayId>} directory in the permanent directory. Tenants
+ * are warmed up in parallel, on as many threads as the {@value #THREADS_PROPERTY} system property sets. The readiness
+ * of the node is reported by the {@code payments.warmUp.ready} gauge, the time the initial warm-up took by
+ * {@code payments.warmUp.duration} and the warm-ups that failed by {@code payments.warmUp.failures}.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultGatewayWarmUp implements GatewayWarmUp, Initializable
+{
+    public static final String THREADS_PROPERTY = "mayocat.paymentgateways.warmUp.threads";
+
+    private static final int DEFAULT_THREADS = 4;
+
+    private static final String TENANTS_DIRECTORY = "tenants";
+
+    private static final String PAYMENTS_DIRECTORY = "payments";
+
+    @Inject
+    private Map<String, GatewayFactory> factories;
+
+    @Inject
+    private FilesSettings filesSettings;
+
+    @Inject
+    private MetricRegistry registry;
+
+    @Inject
+    private Logger logger;
+
+    private Executor executor;
+
+    private Counter failures;
+
+    private volatile boolean ready;
+
+    @Override
+    public void initialize() {
+        int threads = Integer.getInteger(THREADS_PROPERTY, DEFAULT_THREADS);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat("payment-gateway-warm-up-%d").setDaemon(true).build());
+        pool.allowCoreThreadTimeOut(true);
+        this.executor = pool;
+
+        this.failures = registry.counter(MetricRegistry.name("payments", "warmUp", "failures"));
+        final Timer duration = registry.timer(MetricRegistry.name("payments", "warmUp", "duration"));
+        registry.register(MetricRegistry.name("payments", "warmUp", "ready"), new Gauge<Boolean>()
+        {
+            @Override
+            public Boolean getValue() {
+                return ready;
+            }
+        });
+
+        final long start = System.nanoTime();
+        warmUp().addListener(new Runnable()
+        {
+            @Override
+            public void run() {
+                duration.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                ready = true;
+                logger.info("Payment gateways warmed up in {} ms",
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            }
+        }, executor);
+    }
+
+    @Override
+    public ListenableFuture<Void> warmUp() {
+        List<Runnable> tasks = new ArrayList<>();
+        for (final WarmableGatewayFactory factory : getWarmableFactories()) {
+            tasks.add(new Runnable()
+            {
+                @Override
+                public void run() {
+                    try {
+                        factory.warmUp();
+                    } catch (Exception e) {
+                        failures.inc();
+                        logger.error("Failed to warm up {} gateway", factory.getId(), e);
+                    }
+                }
+            });
+        }
+        File[] tenants = getTenantsDirectory().listFiles();
+        if (tenants != null) {
+            for (File tenant : tenants) {
+                if (tenant.isDirectory()) {
+                    addTenantTasks(tenant.getName(), tasks);
+                }
+            }
+        }
+        return run(tasks);
+    }
+
+    @Override
+    public ListenableFuture<Void> warmUp(String tenant) {
+        List<Runnable> tasks = new ArrayList<>();
+        addTenantTasks(tenant, tasks);
+        return run(tasks);
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    private void addTenantTasks(final String tenant, List<Runnable> tasks) {
+        File payments = new File(new File(getTenantsDirectory(), tenant), PAYMENTS_DIRECTORY);
+        for (final WarmableGatewayFactory factory : getWarmableFactories()) {
+            final File directory = new File(payments, factory.getId());
+            if (!directory.isDirectory()) {
+                continue;
+            }
+            tasks.add(new Runnable()
+            {
+                @Override
+                public void run() {
+                    try {
+                        factory.warmUp(tenant, directory);
+                    } catch (Exception e) {
+                        failures.inc();
+                        logger.error("Failed to warm up {} gateway of tenant {}", factory.getId(), tenant, e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Runs tasks in parallel.
+     *
+     * @return completes once all tasks have run
+     */
+    private ListenableFuture<Void> run(List<Runnable> tasks) {
+        final SettableFuture<Void> completed = SettableFuture.create();
+        if (tasks.isEmpty()) {
+            completed.set(null);
+            return completed;
+        }
+        final AtomicInteger remaining = new AtomicInteger(tasks.size());
+        for (final Runnable task : tasks) {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        if (remaining.decrementAndGet() == 0) {
+                            completed.set(null);
+                        }
+                    }
+                }
+            });
+        }
+        return completed;
+    }
+
+    private List<WarmableGatewayFactory> getWarmableFactories() {
+        List<WarmableGatewayFactory> warmable = new ArrayList<>();
+        for (GatewayFactory factory : factories.values()) {
+            if (factory instanceof WarmableGatewayFactory) {
+                warmable.add((WarmableGatewayFactory) factory);
+            }
+        }
+        return warmable;
+    }
+
+    private File getTenantsDirectory() {
+        return filesSettings.getPermanentDirectory().resolve(TENANTS_DIRECTORY).toFile();
+    }
+}
@@ -0,0 +1,52 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Default {@link NotificationPipelines}, reporting to the platform metric registry.
+ *
+ * The size of the queue and the number of workers of each pipeline are set by the {@value #QUEUE_SIZE_PROPERTY} and
+ * {@value #WORKERS_PROPERTY} system properties.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultNotificationPipelines implements NotificationPipelines
+{
+    public static final String QUEUE_SIZE_PROPERTY = "mayocat.paymentgateways.notifications.queueSize";
+
+    public static final String WORKERS_PROPERTY = "mayocat.paymentgateways.notifications.workers";
+
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private static final int DEFAULT_WORKERS = 8;
+
+    @Inject
+    private MetricRegistry registry;
+
+    private final ConcurrentMap<String, NotificationPipeline> pipelines = new ConcurrentHashMap<>();
+
+    @Override
+    public NotificationPipeline get(String gatewayId) {
+        NotificationPipeline pipeline = pipelines.get(gatewayId);
+        if (pipeline == null) {
+            synchronized (pipelines) {
+                // Creating a pipeline registers its metrics, so it must only be done once per gateway
+                pipeline = pipelines.get(gatewayId);
+                if (pipeline == null) {
+                    pipeline = new NotificationPipeline(gatewayId,
+                            Integer.getInteger(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE),
+                            Integer.getInteger(WORKERS_PROPERTY, DEFAULT_WORKERS), registry);
+                    pipelines.put(gatewayId, pipeline);
+                }
+            }
+        }
+        return pipeline;
+    }
+}
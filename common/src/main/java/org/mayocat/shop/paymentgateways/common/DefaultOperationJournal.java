@@ -0,0 +1,264 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.mayocat.configuration.general.FilesSettings;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.model.PaymentOperation;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.phase.Initializable;
+
+/**
+ * Default {@link OperationJournal}, a {@link MappedJournal} in the {@code payments/journal} directory of the permanent
+ * directory, opened when the component is initialized.
+ *
+ * The journal is enabled unless the {@value #ENABLED_PROPERTY} system property is false. The size of its segments, the
+ * time resolved calls are kept and the time calls whose outcome is never found out are kept are set by the
+ * {@value #SEGMENT_SIZE_PROPERTY}, {@value #RETENTION_PROPERTY} and {@value #EXPIRY_PROPERTY} system properties. The
+ * calls whose outcome is unknown are reported by the {@code payments.journal.pending} gauge, the calls handed to the
+ * platform by recovery by {@code payments.journal.recovered} and those it failed to persist by
+ * {@code payments.journal.failures}.
+ *
+ * Once {@link #recover(NotificationHandler)} has been called, the calls of the previous run it could not hand to the
+ * platform, and the calls of the current run whose outcome is still unknown a few minutes after they were made, after
+ * a connection error for example, are recovered in the background every minute.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultOperationJournal implements OperationJournal, Initializable
+{
+    public static final String ENABLED_PROPERTY = "mayocat.paymentgateways.journal.enabled";
+
+    public static final String SEGMENT_SIZE_PROPERTY = "mayocat.paymentgateways.journal.segmentSize";
+
+    public static final String RETENTION_PROPERTY = "mayocat.paymentgateways.journal.retention";
+
+    public static final String EXPIRY_PROPERTY = "mayocat.paymentgateways.journal.expiry";
+
+    private static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final long DEFAULT_RETENTION = 10 * 60 * 1000;
+
+    private static final long DEFAULT_EXPIRY = TimeUnit.DAYS.toMillis(1);
+
+    /**
+     * How long after a call of the current run its outcome is looked for at the provider : longer than a call and its
+     * retries take, so that the gateway resolves it first if it can.
+     */
+    private static final long RECOVERY_DELAY = TimeUnit.MINUTES.toMillis(2);
+
+    private static final long RECOVERY_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    @Inject
+    private FilesSettings filesSettings;
+
+    @Inject
+    private ComponentManager componentManager;
+
+    @Inject
+    private MetricRegistry registry;
+
+    @Inject
+    private Logger logger;
+
+    private MappedJournal journal;
+
+    /**
+     * When the journal was opened : the calls made before are those of the previous run.
+     */
+    private long openedAt;
+
+    /**
+     * The calls of the previous run whose outcome was journaled, not handed to the platform yet : the node may have
+     * died before the platform persisted their response.
+     */
+    private List<JournalEntry> recordedEntries = Collections.emptyList();
+
+    private volatile NotificationHandler handler;
+
+    private Counter recovered;
+
+    private Counter failures;
+
+    @Override
+    public void initialize() {
+        this.recovered = registry.counter(MetricRegistry.name("payments", "journal", "recovered"));
+        this.failures = registry.counter(MetricRegistry.name("payments", "journal", "failures"));
+        registry.register(MetricRegistry.name("payments", "journal", "pending"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue() {
+                return journal == null ? 0 : journal.getPending();
+            }
+        });
+
+        if (!Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"))) {
+            logger.info("Payment journal disabled");
+            return;
+        }
+        File directory = filesSettings.getPermanentDirectory().resolve("payments").resolve("journal").toFile();
+        MappedJournal mappedJournal = new MappedJournal(directory,
+                Integer.getInteger(SEGMENT_SIZE_PROPERTY, DEFAULT_SEGMENT_SIZE),
+                Long.getLong(RETENTION_PROPERTY, DEFAULT_RETENTION), Long.getLong(EXPIRY_PROPERTY, DEFAULT_EXPIRY));
+        try {
+            this.openedAt = System.currentTimeMillis();
+            List<JournalEntry> previousEntries = mappedJournal.open();
+            List<JournalEntry> recorded = new ArrayList<>();
+            for (JournalEntry entry : previousEntries) {
+                if (entry.isResolved()) {
+                    recorded.add(entry);
+                }
+            }
+            this.recordedEntries = recorded;
+            this.journal = mappedJournal;
+            logger.info("Opened payment journal with {} calls of the previous run", previousEntries.size());
+        } catch (IOException e) {
+            // Payments go on, without the journal to recover them if the node dies
+            logger.error("Failed to open payment journal in {}, gateway calls are not journaled", directory, e);
+            return;
+        }
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("payment-journal-recovery").setDaemon(true).build());
+        scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run() {
+                NotificationHandler currentHandler = handler;
+                if (currentHandler == null) {
+                    // Recovered outcomes could not be handed to the platform yet
+                    return;
+                }
+                try {
+                    recoverCalls(currentHandler);
+                } catch (RuntimeException e) {
+                    // Thrown out, it would cancel the next recoveries
+                    logger.error("Failed to recover gateway calls", e);
+                }
+            }
+        }, RECOVERY_INTERVAL, RECOVERY_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public GatewayJournal get(String gatewayId, String tenant) {
+        return new GatewayJournal(journal, gatewayId, tenant);
+    }
+
+    @Override
+    public int recover(NotificationHandler handler) {
+        this.handler = handler;
+        int unresolved = recoverCalls(handler);
+        if (unresolved > 0) {
+            logger.warn("The outcome of {} gateway calls is still unknown, recovering them in the background",
+                    unresolved);
+        }
+        return unresolved;
+    }
+
+    /**
+     * Hands the journaled outcome of the calls of the previous run, then the outcome of the unresolved calls of the
+     * previous run and of those of the current run made long enough ago, to the platform. Calls of the current run
+     * resolved by their gateway are not handed : the platform got their response.
+     *
+     * @return the number of calls whose outcome is still unknown or could not be handed
+     */
+    private synchronized int recoverCalls(NotificationHandler handler) {
+        if (journal == null) {
+            return 0;
+        }
+        List<JournalEntry> notHanded = new ArrayList<>();
+        for (JournalEntry entry : recordedEntries) {
+            if (!handle(handler, entry, getResponse(entry))) {
+                notHanded.add(entry);
+            }
+        }
+        recordedEntries = notHanded;
+
+        int unresolved = notHanded.size();
+        long before = Math.max(openedAt, System.currentTimeMillis() - RECOVERY_DELAY);
+        for (JournalEntry entry : journal.getUnresolved(before)) {
+            GatewayResponse response = findResponse(entry);
+            if (response == null) {
+                unresolved++;
+                continue;
+            }
+
+            if (!handle(handler, entry, response)) {
+                // Left unresolved, so that it is handed again by the next recovery
+                unresolved++;
+                continue;
+            }
+
+            try {
+                journal.complete(entry, response.getOperation().getResult(), response.getOperation().getExternalId());
+            } catch (IOException e) {
+                logger.warn("Failed to journal the recovered outcome of order {}", entry.getOrderId(), e);
+            }
+        }
+        return unresolved;
+    }
+
+    /**
+     * @return true if the platform persisted the response, false to hand it again by the next recovery
+     */
+    private boolean handle(NotificationHandler handler, JournalEntry entry, GatewayResponse response) {
+        try {
+            handler.handle(entry.getOrderId(), response);
+            recovered.inc();
+            return true;
+        } catch (Exception e) {
+            failures.inc();
+            logger.error("Failed to recover {} call for order {}", entry.getGatewayId(), entry.getOrderId(), e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the response of a call whose outcome was journaled
+     */
+    private static GatewayResponse getResponse(JournalEntry entry) {
+        PaymentOperation operation = new PaymentOperation();
+        operation.setGatewayId(entry.getGatewayId());
+        operation.setResult(entry.getResult());
+        operation.setExternalId(entry.getExternalId());
+        operation.setMemo(ImmutableMap.<String, Object>of("recovered", true));
+        return new GatewayResponse(entry.getResult() != PaymentOperation.Result.FAILED
+                && entry.getResult() != PaymentOperation.Result.REFUSED, operation);
+    }
+
+    /**
+     * @return the response of a call whose outcome was not journaled, found out from the provider, or null if it
+     *         cannot be known yet
+     */
+    private GatewayResponse findResponse(JournalEntry entry) {
+        try {
+            JournalRecoveryHandler recoveryHandler =
+                    componentManager.getInstance(JournalRecoveryHandler.class, entry.getGatewayId());
+            return recoveryHandler.recover(entry);
+        } catch (ComponentLookupException e) {
+            logger.warn("No journal recovery handler for {} gateway", entry.getGatewayId());
+            return null;
+        } catch (Exception e) {
+            logger.warn("Failed to recover {} call for order {}", entry.getGatewayId(), entry.getOrderId(), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.TreeTraversingParser;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Singleton;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Default {@link TenantConfigurationCache}, keeping a bounded number of configurations in memory.
+ *
+ * Rather than watching every tenant directory, the modification time and size of a file are compared to those it had
+ * when it was parsed, at most once per second and per entry. Configurations of tenants that do not take payments
+ * for a while are evicted.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultTenantConfigurationCache implements TenantConfigurationCache
+{
+    private static final long DEFAULT_MAXIMUM_SIZE = 10000;
+
+    private static final long DEFAULT_EXPIRATION_HOURS = 1;
+
+    private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private static final String SEPARATOR = ":";
+
+    private final Cache<String, Entry> configurations;
+
+    public DefaultTenantConfigurationCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRATION_HOURS, TimeUnit.HOURS);
+    }
+
+    public DefaultTenantConfigurationCache(long maximumSize, long expiration, TimeUnit unit) {
+        this.configurations = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expiration, unit)
+                .build();
+    }
+
+    @Override
+    public <T> T get(String tenant, String gatewayId, File file, Class<T> type, ObjectMapper mapper)
+            throws IOException {
+        String key = tenant + SEPARATOR + gatewayId;
+        Entry entry = configurations.getIfPresent(key);
+        if (entry != null && entry.isUpToDate(file) && type.isInstance(entry.configuration)) {
+            return type.cast(entry.configuration);
+        }
+
+        // Read the file attributes before the file itself, so that a change made while parsing is seen next time
+        long lastModified = file.lastModified();
+        long length = file.length();
+        JsonNode node = mapper.readTree(file);
+        T configuration = mapper.readValue(new TreeTraversingParser(node), type);
+
+        configurations.put(key, new Entry(file, lastModified, length, configuration));
+        return configuration;
+    }
+
+    @Override
+    public void invalidate(String tenant, String gatewayId) {
+        configurations.invalidate(tenant + SEPARATOR + gatewayId);
+    }
+
+    private static class Entry
+    {
+        private final File file;
+
+        private final long lastModified;
+
+        private final long length;
+
+        private final Object configuration;
+
+        private volatile long lastChecked;
+
+        Entry(File file, long lastModified, long length, Object configuration) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.configuration = configuration;
+            this.lastChecked = System.nanoTime();
+        }
+
+        boolean isUpToDate(File current) {
+            if (!file.equals(current)) {
+                return false;
+            }
+            long now = System.nanoTime();
+            if (now - lastChecked < CHECK_INTERVAL) {
+                return true;
+            }
+            if (file.lastModified() != lastModified || file.length() != length) {
+                return false;
+            }
+            lastChecked = now;
+            return true;
+        }
+    }
+}
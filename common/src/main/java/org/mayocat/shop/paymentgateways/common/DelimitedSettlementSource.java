@@ -0,0 +1,274 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Settlement records read from a delimited export file with a header line, such as the CSV exports of provider back
+ * offices.
+ *
+ * The file is memory-mapped, in windows of {@value #WINDOW_SIZE} bytes so that exports larger than the address space
+ * a buffer can map are read too, and lines are split in place : only the fields a subclass reads are decoded.
+ *
+ * @version $Id$
+ */
+public abstract class DelimitedSettlementSource implements SettlementSource
+{
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final int MAX_FIELDS = 256;
+
+    private static final Map<Integer, String> CURRENCIES_BY_NUMERIC_CODE = new HashMap<>();
+
+    static {
+        for (Currency currency : Currency.getAvailableCurrencies()) {
+            CURRENCIES_BY_NUMERIC_CODE.put(currency.getNumericCode(), currency.getCurrencyCode());
+        }
+    }
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private final long length;
+
+    private final byte separator;
+
+    private final Charset charset;
+
+    private final Map<String, Integer> header = new HashMap<>();
+
+    private MappedByteBuffer window;
+
+    private long windowStart;
+
+    /**
+     * Position of the next line, relative to the window.
+     */
+    private int position;
+
+    private final int[] fieldStarts = new int[MAX_FIELDS + 1];
+
+    private final int[] fieldEnds = new int[MAX_FIELDS + 1];
+
+    private int fieldCount;
+
+    /**
+     * @param file the export file
+     * @param separator the field separator
+     * @param charset the encoding of the file
+     * @throws IOException if the file cannot be opened or has no header line
+     */
+    protected DelimitedSettlementSource(File file, char separator, Charset charset) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.length = channel.size();
+        this.separator = (byte) separator;
+        this.charset = charset;
+
+        map(0);
+        if (!nextLine()) {
+            close();
+            throw new IOException("Missing header line in " + file);
+        }
+        for (int i = 0; i < fieldCount; i++) {
+            // Exports from Windows tools may start with a byte order mark
+            header.put(text(i).replace("\uFEFF", "").trim(), i);
+        }
+    }
+
+    @Override
+    public SettlementRecord next() throws IOException {
+        while (nextLine()) {
+            if (fieldCount > 1 || fieldEnds[0] > fieldStarts[0]) {
+                return read();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the record of the current line.
+     */
+    protected abstract SettlementRecord read() throws IOException;
+
+    /**
+     * @param name the name of a column, as in the header line
+     * @return the index of the column
+     * @throws IOException if the file has no such column
+     */
+    protected int column(String name) throws IOException {
+        Integer column = header.get(name);
+        if (column == null) {
+            throw new IOException("Missing column " + name + ", columns are " + header.keySet());
+        }
+        return column;
+    }
+
+    /**
+     * @return the value of a field of the current line, without surrounding quotes, or null if the line is shorter
+     */
+    protected String text(int column) {
+        if (column >= fieldCount) {
+            return null;
+        }
+        int start = fieldStarts[column];
+        int end = fieldEnds[column];
+        if (end - start >= 2 && window.get(start) == '"' && window.get(end - 1) == '"') {
+            start++;
+            end--;
+        }
+        byte[] bytes = new byte[end - start];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = window.get(start + i);
+        }
+        return new String(bytes, charset);
+    }
+
+    /**
+     * Parses an amount in minor units, such as "1250" for 12.50 EUR, without decoding the field.
+     */
+    protected long minorUnits(int column) throws IOException {
+        return parseAmount(column, 0, false);
+    }
+
+    /**
+     * Parses a decimal amount, such as "12.50" or "12,50", into minor units of the currency without decoding the
+     * field.
+     */
+    protected long decimalAmount(int column, String currency) throws IOException {
+        return parseAmount(column, AmountCodec.getDecimalPlaces(currency), true);
+    }
+
+    /**
+     * @return the ISO 4217 alphabetic code of a currency field holding either an alphabetic or a numeric code
+     */
+    protected String currency(int column) {
+        String value = text(column);
+        if (value == null) {
+            return null;
+        }
+        value = value.trim();
+        if (!value.isEmpty() && Character.isDigit(value.charAt(0))) {
+            try {
+                return CURRENCIES_BY_NUMERIC_CODE.get(Integer.parseInt(value));
+            } catch (NumberFormatException e) {
+                return value;
+            }
+        }
+        return value.toUpperCase();
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Mapped buffers are unmapped when collected, there is no portable way to release them earlier
+        window = null;
+        file.close();
+    }
+
+    private long parseAmount(int column, int fractionDigits, boolean decimal) throws IOException {
+        if (column >= fieldCount) {
+            throw new IOException("Missing amount at " + describePosition());
+        }
+        long value = 0;
+        boolean negative = false;
+        boolean digits = false;
+        int fraction = -1;
+        for (int i = fieldStarts[column]; i < fieldEnds[column]; i++) {
+            byte b = window.get(i);
+            if (b >= '0' && b <= '9') {
+                if (fraction >= 0) {
+                    if (fraction == fractionDigits) {
+                        if (b != '0') {
+                            throw new IOException("Too many decimals in amount at " + describePosition());
+                        }
+                        continue;
+                    }
+                    fraction++;
+                }
+                value = value * 10 + (b - '0');
+                digits = true;
+            } else if (decimal && (b == '.' || b == ',') && fraction < 0) {
+                fraction = 0;
+            } else if (b == '-' && !digits) {
+                negative = true;
+            } else if (b != '"' && b != ' ' && b != '+') {
+                throw new IOException("Invalid amount at " + describePosition());
+            }
+        }
+        if (!digits) {
+            throw new IOException("Missing amount at " + describePosition());
+        }
+        for (int i = Math.max(fraction, 0); decimal && i < fractionDigits; i++) {
+            value *= 10;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Splits the next line into fields.
+     *
+     * @return false at the end of the file
+     */
+    private boolean nextLine() throws IOException {
+        while (true) {
+            if (windowStart + position >= length) {
+                return false;
+            }
+            int limit = window.limit();
+            fieldCount = 0;
+            fieldStarts[0] = position;
+            boolean quoted = false;
+            int i = position;
+            for (; i < limit; i++) {
+                byte b = window.get(i);
+                if (b == '"') {
+                    quoted = !quoted;
+                } else if (!quoted && b == separator) {
+                    endField(i);
+                    fieldStarts[fieldCount] = i + 1;
+                } else if (!quoted && b == '\n') {
+                    break;
+                }
+            }
+
+            if (i == limit && windowStart + limit < length) {
+                // The line continues past the window : map the next window from the start of the line
+                if (position == 0) {
+                    throw new IOException("Line longer than " + WINDOW_SIZE + " bytes at " + describePosition());
+                }
+                map(windowStart + position);
+                continue;
+            }
+
+            int end = i > position && window.get(i - 1) == '\r' ? i - 1 : i;
+            endField(end);
+            position = i + 1;
+            return true;
+        }
+    }
+
+    private void endField(int end) throws IOException {
+        if (fieldCount == MAX_FIELDS) {
+            throw new IOException("More than " + MAX_FIELDS + " fields at " + describePosition());
+        }
+        fieldEnds[fieldCount++] = end;
+    }
+
+    private void map(long start) throws IOException {
+        windowStart = start;
+        position = 0;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, length - start));
+    }
+
+    private String describePosition() {
+        return "offset " + (windowStart + fieldStarts[0]);
+    }
+}
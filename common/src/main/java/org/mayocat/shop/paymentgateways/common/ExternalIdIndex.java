@@ -0,0 +1,195 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Index of payments by external ID, stored in primitive arrays rather than as objects so that millions of payments
+ * take tens of megabytes and no garbage collection work.
+ *
+ * External IDs are copied into a shared character array, amounts and currencies into parallel arrays, and an open
+ * addressing table of entry numbers finds them by hash. Lookups do not allocate.
+ *
+ * @version $Id$
+ */
+class ExternalIdIndex
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Entry number plus one of each slot, zero for free slots. Kept at most half full.
+     */
+    private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+    private int[] hashes = new int[INITIAL_CAPACITY];
+
+    /**
+     * Start of the external ID of each entry in {@link #ids}, the ID ending where the next one starts.
+     */
+    private int[] idOffsets = new int[INITIAL_CAPACITY + 1];
+
+    private long[] amounts = new long[INITIAL_CAPACITY];
+
+    private short[] currencies = new short[INITIAL_CAPACITY];
+
+    private byte[] marks = new byte[INITIAL_CAPACITY];
+
+    private char[] ids = new char[INITIAL_CAPACITY * 32];
+
+    private int size;
+
+    private final List<String> currencyCodes = new ArrayList<>();
+
+    private final Map<String, Short> currencyIndexes = new HashMap<>();
+
+    /**
+     * @return the entry of the external ID, or -1 if there is none
+     */
+    int find(String externalId) {
+        int hash = hash(externalId);
+        int mask = slots.length - 1;
+        for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = slots[slot] - 1;
+            if (hashes[entry] == hash && idEquals(entry, externalId)) {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds an entry, unless the external ID is already indexed.
+     *
+     * @return the new entry, or -1 minus the existing entry if the external ID is already indexed
+     */
+    int add(String externalId, long amount, String currency) {
+        int existing = find(externalId);
+        if (existing >= 0) {
+            return -1 - existing;
+        }
+        if (size == hashes.length) {
+            grow();
+        }
+        int entry = size++;
+        int hash = hash(externalId);
+        hashes[entry] = hash;
+        amounts[entry] = amount;
+        currencies[entry] = currencyIndex(currency);
+
+        int offset = idOffsets[entry];
+        if (offset + externalId.length() > ids.length) {
+            ids = Arrays.copyOf(ids, Math.max(ids.length * 2, offset + externalId.length()));
+        }
+        externalId.getChars(0, externalId.length(), ids, offset);
+        idOffsets[entry + 1] = offset + externalId.length();
+
+        int mask = slots.length - 1;
+        int slot = hash & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = entry + 1;
+        return entry;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String getExternalId(int entry) {
+        return new String(ids, idOffsets[entry], idOffsets[entry + 1] - idOffsets[entry]);
+    }
+
+    long getAmount(int entry) {
+        return amounts[entry];
+    }
+
+    String getCurrency(int entry) {
+        return currencyCodes.get(currencies[entry]);
+    }
+
+    /**
+     * @return whether the entry has the given currency, without allocating
+     */
+    boolean hasCurrency(int entry, String currency) {
+        return Objects.equals(currencyCodes.get(currencies[entry]), currency);
+    }
+
+    /**
+     * Marks an entry as seen, counting captures up to {@link Byte#MAX_VALUE} - 1.
+     *
+     * @param captured whether to count a capture
+     * @return the number of captures counted before
+     */
+    int mark(int entry, boolean captured) {
+        int mark = marks[entry];
+        int captures = mark == 0 ? 0 : mark - 1;
+        if (mark == 0) {
+            marks[entry] = 1;
+        }
+        if (captured && marks[entry] < Byte.MAX_VALUE) {
+            marks[entry]++;
+        }
+        return captures;
+    }
+
+    /**
+     * @return whether the entry was marked
+     */
+    boolean isMarked(int entry) {
+        return marks[entry] != 0;
+    }
+
+    private boolean idEquals(int entry, String externalId) {
+        int offset = idOffsets[entry];
+        int length = idOffsets[entry + 1] - offset;
+        if (length != externalId.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (ids[offset + i] != externalId.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private short currencyIndex(String currency) {
+        Short index = currencyIndexes.get(currency);
+        if (index == null) {
+            index = (short) currencyCodes.size();
+            currencyCodes.add(currency);
+            currencyIndexes.put(currency, index);
+        }
+        return index;
+    }
+
+    private void grow() {
+        int capacity = hashes.length * 2;
+        hashes = Arrays.copyOf(hashes, capacity);
+        idOffsets = Arrays.copyOf(idOffsets, capacity + 1);
+        amounts = Arrays.copyOf(amounts, capacity);
+        currencies = Arrays.copyOf(currencies, capacity);
+        marks = Arrays.copyOf(marks, capacity);
+
+        slots = new int[capacity * 2];
+        int mask = slots.length - 1;
+        for (int entry = 0; entry < size; entry++) {
+            int slot = hashes[entry] & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = entry + 1;
+        }
+    }
+
+    private static int hash(String externalId) {
+        // Spreads the bits of the string hash, as provider IDs often share long prefixes
+        int h = externalId.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,138 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Inject;
+import org.mayocat.context.WebContext;
+import org.mayocat.shop.payment.AbstractGatewayFactory;
+import org.mayocat.shop.payment.GatewayFactory;
+import org.mayocat.shop.payment.PaymentGateway;
+import org.slf4j.Logger;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+
+/**
+ * Creates {@link FailoverPaymentGateway}s routing between the gateways a tenant lists in its failover configuration,
+ * each created by its own factory. Gateways that are not {@link RedirectPaymentGateway redirect gateways}, such as
+ * Stripe, are left out : a purchase failing on them may still have charged the customer.
+ *
+ * @version $Id$
+ */
+@Component(FailoverGatewayFactory.ID)
+public class FailoverGatewayFactory extends AbstractGatewayFactory implements GatewayFactory
+{
+    public static final String ID = "failover";
+
+    private static final long MAXIMUM_ORDERS = 100000;
+
+    @Inject
+    private ObjectMapper mapper;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private WebContext context;
+
+    @Inject
+    private TenantConfigurationCache configurationCache;
+
+    @Inject
+    private ComponentManager componentManager;
+
+    private final GatewayInstanceCache gateways = new GatewayInstanceCache();
+
+    /**
+     * The gateway that started the purchase of each order, shared by all failover gateways so that it survives them
+     * being created again.
+     */
+    private final Cache<UUID, String> origins = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_ORDERS)
+            .expireAfterWrite(1, TimeUnit.DAYS)
+            .build();
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public PaymentGateway createGateway() {
+        String tenant = context.getTenant().getSlug();
+        Optional<File> tenantConfigurationFile = getTenantConfigurationFile("configuration.yml");
+        if (!tenantConfigurationFile.isPresent()) {
+            logger.error("Failed to create failover payment gateway : no tenant configuration found");
+            return null;
+        }
+
+        try {
+            FailoverTenantConfiguration configuration = configurationCache.get(tenant, ID,
+                    tenantConfigurationFile.get(), FailoverTenantConfiguration.class, mapper);
+
+            Map<String, RedirectPaymentGateway> delegates = new LinkedHashMap<>();
+            for (String gatewayId : configuration.getGateways()) {
+                RedirectPaymentGateway delegate = createDelegate(gatewayId);
+                if (delegate != null) {
+                    delegates.put(gatewayId, delegate);
+                }
+            }
+            if (delegates.isEmpty()) {
+                logger.error("Failed to create failover payment gateway : no gateway could be created");
+                return null;
+            }
+
+            // Delegates are cached by their own factories, so the same instances mean nothing changed
+            List<Object> sources = new ArrayList<>();
+            sources.add(configuration);
+            sources.addAll(delegates.values());
+            PaymentGateway gateway = gateways.get(tenant, sources.toArray());
+            if (gateway == null) {
+                gateway = new FailoverPaymentGateway(delegates, origins);
+                gateways.put(tenant, gateway, sources.toArray());
+            }
+            return gateway;
+
+        } catch (FileNotFoundException e) {
+            logger.error("Failed to create failover payment gateway : configuration file not found");
+            return null;
+        } catch (JsonProcessingException e) {
+            logger.error("Failed to create failover payment gateway : invalid configuration file");
+            return null;
+        } catch (IOException e) {
+            logger.error("Failed to create failover payment gateway : IO exception");
+            return null;
+        }
+    }
+
+    private RedirectPaymentGateway createDelegate(String gatewayId) {
+        if (ID.equals(gatewayId)) {
+            logger.error("Ignoring failover gateway listed as a gateway to fail over to");
+            return null;
+        }
+        try {
+            GatewayFactory factory = componentManager.getInstance(GatewayFactory.class, gatewayId);
+            PaymentGateway delegate = factory.createGateway();
+            if (delegate != null && !(delegate instanceof RedirectPaymentGateway)) {
+                logger.error("Ignoring {} gateway : its failed purchases may have charged the customer", gatewayId);
+                return null;
+            }
+            return (RedirectPaymentGateway) delegate;
+        } catch (ComponentLookupException e) {
+            logger.error("Failed to create failover payment gateway : unknown gateway {}", gatewayId);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mayocat.shop.billing.model.Order;
+import org.mayocat.shop.payment.BasePaymentData;
+import org.mayocat.shop.payment.GatewayException;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentData;
+import org.mayocat.shop.payment.model.PaymentOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Routes the purchases of a tenant to the healthiest of several gateways, and fails over to the next one when a
+ * gateway fails. Only {@link RedirectPaymentGateway redirect gateways} are routed to : their failed purchases charged
+ * no one, so failing over never charges a customer twice.
+ *
+ * Each gateway is scored by exponentially weighted moving averages of the latency of its purchases, in nanoseconds,
+ * and of their error rate, an error being an exception or a failed response. Card refusals are not errors, and are
+ * not failed over. New purchases go to the gateway with the lowest score, ties going to the first configured. Every
+ * {@value #PROBE_INTERVAL}th purchase goes to the least recently used gateway instead, so that a gateway that
+ * recovered gets the chance to show it.
+ *
+ * Acknowledgements go to the gateway that started the purchase of the order, as told by the
+ * {@link PaymentOperation#getGatewayId() gateway ID} of its operation. Orders are only remembered in memory : the
+ * notifications of orders purchased before a restart go to the gateway that
+ * {@link RedirectPaymentGateway#isNotification(Map) recognizes} them.
+ *
+ * @version $Id$
+ */
+public class FailoverPaymentGateway implements AsyncPaymentGateway
+{
+    /**
+     * Weight of the latest purchase in the moving averages.
+     */
+    private static final double ALPHA = 0.2;
+
+    /**
+     * The latency a failed purchase is worth : a gateway failing half of its purchases scores as one that never fails
+     * but takes an extra two and a half seconds. Gateways that fail fast are not preferred for it.
+     */
+    private static final double FAILURE_COST = TimeUnit.SECONDS.toNanos(5);
+
+    private static final int PROBE_INTERVAL = 20;
+
+    private static final long MAXIMUM_ORDERS = 100000;
+
+    private Logger logger = LoggerFactory.getLogger(FailoverPaymentGateway.class);
+
+    private final List<Route> routes = new ArrayList<>();
+
+    private final Cache<UUID, String> origins;
+
+    private final AtomicLong purchases = new AtomicLong();
+
+    /**
+     * @param gateways the gateways to route to by ID, in order of preference
+     */
+    public FailoverPaymentGateway(Map<String, RedirectPaymentGateway> gateways) {
+        this(gateways, CacheBuilder.newBuilder()
+                .maximumSize(MAXIMUM_ORDERS)
+                .expireAfterWrite(1, TimeUnit.DAYS)
+                .<UUID, String>build());
+    }
+
+    /**
+     * @param gateways the gateways to route to by ID, in order of preference
+     * @param origins where to remember the ID of the gateway that started the purchase of each order, which may outlive
+     *        this gateway
+     */
+    public FailoverPaymentGateway(Map<String, RedirectPaymentGateway> gateways, Cache<UUID, String> origins) {
+        if (gateways.isEmpty()) {
+            throw new IllegalArgumentException("No gateway to route to");
+        }
+        for (Map.Entry<String, RedirectPaymentGateway> gateway : gateways.entrySet()) {
+            routes.add(new Route(gateway.getKey(), gateway.getValue()));
+        }
+        this.origins = origins;
+    }
+
+    @Override
+    public GatewayResponse purchase(BigDecimal amount, Map<PaymentData, Object> options) throws GatewayException {
+        GatewayResponse failedResponse = null;
+        GatewayException failure = null;
+        for (Route route : rank()) {
+            long start = System.nanoTime();
+            try {
+                GatewayResponse response = route.gateway.purchase(amount, options);
+                boolean failed = isFailed(response);
+                route.record(System.nanoTime() - start, failed);
+                if (!failed) {
+                    remember(options, route, response);
+                    return response;
+                }
+                failedResponse = response;
+            } catch (GatewayException e) {
+                route.record(System.nanoTime() - start, true);
+                failure = e;
+            } catch (RuntimeException e) {
+                route.record(System.nanoTime() - start, true);
+                failure = new GatewayException(e);
+            }
+            this.logger.warn("Purchase failed on {} gateway, failing over", route.id);
+        }
+        if (failedResponse != null) {
+            return failedResponse;
+        }
+        throw failure;
+    }
+
+    @Override
+    public GatewayResponse acknowledge(UUID orderId, Map<String, List<String>> data) throws GatewayException {
+        String gatewayId = origins.getIfPresent(orderId);
+        if (gatewayId != null) {
+            return acknowledge(gatewayId, orderId, data);
+        }
+        for (Route route : routes) {
+            if (route.gateway.isNotification(data)) {
+                return route.gateway.acknowledge(orderId, data);
+            }
+        }
+        throw new GatewayException("No gateway recognizes the notification of order " + orderId);
+    }
+
+    /**
+     * Acknowledges a notification on a given gateway, for orders whose purchase this gateway does not remember.
+     *
+     * @param gatewayId the {@link PaymentOperation#getGatewayId() gateway ID} of the operation the notification is
+     *        about
+     */
+    public GatewayResponse acknowledge(String gatewayId, UUID orderId, Map<String, List<String>> data)
+            throws GatewayException {
+        for (Route route : routes) {
+            if (route.id.equals(gatewayId)) {
+                return route.gateway.acknowledge(orderId, data);
+            }
+        }
+        throw new GatewayException("Unknown gateway " + gatewayId);
+    }
+
+    @Override
+    public GatewayResponse acknowledge(Map<String, List<String>> data) throws GatewayException {
+        throw new RuntimeException("Not implemented : use the version with the order ID instead");
+    }
+
+    @Override
+    public GatewayResponse callback(Map<String, List<String>> data) throws GatewayException {
+        throw new RuntimeException("Not supported");
+    }
+
+    @Override
+    public ListenableFuture<GatewayResponse> purchaseAsync(BigDecimal amount, Map<PaymentData, Object> options) {
+        return GatewayExecutors.purchase(GatewayExecutors.getDefault(), this, amount, options);
+    }
+
+    @Override
+    public ListenableFuture<GatewayResponse> acknowledgeAsync(UUID orderId, Map<String, List<String>> data) {
+        return GatewayExecutors.acknowledge(GatewayExecutors.getDefault(), this, orderId, data);
+    }
+
+    /**
+     * @return the current score of each gateway, lower being healthier, for diagnostics
+     */
+    public Map<String, Double> getScores() {
+        ImmutableMap.Builder<String, Double> scores = ImmutableMap.builder();
+        for (Route route : routes) {
+            scores.put(route.id, route.score());
+        }
+        return scores.build();
+    }
+
+    /**
+     * @return the gateways in the order to try them
+     */
+    private List<Route> rank() {
+        // Scores are read once, since they change while sorting
+        int size = routes.size();
+        Route[] ranked = routes.toArray(new Route[size]);
+        double[] scores = new double[size];
+        for (int i = 0; i < size; i++) {
+            scores[i] = ranked[i].score();
+        }
+        for (int i = 1; i < size; i++) {
+            for (int j = i; j > 0 && scores[j] < scores[j - 1]; j--) {
+                swap(ranked, scores, j, j - 1);
+            }
+        }
+
+        if (size > 1 && purchases.incrementAndGet() % PROBE_INTERVAL == 0) {
+            int stalest = 0;
+            for (int i = 1; i < size; i++) {
+                if (ranked[i].lastUsed < ranked[stalest].lastUsed) {
+                    stalest = i;
+                }
+            }
+            for (int j = stalest; j > 0; j--) {
+                swap(ranked, scores, j, j - 1);
+            }
+        }
+
+        List<Route> order = new ArrayList<>(size);
+        for (Route route : ranked) {
+            order.add(route);
+        }
+        return order;
+    }
+
+    private static void swap(Route[] routes, double[] scores, int i, int j) {
+        Route route = routes[i];
+        routes[i] = routes[j];
+        routes[j] = route;
+        double score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+
+    /**
+     * @return whether the purchase failed, as opposed to being refused
+     */
+    private static boolean isFailed(GatewayResponse response) {
+        if (response.isSuccessful()) {
+            return false;
+        }
+        PaymentOperation operation = response.getOperation();
+        return operation == null || operation.getResult() != PaymentOperation.Result.REFUSED;
+    }
+
+    private void remember(Map<PaymentData, Object> options, Route route, GatewayResponse response) {
+        UUID orderId = getOrderId(options);
+        if (orderId == null) {
+            return;
+        }
+        PaymentOperation operation = response.getOperation();
+        origins.put(orderId, operation != null && operation.getGatewayId() != null
+                ? operation.getGatewayId()
+                : route.id);
+    }
+
+    private static UUID getOrderId(Map<PaymentData, Object> options) {
+        Object orderId = options.get(BasePaymentData.ORDER_ID);
+        if (orderId != null) {
+            return orderId instanceof UUID ? (UUID) orderId : UUID.fromString(orderId.toString());
+        }
+        Order order = (Order) options.get(BasePaymentData.ORDER);
+        return order != null ? order.getId() : null;
+    }
+
+    /**
+     * A gateway and the moving averages of its purchases.
+     */
+    private static class Route
+    {
+        private final String id;
+
+        private final RedirectPaymentGateway gateway;
+
+        private double latency;
+
+        private double errorRate;
+
+        private volatile long lastUsed;
+
+        Route(String id, RedirectPaymentGateway gateway) {
+            this.id = id;
+            this.gateway = gateway;
+        }
+
+        synchronized void record(long elapsed, boolean failed) {
+            latency += ALPHA * (elapsed - latency);
+            errorRate += ALPHA * ((failed ? 1 : 0) - errorRate);
+            lastUsed = System.nanoTime();
+        }
+
+        synchronized double score() {
+            return latency + FAILURE_COST * errorRate;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @version $Id$
+ */
+public class FailoverTenantConfiguration
+{
+    /**
+     * IDs of the gateway factories of the gateways to route to, in order of preference.
+     */
+    private List<String> gateways = Collections.emptyList();
+
+    public List<String> getGateways() {
+        return gateways;
+    }
+}
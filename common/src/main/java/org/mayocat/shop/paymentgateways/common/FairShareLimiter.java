@@ -0,0 +1,107 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the concurrent calls that tenants make through a shared resource, such as a connection pool, to their fair
+ * share of it.
+ *
+ * A tenant alone may use the whole capacity ; when several tenants have calls in flight, each may only start calls
+ * while it holds fewer than the capacity divided by the number of such tenants. A tenant above its share is refused
+ * right away rather than queued, until its calls in flight complete. Counters are atomic, nothing blocks.
+ *
+ * @version $Id$
+ */
+public class FairShareLimiter
+{
+    private volatile int capacity;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicInteger activeTenants = new AtomicInteger();
+
+    private final ConcurrentMap<String, AtomicInteger> tenants = new ConcurrentHashMap<>();
+
+    /**
+     * @param capacity the number of concurrent calls the resource allows
+     */
+    public FairShareLimiter(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param tenant the tenant making the call
+     * @return true if the call may start, in which case {@link #release(String)} must be called once it completes
+     */
+    public boolean tryAcquire(String tenant) {
+        AtomicInteger count = getCount(tenant);
+        while (true) {
+            int current = count.get();
+            int active = activeTenants.get() + (current == 0 ? 1 : 0);
+            int share = Math.max(1, capacity / Math.max(1, active));
+            if (current >= share || inFlight.get() >= capacity) {
+                return false;
+            }
+            if (count.compareAndSet(current, current + 1)) {
+                if (current == 0) {
+                    activeTenants.incrementAndGet();
+                }
+                if (inFlight.incrementAndGet() > capacity) {
+                    // Lost a race for the last slots
+                    release(tenant);
+                    return false;
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param tenant the tenant whose call completed
+     */
+    public void release(String tenant) {
+        inFlight.decrementAndGet();
+        if (getCount(tenant).decrementAndGet() == 0) {
+            activeTenants.decrementAndGet();
+        }
+    }
+
+    /**
+     * @param capacity the new number of concurrent calls the resource allows
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of calls in flight
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of tenants with calls in flight
+     */
+    public int getActiveTenants() {
+        return activeTenants.get();
+    }
+
+    private AtomicInteger getCount(String tenant) {
+        AtomicInteger count = tenants.get(tenant);
+        if (count == null) {
+            AtomicInteger created = new AtomicInteger();
+            count = tenants.putIfAbsent(tenant, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,46 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Helpers for the connections of gateways that call their provider through {@link HttpURLConnection}.
+ *
+ * @version $Id$
+ */
+public final class GatewayConnections
+{
+    private GatewayConnections() {
+    }
+
+    /**
+     * Makes a HEAD request to a provider, so that the TLS stack is initialized and a session with the provider is
+     * cached before the first payment. The response is read to its end and the connection is not disconnected, so that
+     * the JDK keeps it alive for the next request to the same host.
+     *
+     * @param url the URL of the provider
+     * @param timeout the connect and read timeout, in milliseconds
+     * @return the HTTP status of the response, which is not checked since any answer means the connection is open
+     * @throws IOException if the provider could not be reached
+     */
+    public static int preconnect(String url, int timeout) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("HEAD");
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        int status = connection.getResponseCode();
+        InputStream body = status >= HttpURLConnection.HTTP_BAD_REQUEST
+                ? connection.getErrorStream()
+                : connection.getInputStream();
+        if (body != null) {
+            byte[] buffer = new byte[512];
+            while (body.read(buffer) >= 0) {
+                // Drained, so that the connection can be reused
+            }
+            body.close();
+        }
+        return status;
+    }
+}
@@ -0,0 +1,146 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.mayocat.shop.payment.GatewayException;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentData;
+import org.mayocat.shop.payment.PaymentGateway;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executors running the asynchronous gateway operations.
+ *
+ * By default operations run on virtual threads when the JVM supports them (Java 21 and later), and on a bounded pool
+ * of {@value #DEFAULT_THREADS} daemon threads otherwise. Setting the {@value #THREADS_PROPERTY} system property to a
+ * positive number switches to a bounded pool of that many threads instead. Bounded pools queue as many operations as
+ * the {@value #QUEUE_SIZE_PROPERTY} system property sets : beyond that, operations are rejected, and their futures fail
+ * with a {@link GatewayException} at once.
+ *
+ * @version $Id$
+ */
+public final class GatewayExecutors
+{
+    public static final String THREADS_PROPERTY = "mayocat.paymentgateways.threads";
+
+    public static final String QUEUE_SIZE_PROPERTY = "mayocat.paymentgateways.queueSize";
+
+    private static final int DEFAULT_THREADS = 64;
+
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    private static final String THREAD_NAME_FORMAT = "payment-gateway-%d";
+
+    private GatewayExecutors() {
+    }
+
+    /**
+     * @return the process-wide executor for asynchronous gateway operations
+     */
+    public static ListeningExecutorService getDefault() {
+        return DefaultExecutor.INSTANCE;
+    }
+
+    /**
+     * @param threads the maximum number of threads
+     * @param queueSize the maximum number of operations waiting for a thread, beyond which operations are rejected
+     * @return a new bounded executor
+     */
+    public static ListeningExecutorService newBoundedExecutor(int threads, int queueSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), threadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return MoreExecutors.listeningDecorator(executor);
+    }
+
+    /**
+     * Runs {@link PaymentGateway#purchase(BigDecimal, Map)} on an executor.
+     */
+    public static ListenableFuture<GatewayResponse> purchase(ListeningExecutorService executor,
+            final PaymentGateway gateway, final BigDecimal amount, final Map<PaymentData, Object> options) {
+        return submit(executor, new Callable<GatewayResponse>()
+        {
+            @Override
+            public GatewayResponse call() throws Exception {
+                return gateway.purchase(amount, options);
+            }
+        });
+    }
+
+    /**
+     * Runs {@link PaymentGateway#acknowledge(UUID, Map)} on an executor.
+     */
+    public static ListenableFuture<GatewayResponse> acknowledge(ListeningExecutorService executor,
+            final PaymentGateway gateway, final UUID orderId, final Map<String, List<String>> data) {
+        return submit(executor, new Callable<GatewayResponse>()
+        {
+            @Override
+            public GatewayResponse call() throws Exception {
+                return gateway.acknowledge(orderId, data);
+            }
+        });
+    }
+
+    /**
+     * @return the future of the operation, failed with a {@link GatewayException} if the executor rejected it
+     */
+    private static ListenableFuture<GatewayResponse> submit(ListeningExecutorService executor,
+            Callable<GatewayResponse> operation) {
+        try {
+            return executor.submit(operation);
+        } catch (RejectedExecutionException e) {
+            return Futures.immediateFailedFuture(
+                    new GatewayException("Too many asynchronous gateway operations waiting", e));
+        }
+    }
+
+    private static ThreadFactory threadFactory() {
+        return new ThreadFactoryBuilder().setNameFormat(THREAD_NAME_FORMAT).setDaemon(true).build();
+    }
+
+    /**
+     * Lazy holder for the default executor.
+     */
+    private static class DefaultExecutor
+    {
+        private static final Logger LOGGER = LoggerFactory.getLogger(GatewayExecutors.class);
+
+        private static final ListeningExecutorService INSTANCE = create();
+
+        private static ListeningExecutorService create() {
+            int threads = Integer.getInteger(THREADS_PROPERTY, 0);
+            if (threads > 0) {
+                int queueSize = Integer.getInteger(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE);
+                LOGGER.info("Running asynchronous gateway operations on {} threads", threads);
+                return newBoundedExecutor(threads, queueSize);
+            }
+
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                LOGGER.info("Running asynchronous gateway operations on virtual threads");
+                return MoreExecutors.listeningDecorator((ExecutorService) factory.invoke(null));
+            } catch (ReflectiveOperationException e) {
+                int queueSize = Integer.getInteger(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE);
+                LOGGER.info("Running asynchronous gateway operations on {} threads", DEFAULT_THREADS);
+                return newBoundedExecutor(DEFAULT_THREADS, queueSize);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.mayocat.shop.payment.PaymentGateway;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the gateway instances a factory created, so that tenants get the same, already warmed up, gateway from one
+ * payment to the other. Cached gateways must therefore be thread-safe.
+ *
+ * A gateway is cached along with the objects it was created from (its configuration, key store...) : it is only
+ * handed out again as long as the factory still has the very same objects, which is the case until a configuration
+ * file changes. Gateways that are replaced or evicted are closed when they implement {@link Closeable}, so that they
+ * release what they hold for their tenant, such as the circuit breaker reported by the tenant metrics.
+ *
+ * @version $Id$
+ */
+public class GatewayInstanceCache
+{
+    private static final long DEFAULT_MAXIMUM_SIZE = 10000;
+
+    private static final long DEFAULT_EXPIRATION_HOURS = 1;
+
+    private final Logger logger = LoggerFactory.getLogger(GatewayInstanceCache.class);
+
+    private final Cache<String, Entry> gateways;
+
+    public GatewayInstanceCache() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRATION_HOURS, TimeUnit.HOURS);
+    }
+
+    public GatewayInstanceCache(long maximumSize, long expiration, TimeUnit unit) {
+        this.gateways = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expiration, unit)
+                .removalListener(new RemovalListener<String, Entry>()
+                {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, Entry> notification) {
+                        close(notification.getKey(), notification.getValue());
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * @param key the key of the gateway, usually the tenant slug
+     * @param sources the objects the gateway is created from
+     * @return the cached gateway, or null if there is none or it was created from other objects
+     */
+    public PaymentGateway get(String key, Object... sources) {
+        Entry entry = gateways.getIfPresent(key);
+        return entry != null && entry.isCreatedFrom(sources) ? entry.gateway : null;
+    }
+
+    /**
+     * @param key the key of the gateway, usually the tenant slug
+     * @param gateway the gateway to cache
+     * @param sources the objects the gateway was created from
+     */
+    public void put(String key, PaymentGateway gateway, Object... sources) {
+        gateways.put(key, new Entry(gateway, sources));
+    }
+
+    public void invalidateAll() {
+        gateways.invalidateAll();
+    }
+
+    private void close(String key, Entry entry) {
+        if (entry == null || !(entry.gateway instanceof Closeable)) {
+            return;
+        }
+        try {
+            ((Closeable) entry.gateway).close();
+        } catch (IOException e) {
+            logger.warn("Failed to close payment gateway of {}", key, e);
+        }
+    }
+
+    private static class Entry
+    {
+        private final PaymentGateway gateway;
+
+        private final Object[] sources;
+
+        Entry(PaymentGateway gateway, Object[] sources) {
+            this.gateway = gateway;
+            this.sources = sources;
+        }
+
+        boolean isCreatedFrom(Object[] current) {
+            if (current.length != sources.length) {
+                return false;
+            }
+            for (int i = 0; i < sources.length; i++) {
+                if (current[i] != sources[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.UUID;
+import org.mayocat.shop.payment.model.PaymentOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The calls of a gateway for a tenant, recorded to the {@link MappedJournal journal} of the node.
+ *
+ * @version $Id$
+ */
+public class GatewayJournal
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(GatewayJournal.class);
+
+    private final MappedJournal journal;
+
+    private final String gatewayId;
+
+    private final String tenant;
+
+    /**
+     * @param journal the journal, or null not to record calls
+     * @param gatewayId the gateway
+     * @param tenant the slug of the tenant
+     */
+    public GatewayJournal(MappedJournal journal, String gatewayId, String tenant) {
+        this.journal = journal;
+        this.gatewayId = gatewayId;
+        this.tenant = tenant;
+    }
+
+    /**
+     * @param gatewayId the gateway
+     * @return a journal that does not record calls, for gateways created outside of the platform
+     */
+    public static GatewayJournal unjournaled(String gatewayId) {
+        return new GatewayJournal(null, gatewayId, null);
+    }
+
+    /**
+     * Records the intent of a call, and waits for it to be on disk : the call must only be made once this returns.
+     *
+     * When the journal cannot record the intent, because it is full of calls whose outcome is unknown for example, the
+     * call is made without being journaled : payments go on, without the journal to recover them if the node dies.
+     *
+     * @param orderId the order paid
+     * @param reference what identifies the call at the provider
+     * @return the entry of the call
+     * @throws InterruptedIOException if interrupted while waiting for the intent to be on disk, in which case the call
+     *         must not be made
+     */
+    public JournalEntry begin(UUID orderId, String reference) throws InterruptedIOException {
+        if (journal != null) {
+            try {
+                return journal.begin(gatewayId, tenant, orderId, reference);
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (IOException e) {
+                LOGGER.error("Failed to journal {} call for order {}, making it anyway", gatewayId, orderId, e);
+            }
+        }
+        return new JournalEntry(0, System.currentTimeMillis(), gatewayId, tenant, orderId, reference);
+    }
+
+    /**
+     * Records the outcome of a call, without waiting for it to be on disk : if it is lost, the outcome is found out
+     * again from the provider.
+     *
+     * Calls whose outcome is unknown, after a connection error for example, are left unresolved.
+     *
+     * @param entry the entry of the call
+     * @param result the result of the call
+     * @param externalId the identifier of the payment at the provider, if the call got one
+     */
+    public void complete(JournalEntry entry, PaymentOperation.Result result, String externalId) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.complete(entry, result, externalId);
+        } catch (IOException e) {
+            LOGGER.warn("Failed to journal the outcome of {} call for order {}", gatewayId, entry.getOrderId(), e);
+        }
+    }
+}
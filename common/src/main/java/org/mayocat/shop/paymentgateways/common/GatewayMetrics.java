@@ -0,0 +1,259 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricFilter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Timer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.mayocat.shop.payment.CreditCardError;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.model.PaymentOperation;
+
+/**
+ * The metrics of the operations of a gateway, for one tenant.
+ *
+ * Metrics are named {@code payments.<gatewayId>.<tenant>.<operation>}, with {@code .remote} and {@code .local} timers
+ * telling the time spent waiting for the provider apart from the time spent in the gateway (signing, parsing...).
+ * Outcomes are counted under {@code .results.<result>}, card errors under {@code .cardErrors.<error>}, exceptions
+ * under {@code .failures} and calls refused by the outbound rate limits under {@code .rateLimited}.
+ *
+ * The state of the {@link #watch(CircuitBreaker) watched} circuit breaker is reported by the {@code .circuit.state}
+ * gauge, as 0 when closed, 1 when open and 2 when half open. Calls refused by the breaker are counted under
+ * {@code .circuit.rejected}, and calls refused by the bulkhead of the gateway under {@code .bulkhead.rejected}.
+ *
+ * All metrics are resolved when this object is created, and timers keep a small fixed window of samples, so that
+ * recording does not allocate. Only the operations the gateway has are timed. The metrics replace those registered
+ * under the same names by previous metrics of the tenant, and are removed from the registry by {@link #unregister()}
+ * once no longer used.
+ *
+ * @version $Id$
+ */
+public class GatewayMetrics
+{
+    /**
+     * The operations of a gateway.
+     */
+    public enum Operation
+    {
+        PURCHASE,
+        ACKNOWLEDGE,
+        CALLBACK,
+        CREATE_GATEWAY;
+
+        private final String metricName;
+
+        Operation() {
+            String[] words = name().toLowerCase(Locale.ROOT).split("_");
+            StringBuilder builder = new StringBuilder(words[0]);
+            for (int i = 1; i < words.length; i++) {
+                builder.append(Character.toUpperCase(words[i].charAt(0))).append(words[i].substring(1));
+            }
+            this.metricName = builder.toString();
+        }
+    }
+
+    private static final int SAMPLES = 128;
+
+    private final MetricRegistry registry;
+
+    /**
+     * The prefix of the names of the metrics, dot included.
+     */
+    private final String namePrefix;
+
+    /**
+     * The metrics registered by this object, by identity.
+     */
+    private final Set<Metric> metrics = Collections.newSetFromMap(new IdentityHashMap<Metric, Boolean>());
+
+    private final Timer[] timers = new Timer[Operation.values().length];
+
+    private final Timer[] remoteTimers = new Timer[Operation.values().length];
+
+    private final Timer[] localTimers = new Timer[Operation.values().length];
+
+    private final Counter[] results = new Counter[PaymentOperation.Result.values().length];
+
+    private final Counter[] cardErrors = new Counter[CreditCardError.values().length];
+
+    private final Counter failures;
+
+    private final Counter rateLimited;
+
+    private final Counter circuitRejected;
+
+    private final Counter bulkheadRejected;
+
+    private final AtomicReference<CircuitBreaker> circuitBreaker = new AtomicReference<>();
+
+    /**
+     * @param registry the registry to register the metrics in
+     * @param gatewayId the gateway
+     * @param tenant the tenant slug
+     * @param operations the operations of the gateway, the only ones timed
+     */
+    public GatewayMetrics(MetricRegistry registry, String gatewayId, String tenant, Set<Operation> operations) {
+        this.registry = registry;
+        String prefix = MetricRegistry.name("payments", gatewayId, tenant);
+        this.namePrefix = prefix + ".";
+        for (Operation operation : operations) {
+            String name = MetricRegistry.name(prefix, operation.metricName);
+            timers[operation.ordinal()] = timer(name);
+            remoteTimers[operation.ordinal()] = timer(MetricRegistry.name(name, "remote"));
+            localTimers[operation.ordinal()] = timer(MetricRegistry.name(name, "local"));
+        }
+        for (PaymentOperation.Result result : PaymentOperation.Result.values()) {
+            results[result.ordinal()] =
+                    counter(MetricRegistry.name(prefix, "results", result.name().toLowerCase(Locale.ROOT)));
+        }
+        for (CreditCardError error : CreditCardError.values()) {
+            cardErrors[error.ordinal()] =
+                    counter(MetricRegistry.name(prefix, "cardErrors", error.name().toLowerCase(Locale.ROOT)));
+        }
+        this.failures = counter(MetricRegistry.name(prefix, "failures"));
+        this.rateLimited = counter(MetricRegistry.name(prefix, "rateLimited"));
+        this.circuitRejected = counter(MetricRegistry.name(prefix, "circuit", "rejected"));
+        this.bulkheadRejected = counter(MetricRegistry.name(prefix, "bulkhead", "rejected"));
+        register(MetricRegistry.name(prefix, "circuit", "state"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue() {
+                CircuitBreaker breaker = circuitBreaker.get();
+                return breaker == null ? 0 : breaker.getState().ordinal();
+            }
+        });
+    }
+
+    /**
+     * @param gatewayId the gateway
+     * @param operations the operations of the gateway
+     * @return metrics for gateways created outside of the platform, which are recorded but not reported
+     */
+    public static GatewayMetrics unregistered(String gatewayId, Set<Operation> operations) {
+        return new GatewayMetrics(new MetricRegistry(), gatewayId, "unregistered", operations);
+    }
+
+    /**
+     * Removes the metrics from the registry. Those registered since under the same names by other metrics of the
+     * tenant are kept.
+     */
+    public void unregister() {
+        registry.removeMatching(new MetricFilter()
+        {
+            @Override
+            public boolean matches(String name, Metric metric) {
+                return name.startsWith(namePrefix) && metrics.contains(metric);
+            }
+        });
+    }
+
+    /**
+     * Records an operation that completed with a response.
+     *
+     * @param operation the operation
+     * @param start the {@link System#nanoTime()} at which the operation started
+     * @param remote the nanoseconds spent waiting for the provider during the operation
+     * @param response the response of the operation, its result is counted
+     */
+    public void record(Operation operation, long start, long remote, GatewayResponse response) {
+        recordTime(operation, start, remote);
+        if (response != null && response.getOperation() != null && response.getOperation().getResult() != null) {
+            results[response.getOperation().getResult().ordinal()].inc();
+        }
+    }
+
+    /**
+     * Records an operation that failed with an exception.
+     *
+     * @param operation the operation
+     * @param start the {@link System#nanoTime()} at which the operation started
+     * @param remote the nanoseconds spent waiting for the provider during the operation
+     */
+    public void recordFailure(Operation operation, long start, long remote) {
+        recordTime(operation, start, remote);
+        failures.inc();
+    }
+
+    /**
+     * Records a call refused by the outbound rate limits of the tenant, before reaching the provider.
+     */
+    public void recordRateLimited() {
+        rateLimited.inc();
+    }
+
+    /**
+     * Records a call refused because the circuit breaker of the tenant is open.
+     */
+    public void recordCircuitOpen() {
+        circuitRejected.inc();
+    }
+
+    /**
+     * Records a call refused because the bulkhead of the gateway is full.
+     */
+    public void recordBulkheadFull() {
+        bulkheadRejected.inc();
+    }
+
+    /**
+     * @param breaker the circuit breaker of the tenant, whose state to report
+     */
+    public void watch(CircuitBreaker breaker) {
+        circuitBreaker.set(breaker);
+    }
+
+    /**
+     * Stops reporting the state of a breaker, when the gateway owning it is closed. Does nothing if another breaker
+     * has been watched since.
+     *
+     * @param breaker the circuit breaker of the closed gateway
+     */
+    public void unwatch(CircuitBreaker breaker) {
+        circuitBreaker.compareAndSet(breaker, null);
+    }
+
+    public void recordCardError(CreditCardError error) {
+        cardErrors[error.ordinal()].inc();
+    }
+
+    private void recordTime(Operation operation, long start, long remote) {
+        int index = operation.ordinal();
+        if (timers[index] == null) {
+            // Not an operation of the gateway
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        timers[index].update(elapsed, TimeUnit.NANOSECONDS);
+        if (remote > 0) {
+            remoteTimers[index].update(remote, TimeUnit.NANOSECONDS);
+        }
+        localTimers[index].update(Math.max(0, elapsed - remote), TimeUnit.NANOSECONDS);
+    }
+
+    private Timer timer(String name) {
+        // The default reservoir allocates a sample per update, a sliding window of samples does not
+        return register(name, new Timer(new SlidingWindowReservoir(SAMPLES)));
+    }
+
+    private Counter counter(String name) {
+        return register(name, new Counter());
+    }
+
+    /**
+     * Registers a metric in place of the one of previous metrics of the tenant, if any.
+     */
+    private <T extends Metric> T register(String name, T metric) {
+        registry.remove(name);
+        registry.register(name, metric);
+        metrics.add(metric);
+        return metric;
+    }
+}
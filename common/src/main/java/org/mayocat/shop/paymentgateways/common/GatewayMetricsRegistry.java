@@ -0,0 +1,21 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.util.Set;
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Hands out the {@link GatewayMetrics} of each gateway and tenant.
+ *
+ * @version $Id$
+ */
+@Role
+public interface GatewayMetricsRegistry
+{
+    /**
+     * @param gatewayId the gateway
+     * @param tenant the tenant slug
+     * @param operations the operations of the gateway, the only ones timed
+     * @return the metrics of the gateway for the tenant
+     */
+    GatewayMetrics get(String gatewayId, String tenant, Set<GatewayMetrics.Operation> operations);
+}
@@ -0,0 +1,35 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Warms up the {@link WarmableGatewayFactory gateway factories} and the tenants using them, so that the first
+ * checkout after a deploy or after a tenant is activated does not pay for it.
+ *
+ * @version $Id$
+ */
+@Role
+public interface GatewayWarmUp
+{
+    /**
+     * Warms up all factories, and all the tenants that have a configuration for them.
+     *
+     * @return completes once all warm-ups have run, whether they succeeded or not
+     */
+    ListenableFuture<Void> warmUp();
+
+    /**
+     * Warms up a tenant, for example once it is activated.
+     *
+     * @param tenant the tenant slug
+     * @return completes once the warm-ups of the tenant have run, whether they succeeded or not
+     */
+    ListenableFuture<Void> warmUp(String tenant);
+
+    /**
+     * @return true once the warm-up started when this component was initialized has completed, so that the node can
+     *         be given traffic
+     */
+    boolean isReady();
+}
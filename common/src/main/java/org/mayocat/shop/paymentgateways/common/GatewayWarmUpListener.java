@@ -0,0 +1,52 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.util.Arrays;
+import java.util.List;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import org.mayocat.accounts.model.Tenant;
+import org.mayocat.model.event.EntityCreatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.ApplicationStartedEvent;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Starts the {@link GatewayWarmUp} : components are created lazily, so nothing would otherwise load it before the
+ * first checkout. All gateways and tenants are warmed up once the application has started, and tenants again when
+ * they are created.
+ *
+ * @version $Id$
+ */
+@Component(GatewayWarmUpListener.NAME)
+@Singleton
+public class GatewayWarmUpListener implements EventListener
+{
+    public static final String NAME = "paymentGatewayWarmUp";
+
+    /**
+     * Looked up on the first event only, since initializing the warm-up starts it.
+     */
+    @Inject
+    private Provider<GatewayWarmUp> warmUp;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents() {
+        return Arrays.<Event>asList(new ApplicationStartedEvent(), new EntityCreatedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data) {
+        if (event instanceof ApplicationStartedEvent) {
+            warmUp.get();
+        } else if (source instanceof Tenant) {
+            warmUp.get().warmUp(((Tenant) source).getSlug());
+        }
+    }
+}
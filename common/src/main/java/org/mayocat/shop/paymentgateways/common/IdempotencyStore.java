@@ -0,0 +1,32 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import org.mayocat.shop.payment.GatewayResponse;
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Remembers the responses given to provider notifications (IPNs, return URLs), so that a notification the provider
+ * retries, or a return URL the browser hits again, gets the very same response back without being processed twice.
+ *
+ * Keys are built by the gateways as {@code gatewayId:externalId:discriminator}, where the discriminator tells two
+ * notifications about the same transaction apart (their signature, their status...).
+ *
+ * The default implementation keeps responses in memory ; a store shared between nodes can be provided by registering
+ * another implementation of this role.
+ *
+ * @version $Id$
+ */
+@Role
+public interface IdempotencyStore
+{
+    /**
+     * @param key the notification key
+     * @return the response previously stored for this key, or null if there is none
+     */
+    GatewayResponse get(String key);
+
+    /**
+     * @param key the notification key
+     * @param response the response given to the notification
+     */
+    void put(String key, GatewayResponse response);
+}
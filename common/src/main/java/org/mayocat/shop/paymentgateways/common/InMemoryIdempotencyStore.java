@@ -0,0 +1,50 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.TimeUnit;
+import javax.inject.Singleton;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Default {@link IdempotencyStore}, keeping a bounded number of responses in memory for a limited time.
+ *
+ * The underlying cache is split in independently locked segments, so that concurrent notifications seldom contend.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class InMemoryIdempotencyStore implements IdempotencyStore
+{
+    private static final long DEFAULT_MAXIMUM_SIZE = 50000;
+
+    private static final long DEFAULT_EXPIRATION_HOURS = 24;
+
+    private static final int CONCURRENCY_LEVEL = 16;
+
+    private final Cache<String, GatewayResponse> responses;
+
+    public InMemoryIdempotencyStore() {
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRATION_HOURS, TimeUnit.HOURS);
+    }
+
+    public InMemoryIdempotencyStore(long maximumSize, long expiration, TimeUnit unit) {
+        this.responses = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expiration, unit)
+                .concurrencyLevel(CONCURRENCY_LEVEL)
+                .build();
+    }
+
+    @Override
+    public GatewayResponse get(String key) {
+        return responses.getIfPresent(key);
+    }
+
+    @Override
+    public void put(String key, GatewayResponse response) {
+        responses.put(key, response);
+    }
+}
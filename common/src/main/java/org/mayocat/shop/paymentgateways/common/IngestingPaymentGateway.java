@@ -0,0 +1,30 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.mayocat.shop.payment.GatewayException;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentGateway;
+
+/**
+ * A payment gateway that answers provider notifications as soon as they are verified, and processes them downstream
+ * on a {@link NotificationPipeline}, so that slow order processing does not make the provider time out and resend.
+ *
+ * @version $Id$
+ */
+public interface IngestingPaymentGateway extends PaymentGateway
+{
+    /**
+     * Verifies a notification and queues it for the handler.
+     *
+     * @param orderId the order the notification is about
+     * @param data the notification parameters, as for {@link PaymentGateway#acknowledge(UUID, Map)}
+     * @param handler processes the notification once verified
+     * @return the response to give the provider, or the {@link NotificationPipeline#retryLater() retry later}
+     *         response when the pipeline is full
+     * @throws GatewayException if the notification is not authentic
+     */
+    GatewayResponse ingest(UUID orderId, Map<String, List<String>> data, NotificationHandler handler)
+            throws GatewayException;
+}
@@ -0,0 +1,107 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.util.UUID;
+import org.mayocat.shop.payment.model.PaymentOperation;
+
+/**
+ * A remote gateway call recorded in the {@link MappedJournal journal} : its intent, written before the call, and its
+ * outcome once known.
+ *
+ * @version $Id$
+ */
+public class JournalEntry
+{
+    private final long id;
+
+    private final long time;
+
+    private final String gatewayId;
+
+    private final String tenant;
+
+    private final UUID orderId;
+
+    private final String reference;
+
+    private volatile PaymentOperation.Result result;
+
+    private volatile String externalId;
+
+    private volatile long resolvedTime;
+
+    /**
+     * @param id the sequence number of the entry in the journal
+     * @param time the time the call was made, in milliseconds since the epoch
+     * @param gatewayId the gateway called
+     * @param tenant the slug of the tenant the call was made for
+     * @param orderId the order paid
+     * @param reference what identifies the call at the provider : the idempotency key of a Stripe charge, the track ID
+     *        of a MonetaWeb payment...
+     */
+    public JournalEntry(long id, long time, String gatewayId, String tenant, UUID orderId, String reference) {
+        this.id = id;
+        this.time = time;
+        this.gatewayId = gatewayId;
+        this.tenant = tenant;
+        this.orderId = orderId;
+        this.reference = reference;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getGatewayId() {
+        return gatewayId;
+    }
+
+    public String getTenant() {
+        return tenant;
+    }
+
+    public UUID getOrderId() {
+        return orderId;
+    }
+
+    public String getReference() {
+        return reference;
+    }
+
+    /**
+     * @return whether the outcome of the call is known
+     */
+    public boolean isResolved() {
+        return resolvedTime != 0;
+    }
+
+    /**
+     * @return the result of the call, null until it is resolved
+     */
+    public PaymentOperation.Result getResult() {
+        return result;
+    }
+
+    /**
+     * @return the identifier of the payment at the provider, if the call got one
+     */
+    public String getExternalId() {
+        return externalId;
+    }
+
+    /**
+     * @return the time the outcome of the call was known, in milliseconds since the epoch, 0 until then
+     */
+    public long getResolvedTime() {
+        return resolvedTime;
+    }
+
+    void resolve(PaymentOperation.Result result, String externalId, long time) {
+        this.result = result;
+        this.externalId = externalId;
+        this.resolvedTime = time;
+    }
+}
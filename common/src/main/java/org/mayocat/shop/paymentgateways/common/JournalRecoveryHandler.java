@@ -0,0 +1,22 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import org.mayocat.shop.payment.GatewayResponse;
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Finds out the outcome of a gateway call left unresolved, by the node dying or by a connection error, from the
+ * provider. Implementations are registered with the ID of their gateway as hint.
+ *
+ * @version $Id$
+ */
+@Role
+public interface JournalRecoveryHandler
+{
+    /**
+     * @param entry the unresolved entry of the call
+     * @return the response of the gateway to the call, or null if its outcome cannot be known yet, in which case the
+     *         entry is recovered again later
+     * @throws Exception if the provider could not be asked, in which case the entry is recovered again later
+     */
+    GatewayResponse recover(JournalEntry entry) throws Exception;
+}
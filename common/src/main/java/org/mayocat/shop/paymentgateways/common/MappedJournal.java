@@ -0,0 +1,467 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.google.common.base.Strings;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import org.mayocat.shop.payment.model.PaymentOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of {@link JournalEntry gateway calls}, in memory-mapped segment files.
+ *
+ * Records are framed by their length and CRC32, so that a record torn by a crash is detected and ignored when the
+ * journal is read back. Appends are copied to the mapped segment under a lock, and a committer thread flushes the
+ * segment to disk : the records appended while a flush is in progress are flushed together by the next one, so that
+ * concurrent calls share fsyncs instead of paying one each.
+ *
+ * When a segment is full, the entries still needed, unresolved ones younger than the expiry and resolved ones younger
+ * than the retention, are copied to a new segment and the previous one is deleted : the journal never grows beyond a
+ * segment or two. Unresolved entries older than the expiry are given up, so that calls whose outcome is never found
+ * out cannot fill the journal.
+ *
+ * @version $Id$
+ */
+public class MappedJournal implements Closeable
+{
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedJournal.class);
+
+    private static final String SEGMENT_PREFIX = "journal-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final byte INTENT = 1;
+
+    private static final byte OUTCOME = 2;
+
+    /**
+     * Length and CRC32 of a record.
+     */
+    private static final int HEADER_SIZE = 8;
+
+    private static final PaymentOperation.Result[] RESULTS = PaymentOperation.Result.values();
+
+    private final File directory;
+
+    private final int segmentSize;
+
+    private final long retention;
+
+    private final long expiry;
+
+    private final Object lock = new Object();
+
+    /**
+     * Entries still needed, by ID : in the order they were begun.
+     */
+    private final Map<Long, JournalEntry> entries = new LinkedHashMap<>();
+
+    private long segmentNumber;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer segment;
+
+    private long nextId = 1;
+
+    private int pending;
+
+    /**
+     * Bytes appended since the journal was opened, across segments.
+     */
+    private long written;
+
+    /**
+     * Bytes appended since the journal was opened and known to be on disk.
+     */
+    private long durable;
+
+    private boolean closed;
+
+    /**
+     * @param directory the directory of the segment files
+     * @param segmentSize the size of the segment files, in bytes
+     * @param retention the time resolved entries are kept, in milliseconds
+     * @param expiry the time unresolved entries are kept, in milliseconds
+     */
+    public MappedJournal(File directory, int segmentSize, long retention, long expiry) {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retention = retention;
+        this.expiry = expiry;
+    }
+
+    /**
+     * Reads back the segments left by the previous run, starts a new segment with the entries still needed, and
+     * starts the committer.
+     *
+     * @return the entries of the previous run still needed
+     * @throws IOException if the journal cannot be read or written
+     */
+    public List<JournalEntry> open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create journal directory " + directory);
+        }
+        synchronized (lock) {
+            File[] files = listSegments();
+            for (File file : files) {
+                read(file);
+                segmentNumber = Math.max(segmentNumber, getSegmentNumber(file));
+            }
+            for (JournalEntry entry : entries.values()) {
+                nextId = Math.max(nextId, entry.getId() + 1);
+                if (!entry.isResolved()) {
+                    pending++;
+                }
+            }
+            prune(System.currentTimeMillis(), true);
+            roll(0);
+        }
+
+        Thread committer = new Thread(new Runnable()
+        {
+            @Override
+            public void run() {
+                commit();
+            }
+        }, "payment-journal-committer");
+        committer.setDaemon(true);
+        committer.start();
+
+        synchronized (lock) {
+            return new ArrayList<>(entries.values());
+        }
+    }
+
+    /**
+     * Records the intent of a call, and waits until it is on disk.
+     *
+     * @param gatewayId the gateway called
+     * @param tenant the slug of the tenant the call is made for
+     * @param orderId the order paid
+     * @param reference what identifies the call at the provider
+     * @return the entry of the call
+     * @throws IOException if the intent could not be recorded
+     */
+    public JournalEntry begin(String gatewayId, String tenant, UUID orderId, String reference) throws IOException {
+        synchronized (lock) {
+            JournalEntry entry =
+                    new JournalEntry(nextId++, System.currentTimeMillis(), gatewayId, tenant, orderId, reference);
+            long end = append(intent(entry));
+            entries.put(entry.getId(), entry);
+            pending++;
+            prune(entry.getTime(), false);
+
+            while (durable < end) {
+                if (closed) {
+                    throw new IOException("Journal closed");
+                }
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the journal to be flushed");
+                }
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Records the outcome of a call, without waiting until it is on disk.
+     *
+     * @param entry the entry of the call
+     * @param result the result of the call
+     * @param externalId the identifier of the payment at the provider, or null
+     * @throws IOException if the outcome could not be recorded
+     */
+    public void complete(JournalEntry entry, PaymentOperation.Result result, String externalId) throws IOException {
+        synchronized (lock) {
+            if (!entries.containsKey(entry.getId())) {
+                return;
+            }
+            if (!entry.isResolved()) {
+                pending--;
+            }
+            entry.resolve(result, externalId, System.currentTimeMillis());
+            append(outcome(entry));
+        }
+    }
+
+    /**
+     * @param before a time, in milliseconds since the epoch
+     * @return the entries of the calls made before the time whose outcome is unknown
+     */
+    public List<JournalEntry> getUnresolved(long before) {
+        List<JournalEntry> unresolved = new ArrayList<>();
+        synchronized (lock) {
+            for (JournalEntry entry : entries.values()) {
+                if (!entry.isResolved() && entry.getTime() < before) {
+                    unresolved.add(entry);
+                }
+            }
+        }
+        return unresolved;
+    }
+
+    /**
+     * @return the number of calls whose outcome is unknown
+     */
+    public int getPending() {
+        synchronized (lock) {
+            return pending;
+        }
+    }
+
+    /**
+     * Flushes the journal and stops recording calls.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (segment != null) {
+                segment.force();
+                durable = written;
+                channel.close();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Flushes the current segment whenever records were appended since the last flush, and wakes up the calls they
+     * are the intents of.
+     */
+    private void commit() {
+        while (true) {
+            MappedByteBuffer buffer;
+            long target;
+            synchronized (lock) {
+                while (durable >= written && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                buffer = segment;
+                target = written;
+            }
+
+            // Out of the lock, so that calls keep appending to the segment meanwhile
+            buffer.force();
+
+            synchronized (lock) {
+                durable = Math.max(durable, target);
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the position after the record once appended, to wait for
+     */
+    private long append(byte[] record) throws IOException {
+        if (closed) {
+            throw new IOException("Journal closed");
+        }
+        if (segment.remaining() < HEADER_SIZE + record.length) {
+            roll(HEADER_SIZE + record.length);
+        }
+        write(record);
+        lock.notifyAll();
+        return written;
+    }
+
+    private void write(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        segment.putInt(record.length);
+        segment.putInt((int) crc.getValue());
+        segment.put(record);
+        written += HEADER_SIZE + record.length;
+    }
+
+    /**
+     * Starts a new segment with the entries still needed, and deletes the previous ones once it is on disk.
+     *
+     * @param reserved the size of the record to append once rolled
+     */
+    private void roll(int reserved) throws IOException {
+        prune(System.currentTimeMillis(), true);
+        List<byte[]> records = new ArrayList<>();
+        for (JournalEntry entry : entries.values()) {
+            records.add(intent(entry));
+            if (entry.isResolved()) {
+                records.add(outcome(entry));
+            }
+        }
+        long size = reserved;
+        for (byte[] record : records) {
+            size += HEADER_SIZE + record.length;
+        }
+        if (size > segmentSize) {
+            // The current segment is left as it is, and calls are not journaled until entries are resolved or expire
+            throw new IOException("Journal entries do not fit in a segment of " + segmentSize + " bytes");
+        }
+
+        if (segment != null) {
+            segment.force();
+            durable = written;
+            channel.close();
+        }
+        segmentNumber++;
+        File file = new File(directory, String.format("%s%020d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        for (byte[] record : records) {
+            write(record);
+        }
+        segment.force();
+        durable = written;
+
+        for (File previous : listSegments()) {
+            if (getSegmentNumber(previous) < segmentNumber && !previous.delete()) {
+                LOGGER.warn("Failed to delete journal segment {}", previous);
+            }
+        }
+    }
+
+    /**
+     * Drops the resolved entries older than the retention, and the unresolved ones older than the expiry.
+     *
+     * @param all false to stop at the first entry still needed, which is enough to keep up on each append
+     */
+    private void prune(long now, boolean all) {
+        Iterator<JournalEntry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            JournalEntry entry = iterator.next();
+            if (entry.isResolved() && now - entry.getResolvedTime() > retention) {
+                iterator.remove();
+            } else if (!entry.isResolved() && now - entry.getTime() > expiry) {
+                LOGGER.error("Giving up on finding out the outcome of {} call for order {}", entry.getGatewayId(),
+                        entry.getOrderId());
+                iterator.remove();
+                pending--;
+            } else if (!all) {
+                return;
+            }
+        }
+    }
+
+    private void read(File file) throws IOException {
+        try (FileChannel readChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, readChannel.size());
+            while (buffer.remaining() >= HEADER_SIZE) {
+                int length = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining() - 4) {
+                    // The end of the records, the rest of the segment being zeroes
+                    return;
+                }
+                int checksum = buffer.getInt();
+                byte[] record = new byte[length];
+                buffer.get(record);
+                CRC32 crc = new CRC32();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) {
+                    LOGGER.warn("Ignoring torn record at the end of journal segment {}", file);
+                    return;
+                }
+                read(record);
+            }
+        }
+    }
+
+    private void read(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte type = in.readByte();
+        long id = in.readLong();
+        long time = in.readLong();
+        if (type == INTENT) {
+            String gatewayId = in.readUTF();
+            String tenant = Strings.emptyToNull(in.readUTF());
+            UUID orderId = new UUID(in.readLong(), in.readLong());
+            String reference = in.readUTF();
+            entries.put(id, new JournalEntry(id, time, gatewayId, tenant, orderId, reference));
+        } else if (type == OUTCOME) {
+            PaymentOperation.Result result = RESULTS[in.readByte()];
+            String externalId = Strings.emptyToNull(in.readUTF());
+            JournalEntry entry = entries.get(id);
+            if (entry != null) {
+                entry.resolve(result, externalId, time);
+            }
+        }
+    }
+
+    private static byte[] intent(JournalEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(INTENT);
+        out.writeLong(entry.getId());
+        out.writeLong(entry.getTime());
+        out.writeUTF(entry.getGatewayId());
+        out.writeUTF(Strings.nullToEmpty(entry.getTenant()));
+        out.writeLong(entry.getOrderId().getMostSignificantBits());
+        out.writeLong(entry.getOrderId().getLeastSignificantBits());
+        out.writeUTF(entry.getReference());
+        return bytes.toByteArray();
+    }
+
+    private static byte[] outcome(JournalEntry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(OUTCOME);
+        out.writeLong(entry.getId());
+        out.writeLong(entry.getResolvedTime());
+        out.writeByte(entry.getResult().ordinal());
+        out.writeUTF(Strings.nullToEmpty(entry.getExternalId()));
+        return bytes.toByteArray();
+    }
+
+    private File[] listSegments() {
+        File[] files = directory.listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return new File[0];
+        }
+        // Segment numbers are zero padded, so that names sort in the order segments were written
+        Arrays.sort(files);
+        return files;
+    }
+
+    private static long getSegmentNumber(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
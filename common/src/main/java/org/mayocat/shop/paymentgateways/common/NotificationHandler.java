@@ -0,0 +1,23 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.util.UUID;
+import org.mayocat.shop.payment.GatewayResponse;
+
+/**
+ * Processes a verified provider notification downstream of the gateway : updating the order, sending mails...
+ *
+ * Handlers run on the workers of a {@link NotificationPipeline}, after the provider has been answered. A notification
+ * the provider retries in the meantime may be handed twice, so handlers must be idempotent.
+ *
+ * @version $Id$
+ */
+public interface NotificationHandler
+{
+    /**
+     * @param orderId the order the notification is about
+     * @param response the response of the gateway to the notification
+     * @throws Exception if processing failed, in which case the notification is handed again later, up to a bound
+     *         after which it is kept as a dead letter
+     */
+    void handle(UUID orderId, GatewayResponse response) throws Exception;
+}
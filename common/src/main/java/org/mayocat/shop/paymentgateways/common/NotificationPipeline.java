@@ -0,0 +1,344 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SlidingWindowReservoir;
+import com.codahale.metrics.Timer;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Collections;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of verified notifications, drained by a pool of workers running their {@link NotificationHandler}.
+ *
+ * When the queue is full, notifications are refused at once rather than queued without bound or processed on the
+ * provider thread : gateways then answer with the {@link #retryLater()} response, so that the provider sends the
+ * notification again later.
+ *
+ * The provider has been answered by the time a handler runs, so it will not send a notification again if its handler
+ * fails : failed notifications are handed again after a delay doubling at each attempt, and those still failing after
+ * the last attempt are kept as dead letters, in memory, until {@link #replayDeadLetters() replayed} once the cause of
+ * the failures is fixed.
+ *
+ * Queue depth, capacity, refusals, failures, retries, dead letters and processing times are reported under
+ * {@code payments.<gatewayId>.notifications}.
+ *
+ * @version $Id$
+ */
+public class NotificationPipeline
+{
+    /**
+     * Key of the {@link GatewayResponse#getData() data} of retry later responses, with the number of seconds after
+     * which to retry.
+     */
+    public static final String RETRY_AFTER = "retryAfter";
+
+    private static final int RETRY_AFTER_SECONDS = 5;
+
+    private static final int SAMPLES = 1028;
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 6;
+
+    private static final long DEFAULT_RETRY_DELAY = 2000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(NotificationPipeline.class);
+
+    private final String gatewayId;
+
+    private final int capacity;
+
+    private final int maxAttempts;
+
+    private final long retryDelay;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Hands failed notifications to the workers again once their delay has passed.
+     */
+    private final ScheduledExecutorService retries;
+
+    /**
+     * The notifications waiting for their retry delay, kept as dead letters if the pipeline is shut down meanwhile.
+     */
+    private final Set<Delivery> retrying = Collections.newSetFromMap(new ConcurrentHashMap<Delivery, Boolean>());
+
+    private final ConcurrentLinkedQueue<Delivery> deadLetters = new ConcurrentLinkedQueue<>();
+
+    private final Counter accepted;
+
+    private final Counter refused;
+
+    private final Counter failed;
+
+    private final Counter retried;
+
+    private final Timer queueTime;
+
+    private final Timer handlingTime;
+
+    /**
+     * @param gatewayId the gateway whose notifications are processed
+     * @param capacity the maximum number of notifications waiting for a worker
+     * @param workers the number of workers
+     * @param registry the registry to report to
+     */
+    public NotificationPipeline(String gatewayId, int capacity, int workers, MetricRegistry registry) {
+        this(gatewayId, capacity, workers, registry, DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_DELAY);
+    }
+
+    /**
+     * @param gatewayId the gateway whose notifications are processed
+     * @param capacity the maximum number of notifications waiting for a worker
+     * @param workers the number of workers
+     * @param registry the registry to report to
+     * @param maxAttempts the number of times a notification is handed before being kept as a dead letter
+     * @param retryDelay the delay, in milliseconds, before the first retry of a failed notification
+     */
+    NotificationPipeline(String gatewayId, int capacity, int workers, MetricRegistry registry, int maxAttempts,
+            long retryDelay) {
+        this.gatewayId = gatewayId;
+        this.capacity = capacity;
+        this.maxAttempts = maxAttempts;
+        this.retryDelay = retryDelay;
+        this.executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity),
+                new ThreadFactoryBuilder().setNameFormat(gatewayId + "-notifications-%d").setDaemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.retries = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat(gatewayId + "-notification-retries").setDaemon(true).build());
+
+        String prefix = MetricRegistry.name("payments", gatewayId, "notifications");
+        this.accepted = registry.counter(MetricRegistry.name(prefix, "accepted"));
+        this.refused = registry.counter(MetricRegistry.name(prefix, "refused"));
+        this.failed = registry.counter(MetricRegistry.name(prefix, "failed"));
+        this.retried = registry.counter(MetricRegistry.name(prefix, "retried"));
+        this.queueTime = registry.register(MetricRegistry.name(prefix, "queueTime"),
+                new Timer(new SlidingWindowReservoir(SAMPLES)));
+        this.handlingTime = registry.register(MetricRegistry.name(prefix, "handlingTime"),
+                new Timer(new SlidingWindowReservoir(SAMPLES)));
+        registry.register(MetricRegistry.name(prefix, "depth"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue() {
+                return getDepth();
+            }
+        });
+        registry.register(MetricRegistry.name(prefix, "capacity"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue() {
+                return NotificationPipeline.this.capacity;
+            }
+        });
+        registry.register(MetricRegistry.name(prefix, "deadLetters"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue() {
+                return getDeadLetterCount();
+            }
+        });
+    }
+
+    /**
+     * @return a response telling the provider to send the notification again later
+     */
+    public static GatewayResponse retryLater() {
+        GatewayResponse response = new GatewayResponse(false, null);
+        response.setData(ImmutableMap.<String, Object>of(RETRY_AFTER, RETRY_AFTER_SECONDS));
+        return response;
+    }
+
+    /**
+     * @param response a response given to a notification
+     * @return whether it is a {@link #retryLater()} response
+     */
+    public static boolean isRetryLater(GatewayResponse response) {
+        return !response.isSuccessful() && response.getOperation() == null && response.getData() != null
+                && response.getData().containsKey(RETRY_AFTER);
+    }
+
+    /**
+     * Queues a notification for its handler.
+     *
+     * @param orderId the order the notification is about
+     * @param response the response of the gateway to the notification
+     * @param handler processes the notification
+     * @return false if the queue is full and the notification was refused
+     */
+    public boolean submit(UUID orderId, GatewayResponse response, NotificationHandler handler) {
+        Delivery delivery = new Delivery(orderId, response, handler);
+        delivery.queued = System.nanoTime();
+        try {
+            executor.execute(delivery);
+            accepted.inc();
+            return true;
+        } catch (RejectedExecutionException e) {
+            refused.inc();
+            LOGGER.warn("Notification queue of {} full, asking to retry order {} later", gatewayId, orderId);
+            return false;
+        }
+    }
+
+    /**
+     * Hands the dead letters to their handlers again, as new notifications.
+     *
+     * @return the number of dead letters handed, those left once the queue is full are kept
+     */
+    public int replayDeadLetters() {
+        int replayed = 0;
+        Delivery delivery;
+        while ((delivery = deadLetters.poll()) != null) {
+            delivery.attempt = 1;
+            delivery.queued = System.nanoTime();
+            try {
+                executor.execute(delivery);
+            } catch (RejectedExecutionException e) {
+                deadLetters.add(delivery);
+                break;
+            }
+            replayed++;
+        }
+        return replayed;
+    }
+
+    /**
+     * @return the number of notifications whose handler failed on every attempt
+     */
+    public int getDeadLetterCount() {
+        return deadLetters.size();
+    }
+
+    /**
+     * @return the number of notifications waiting for a worker
+     */
+    public int getDepth() {
+        return executor.getQueue().size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Stops accepting notifications and waits for the queued ones to be processed. The notifications still waiting to
+     * be retried are kept as dead letters.
+     *
+     * @param timeout the maximum time to wait, in milliseconds
+     * @return true if all notifications were processed in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean shutdown(long timeout) throws InterruptedException {
+        executor.shutdown();
+        boolean terminated = executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+        retries.shutdownNow();
+        for (Delivery delivery : retrying) {
+            if (retrying.remove(delivery)) {
+                deadLetters.add(delivery);
+            }
+        }
+        return terminated;
+    }
+
+    /**
+     * Schedules another attempt of a failed notification, or keeps it as a dead letter after the last attempt.
+     */
+    private void retry(Delivery delivery, Exception e) {
+        if (delivery.attempt >= maxAttempts) {
+            deadLetters.add(delivery);
+            LOGGER.error("Failed to process {} notification of order {} {} times, keeping it as a dead letter",
+                    gatewayId, delivery.orderId, delivery.attempt, e);
+            return;
+        }
+        long delay = retryDelay << (delivery.attempt - 1);
+        delivery.attempt++;
+        LOGGER.warn("Failed to process {} notification of order {}, retrying in {} ms", gatewayId, delivery.orderId,
+                delay, e);
+        schedule(delivery, delay);
+    }
+
+    private void schedule(final Delivery delivery, long delay) {
+        retrying.add(delivery);
+        try {
+            retries.schedule(new Runnable()
+            {
+                @Override
+                public void run() {
+                    if (retrying.remove(delivery)) {
+                        resubmit(delivery);
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Shut down
+            if (retrying.remove(delivery)) {
+                deadLetters.add(delivery);
+            }
+        }
+    }
+
+    private void resubmit(Delivery delivery) {
+        delivery.queued = System.nanoTime();
+        try {
+            executor.execute(delivery);
+            retried.inc();
+        } catch (RejectedExecutionException e) {
+            if (executor.isShutdown()) {
+                deadLetters.add(delivery);
+            } else {
+                // The queue is full of new notifications, which go first
+                schedule(delivery, retryDelay);
+            }
+        }
+    }
+
+    /**
+     * A notification on its way to its handler.
+     */
+    private final class Delivery implements Runnable
+    {
+        private final UUID orderId;
+
+        private final GatewayResponse response;
+
+        private final NotificationHandler handler;
+
+        private volatile long queued;
+
+        private volatile int attempt = 1;
+
+        private Delivery(UUID orderId, GatewayResponse response, NotificationHandler handler) {
+            this.orderId = orderId;
+            this.response = response;
+            this.handler = handler;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            queueTime.update(start - queued, TimeUnit.NANOSECONDS);
+            try {
+                handler.handle(orderId, response);
+            } catch (Exception e) {
+                failed.inc();
+                retry(this, e);
+            } finally {
+                handlingTime.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Hands out the {@link NotificationPipeline} of each gateway, shared by all its tenants.
+ *
+ * @version $Id$
+ */
+@Role
+public interface NotificationPipelines
+{
+    /**
+     * @param gatewayId the gateway
+     * @return the notification pipeline of the gateway
+     */
+    NotificationPipeline get(String gatewayId);
+}
@@ -0,0 +1,43 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Write-ahead journal of the remote gateway calls that move money, so that a node dying between a call and the
+ * payment operation being persisted does not lose track of it.
+ *
+ * Gateways record the intent of a call before making it and its outcome once known. The calls left unresolved, by
+ * the node dying or by a connection error, are recovered : the {@link JournalRecoveryHandler} of their gateway finds
+ * their outcome out from the provider, and it is handed to the platform. Calls whose outcome is never found out are
+ * eventually given up. The outcomes recorded during the previous run are handed to the platform again too, as the
+ * node may have died before the platform persisted them.
+ *
+ * Nothing in the gateways calls {@link #recover(NotificationHandler)} : the platform must call it once it starts, as
+ * soon as it can persist payment operations, with the handler it persists notifications with. Until then, no
+ * outcome is recovered.
+ *
+ * @version $Id$
+ */
+@Role
+public interface OperationJournal
+{
+    /**
+     * @param gatewayId the gateway
+     * @param tenant the slug of the tenant
+     * @return the journal the gateway records the calls of the tenant to
+     */
+    GatewayJournal get(String gatewayId, String tenant);
+
+    /**
+     * Hands the outcome of every call of the previous run of the node to the platform, as if their responses were
+     * notifications, and keeps doing so in the background for the calls of the current run left unresolved. Recorded
+     * outcomes are replayed as they are, since the node may have died before the platform persisted them, and the
+     * others are found out from the provider. Calls of the current run whose outcome was recorded are not handed : the
+     * gateway gave their response to the platform. Handlers must be idempotent, since the platform may already have
+     * persisted a response.
+     *
+     * @param handler persists the responses
+     * @return the number of calls whose outcome is still unknown, recovered again in the background
+     */
+    int recover(NotificationHandler handler);
+}
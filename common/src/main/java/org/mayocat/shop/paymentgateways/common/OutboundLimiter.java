@@ -0,0 +1,84 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Guards the calls a gateway of a tenant makes to its provider : a token bucket caps the rate of the tenant, and a
+ * {@link FairShareLimiter} caps its share of the connections all tenants use. Calls beyond either limit are refused at
+ * once with a {@link RateLimitExceededException}.
+ *
+ * @version $Id$
+ */
+public class OutboundLimiter
+{
+    /**
+     * The wait suggested to tenants refused for their share of connections, which frees up as fast as calls complete.
+     */
+    private static final long SHARE_RETRY_AFTER = 100;
+
+    private static final OutboundLimiter UNLIMITED = new OutboundLimiter(null, null, null);
+
+    private final String tenant;
+
+    private final TokenBucket bucket;
+
+    private final FairShareLimiter share;
+
+    /**
+     * @param tenant the tenant making the calls
+     * @param bucket the rate limit of the tenant, or null for none
+     * @param share the shared limit of concurrent calls, or null for none
+     */
+    public OutboundLimiter(String tenant, TokenBucket bucket, FairShareLimiter share) {
+        this.tenant = tenant;
+        this.bucket = bucket;
+        this.share = share;
+    }
+
+    /**
+     * @return a limiter that lets every call through
+     */
+    public static OutboundLimiter unlimited() {
+        return UNLIMITED;
+    }
+
+    /**
+     * @param tenant the tenant making the calls
+     * @param rate the number of calls allowed per second, zero or less for no limit
+     * @param burst the number of calls allowed at once
+     * @param share the shared limit of concurrent calls, or null for none
+     * @return the limiter
+     */
+    public static OutboundLimiter create(String tenant, double rate, int burst, FairShareLimiter share) {
+        return new OutboundLimiter(tenant, rate > 0 ? new TokenBucket(rate, burst) : null, share);
+    }
+
+    /**
+     * Starts a call, which must be followed by {@link #release()} once it completes.
+     *
+     * @throws RateLimitExceededException if the call is refused
+     */
+    public void acquire() throws RateLimitExceededException {
+        if (share != null && !share.tryAcquire(tenant)) {
+            throw new RateLimitExceededException("Tenant " + tenant + " is using its share of provider connections",
+                    SHARE_RETRY_AFTER);
+        }
+        if (bucket != null) {
+            long wait = bucket.tryAcquire();
+            if (wait > 0) {
+                release();
+                throw new RateLimitExceededException("Rate limit of tenant " + tenant + " exceeded",
+                        Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+            }
+        }
+    }
+
+    /**
+     * Ends a call started by {@link #acquire()}.
+     */
+    public void release() {
+        if (share != null) {
+            share.release(tenant);
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import org.mayocat.shop.payment.GatewayException;
+
+/**
+ * Thrown when a call to a provider is refused before being made, because the tenant exceeded its rate limit or its
+ * share of the outbound connections.
+ *
+ * @version $Id$
+ */
+public class RateLimitExceededException extends GatewayException
+{
+    private static final long serialVersionUID = 1L;
+
+    private final long retryAfter;
+
+    /**
+     * @param message the reason of the refusal
+     * @param retryAfter the number of milliseconds after which the call may be retried
+     */
+    public RateLimitExceededException(String message, long retryAfter) {
+        super(message);
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * @return the number of milliseconds after which the call may be retried
+     */
+    public long getRetryAfter() {
+        return retryAfter;
+    }
+}
@@ -0,0 +1,24 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.mayocat.shop.payment.PaymentGateway;
+
+/**
+ * A payment gateway whose purchases only initialize a payment, that the customer then makes on a page of the
+ * provider. A purchase that failed, even without telling whether the provider received it, charged no one.
+ *
+ * @version $Id$
+ */
+public interface RedirectPaymentGateway extends PaymentGateway
+{
+    /**
+     * Tells whether a notification comes from the provider of this gateway, from its parameters only : the
+     * notification is not verified.
+     *
+     * @param data the notification parameters, as for {@link PaymentGateway#acknowledge(UUID, Map)}
+     * @return true if the notification has the parameters the provider sends
+     */
+    boolean isNotification(Map<String, List<String>> data);
+}
@@ -0,0 +1,201 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.io.IOException;
+
+/**
+ * Reconciles the captured payment operations of the shop against the settlement records of a provider, by external
+ * ID.
+ *
+ * Operations are indexed first, in a compact primitive index, then settlement records are streamed and joined against
+ * it one at a time : memory grows with the number of operations only, at a few tens of bytes each, and discrepancies
+ * are passed to a listener as they are found instead of being collected.
+ *
+ * @version $Id$
+ */
+public class SettlementReconciler
+{
+    /**
+     * The discrepancies found by a reconciliation.
+     */
+    public enum Discrepancy
+    {
+        /**
+         * A captured operation has no settlement record.
+         */
+        MISSING,
+
+        /**
+         * A captured settlement record has no operation.
+         */
+        UNKNOWN,
+
+        /**
+         * A settlement record does not have the amount or currency of its operation, or was not captured.
+         */
+        MISMATCHED,
+
+        /**
+         * An external ID is captured more than once, by operations or by settlement records.
+         */
+        DUPLICATE
+    }
+
+    /**
+     * Receives the discrepancies of a reconciliation as they are found.
+     */
+    public interface Listener
+    {
+        /**
+         * @param discrepancy the discrepancy
+         * @param operation the operation, null for {@link Discrepancy#UNKNOWN} settlement records
+         * @param settlement the settlement record, null for {@link Discrepancy#MISSING} ones and duplicate operations
+         */
+        void onDiscrepancy(Discrepancy discrepancy, SettlementRecord operation, SettlementRecord settlement);
+    }
+
+    /**
+     * Counts of a reconciliation.
+     */
+    public static class Report
+    {
+        private final long[] discrepancies = new long[Discrepancy.values().length];
+
+        private long operations;
+
+        private long settlements;
+
+        private long matched;
+
+        /**
+         * @return the number of captured operations
+         */
+        public long getOperations() {
+            return operations;
+        }
+
+        /**
+         * @return the number of settlement records
+         */
+        public long getSettlements() {
+            return settlements;
+        }
+
+        /**
+         * @return the number of settlement records matching their operation
+         */
+        public long getMatched() {
+            return matched;
+        }
+
+        public long getCount(Discrepancy discrepancy) {
+            return discrepancies[discrepancy.ordinal()];
+        }
+
+        /**
+         * @return whether the reconciliation found no discrepancy
+         */
+        public boolean isBalanced() {
+            for (long count : discrepancies) {
+                if (count > 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(operations).append(" operations, ").append(settlements).append(" settlements, ")
+                    .append(matched).append(" matched");
+            for (Discrepancy discrepancy : Discrepancy.values()) {
+                builder.append(", ").append(getCount(discrepancy)).append(' ')
+                        .append(discrepancy.name().toLowerCase());
+            }
+            return builder.toString();
+        }
+    }
+
+    private final Listener listener;
+
+    /**
+     * @param listener receives the discrepancies found
+     */
+    public SettlementReconciler(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Reconciles operations against settlement records. Both sources are closed once read.
+     *
+     * @param operations the payment operations of the shop, of which only captured ones are reconciled
+     * @param settlements the settlement records of the provider
+     * @return the counts of the reconciliation
+     * @throws IOException if a source cannot be read
+     */
+    public Report reconcile(SettlementSource operations, SettlementSource settlements) throws IOException {
+        Report report = new Report();
+        ExternalIdIndex index = new ExternalIdIndex();
+
+        try {
+            for (SettlementRecord operation = operations.next(); operation != null; operation = operations.next()) {
+                if (!operation.isCaptured() || operation.getExternalId() == null) {
+                    continue;
+                }
+                report.operations++;
+                if (index.add(operation.getExternalId(), operation.getAmount(), operation.getCurrency()) < 0) {
+                    report(report, Discrepancy.DUPLICATE, operation, null);
+                }
+            }
+        } finally {
+            operations.close();
+        }
+
+        try {
+            for (SettlementRecord settlement = settlements.next(); settlement != null;
+                    settlement = settlements.next()) {
+                if (settlement.getExternalId() == null) {
+                    continue;
+                }
+                report.settlements++;
+                int entry = index.find(settlement.getExternalId());
+                if (entry < 0) {
+                    if (settlement.isCaptured()) {
+                        report(report, Discrepancy.UNKNOWN, null, settlement);
+                    }
+                    continue;
+                }
+
+                int captures = index.mark(entry, settlement.isCaptured());
+                if (captures > 0 && settlement.isCaptured()) {
+                    report(report, Discrepancy.DUPLICATE, operation(index, entry), settlement);
+                } else if (!settlement.isCaptured() || settlement.getAmount() != index.getAmount(entry)
+                        || !index.hasCurrency(entry, settlement.getCurrency())) {
+                    report(report, Discrepancy.MISMATCHED, operation(index, entry), settlement);
+                } else {
+                    report.matched++;
+                }
+            }
+        } finally {
+            settlements.close();
+        }
+
+        for (int entry = 0; entry < index.size(); entry++) {
+            if (!index.isMarked(entry)) {
+                report(report, Discrepancy.MISSING, operation(index, entry), null);
+            }
+        }
+        return report;
+    }
+
+    private void report(Report report, Discrepancy discrepancy, SettlementRecord operation,
+            SettlementRecord settlement) {
+        report.discrepancies[discrepancy.ordinal()]++;
+        listener.onDiscrepancy(discrepancy, operation, settlement);
+    }
+
+    private static SettlementRecord operation(ExternalIdIndex index, int entry) {
+        return new SettlementRecord(index.getExternalId(entry), index.getAmount(entry), index.getCurrency(entry),
+                true);
+    }
+}
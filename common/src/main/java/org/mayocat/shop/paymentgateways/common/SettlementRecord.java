@@ -0,0 +1,67 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+import org.mayocat.shop.payment.model.PaymentOperation;
+
+/**
+ * A payment as recorded on one side of a reconciliation : a payment operation of the shop, or a provider settlement
+ * record.
+ *
+ * @version $Id$
+ */
+public class SettlementRecord
+{
+    private final String externalId;
+
+    private final long amount;
+
+    private final String currency;
+
+    private final boolean captured;
+
+    /**
+     * @param externalId the identifier of the payment at the provider
+     * @param amount the amount, in minor units of the currency (cents...)
+     * @param currency the ISO 4217 alphabetic code of the currency
+     * @param captured whether the payment was captured, as opposed to refused, cancelled or refunded
+     */
+    public SettlementRecord(String externalId, long amount, String currency, boolean captured) {
+        this.externalId = externalId;
+        this.amount = amount;
+        this.currency = currency;
+        this.captured = captured;
+    }
+
+    /**
+     * @param operation a payment operation of the shop
+     * @param amount the amount of the order the operation pays
+     * @param currency the currency of the order
+     * @return the record of the operation
+     */
+    public static SettlementRecord of(PaymentOperation operation, BigDecimal amount, Currency currency) {
+        return new SettlementRecord(operation.getExternalId(), AmountCodec.toMinorUnits(amount, currency),
+                currency.getCurrencyCode(), operation.getResult() == PaymentOperation.Result.CAPTURED);
+    }
+
+    public String getExternalId() {
+        return externalId;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+
+    public String getCurrency() {
+        return currency;
+    }
+
+    public boolean isCaptured() {
+        return captured;
+    }
+
+    @Override
+    public String toString() {
+        return externalId + " " + amount + " " + currency + (captured ? "" : " (not captured)");
+    }
+}
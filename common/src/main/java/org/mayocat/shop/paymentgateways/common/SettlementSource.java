@@ -0,0 +1,19 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A stream of settlement records, read one at a time so that sources of millions of records are reconciled in bounded
+ * memory.
+ *
+ * @version $Id$
+ */
+public interface SettlementSource extends Closeable
+{
+    /**
+     * @return the next record, or null when there are no more records
+     * @throws IOException if the records cannot be read
+     */
+    SettlementRecord next() throws IOException;
+}
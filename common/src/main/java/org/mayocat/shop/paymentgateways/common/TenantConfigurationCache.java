@@ -0,0 +1,38 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.File;
+import java.io.IOException;
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Keeps the parsed gateway configuration of each tenant, so that gateway factories do not read and parse the
+ * configuration file of a tenant for every payment.
+ *
+ * An entry is reloaded when its configuration file changes on disk.
+ *
+ * @version $Id$
+ */
+@Role
+public interface TenantConfigurationCache
+{
+    /**
+     * @param tenant the tenant slug
+     * @param gatewayId the gateway the configuration belongs to
+     * @param file the configuration file
+     * @param type the configuration class
+     * @param mapper the mapper used to parse the file, when it is not cached or has changed
+     * @return the configuration, parsed once for as long as the file does not change. The same instance is returned
+     * until then, so callers must not modify it
+     * @throws IOException when the file cannot be read or parsed
+     */
+    <T> T get(String tenant, String gatewayId, File file, Class<T> type, ObjectMapper mapper) throws IOException;
+
+    /**
+     * Forgets the configuration of a tenant, so that it is parsed again the next time it is asked for.
+     *
+     * @param tenant the tenant slug
+     * @param gatewayId the gateway the configuration belongs to
+     */
+    void invalidate(String tenant, String gatewayId);
+}
@@ -0,0 +1,50 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket, implemented as a generic cell rate algorithm : the bucket only holds the theoretical arrival
+ * time of the next call, advanced by one emission interval per call with a compare-and-set, so that checking a limit
+ * is a couple of atomic operations and never blocks.
+ *
+ * @version $Id$
+ */
+public class TokenBucket
+{
+    private final long interval;
+
+    private final long tolerance;
+
+    private final AtomicLong theoreticalArrivalTime;
+
+    /**
+     * @param rate the number of calls allowed per second, on average
+     * @param burst the number of calls allowed at once after the bucket has been idle
+     */
+    public TokenBucket(double rate, int burst) {
+        this.interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        this.tolerance = interval * (Math.max(1, burst) - 1);
+        this.theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token if one is available.
+     *
+     * @return zero if a token was taken, or else the number of nanoseconds until one will be available
+     */
+    public long tryAcquire() {
+        while (true) {
+            long now = System.nanoTime();
+            long arrival = theoreticalArrivalTime.get();
+            long start = arrival - now > 0 ? arrival : now;
+            long wait = start - now - tolerance;
+            if (wait > 0) {
+                return wait;
+            }
+            if (theoreticalArrivalTime.compareAndSet(arrival, start + interval)) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.io.File;
+import org.mayocat.shop.payment.GatewayFactory;
+
+/**
+ * A gateway factory that can pay ahead of the first checkout for what its gateways would otherwise do on first use :
+ * provider lookups, class loading, configuration parsing, TLS handshakes...
+ *
+ * Warm-up methods are run by {@link GatewayWarmUp}, on its own threads and outside of any request, so they must not
+ * rely on the web context.
+ *
+ * @version $Id$
+ */
+public interface WarmableGatewayFactory extends GatewayFactory
+{
+    /**
+     * Warms up what all tenants share.
+     *
+     * @throws Exception if warming up failed, which is logged and counted
+     */
+    void warmUp() throws Exception;
+
+    /**
+     * Loads and validates the configuration of a tenant, and pre-opens the connections its gateway will use.
+     *
+     * @param tenant the tenant slug
+     * @param directory the payments directory of the tenant for this gateway, holding its configuration
+     * @throws Exception if the configuration is invalid or warming up failed, which is logged and counted
+     */
+    void warmUp(String tenant, File directory) throws Exception;
+}
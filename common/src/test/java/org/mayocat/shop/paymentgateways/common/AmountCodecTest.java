@@ -0,0 +1,129 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @version $Id$
+ */
+public class AmountCodecTest
+{
+    private static final Currency EUR = Currency.getInstance("EUR");
+
+    private static final Currency JPY = Currency.getInstance("JPY");
+
+    private static final Currency TND = Currency.getInstance("TND");
+
+    @Test
+    public void decimalPlaces() {
+        assertEquals(2, AmountCodec.getDecimalPlaces(EUR));
+        assertEquals(0, AmountCodec.getDecimalPlaces(JPY));
+        assertEquals(3, AmountCodec.getDecimalPlaces(TND));
+        assertEquals(3, AmountCodec.getDecimalPlaces("TND"));
+        assertEquals(2, AmountCodec.getDecimalPlaces("XXX-unknown"));
+    }
+
+    @Test
+    public void toMinorUnits() {
+        assertEquals(1250, AmountCodec.toMinorUnits(new BigDecimal("12.50"), EUR));
+        assertEquals(1250, AmountCodec.toMinorUnits(new BigDecimal("12.5"), EUR));
+        assertEquals(1200, AmountCodec.toMinorUnits(new BigDecimal("12"), EUR));
+        assertEquals(1250, AmountCodec.toMinorUnits(new BigDecimal("1250"), JPY));
+        assertEquals(1250, AmountCodec.toMinorUnits(new BigDecimal("1.25"), TND));
+        assertEquals(1250, AmountCodec.toMinorUnits(new BigDecimal("1.250"), TND));
+    }
+
+    @Test
+    public void toMinorUnitsRoundsHalfUp() {
+        assertEquals(1235, AmountCodec.toMinorUnits(new BigDecimal("12.345"), EUR));
+        assertEquals(1234, AmountCodec.toMinorUnits(new BigDecimal("12.3449"), EUR));
+        assertEquals(13, AmountCodec.toMinorUnits(new BigDecimal("12.5"), JPY));
+        assertEquals(12, AmountCodec.toMinorUnits(new BigDecimal("12.49"), JPY));
+        assertEquals(1235, AmountCodec.toMinorUnits(new BigDecimal("1.2345"), TND));
+        assertEquals(-1235, AmountCodec.toMinorUnits(new BigDecimal("-12.345"), EUR));
+        // A negative scale, 1.2E+3
+        assertEquals(120000, AmountCodec.toMinorUnits(new BigDecimal("1.2E+3"), EUR));
+    }
+
+    @Test
+    public void toMinorUnitsOfNegativeAmounts() {
+        assertEquals(-1250, AmountCodec.toMinorUnits(new BigDecimal("-12.50"), EUR));
+        assertEquals(-1250, AmountCodec.toMinorUnits(new BigDecimal("-1250"), JPY));
+        assertEquals(-1250, AmountCodec.toMinorUnits(new BigDecimal("-1.25"), TND));
+        assertEquals(Long.MIN_VALUE, AmountCodec.toMinorUnits(new BigDecimal("-92233720368547758.08"), EUR));
+        assertEquals(Long.MIN_VALUE, AmountCodec.toMinorUnits(new BigDecimal(Long.MIN_VALUE), JPY));
+    }
+
+    @Test
+    public void toMinorUnitsOfLargeAmounts() {
+        assertEquals(Long.MAX_VALUE, AmountCodec.toMinorUnits(new BigDecimal("92233720368547758.07"), EUR));
+        assertEquals(Long.MAX_VALUE, AmountCodec.toMinorUnits(new BigDecimal(Long.MAX_VALUE), JPY));
+        assertEquals(99999999999999900L, AmountCodec.toMinorUnits(new BigDecimal("999999999999999"), EUR));
+    }
+
+    @Test
+    public void toMinorUnitsOverflow() {
+        assertOverflow(new BigDecimal("92233720368547758.08"), EUR);
+        assertOverflow(new BigDecimal("-92233720368547758.09"), EUR);
+        assertOverflow(new BigDecimal(Long.MAX_VALUE).add(BigDecimal.ONE), JPY);
+        assertOverflow(new BigDecimal("9223372036854775.808"), TND);
+        assertOverflow(new BigDecimal("1E+30"), EUR);
+    }
+
+    @Test
+    public void fromMinorUnits() {
+        assertEquals(new BigDecimal("12.50"), AmountCodec.fromMinorUnits(1250, EUR));
+        assertEquals(new BigDecimal("1250"), AmountCodec.fromMinorUnits(1250, JPY));
+        assertEquals(new BigDecimal("1.250"), AmountCodec.fromMinorUnits(1250, TND));
+        assertEquals(new BigDecimal("-0.05"), AmountCodec.fromMinorUnits(-5, EUR));
+        assertEquals(new BigDecimal("-92233720368547758.08"), AmountCodec.fromMinorUnits(Long.MIN_VALUE, EUR));
+        assertEquals(new BigDecimal("92233720368547758.07"), AmountCodec.fromMinorUnits(Long.MAX_VALUE, EUR));
+    }
+
+    @Test
+    public void format() {
+        assertEquals("12.50", AmountCodec.format(1250, EUR));
+        assertEquals("0.05", AmountCodec.format(5, EUR));
+        assertEquals("0.00", AmountCodec.format(0, EUR));
+        assertEquals("1250", AmountCodec.format(1250, JPY));
+        assertEquals("0", AmountCodec.format(0, JPY));
+        assertEquals("1.250", AmountCodec.format(1250, TND));
+        assertEquals("0.005", AmountCodec.format(5, TND));
+    }
+
+    @Test
+    public void formatNegativeAmounts() {
+        assertEquals("-12.50", AmountCodec.format(-1250, EUR));
+        assertEquals("-0.05", AmountCodec.format(-5, EUR));
+        assertEquals("-1250", AmountCodec.format(-1250, JPY));
+        assertEquals("-0.005", AmountCodec.format(-5, TND));
+        assertEquals("-92233720368547758.08", AmountCodec.format(Long.MIN_VALUE, EUR));
+        assertEquals("-9223372036854775808", AmountCodec.format(Long.MIN_VALUE, JPY));
+        assertEquals("-9223372036854775.808", AmountCodec.format(Long.MIN_VALUE, TND));
+        assertEquals("92233720368547758.07", AmountCodec.format(Long.MAX_VALUE, EUR));
+    }
+
+    @Test
+    public void formatMatchesFromMinorUnits() {
+        long[] amounts = {0, 1, -1, 99, 100, 123456789, -987654321, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (Currency currency : new Currency[] {EUR, JPY, TND}) {
+            for (long amount : amounts) {
+                assertEquals(AmountCodec.fromMinorUnits(amount, currency).toPlainString(),
+                        AmountCodec.format(amount, currency));
+            }
+        }
+    }
+
+    private static void assertOverflow(BigDecimal amount, Currency currency) {
+        try {
+            AmountCodec.toMinorUnits(amount, currency);
+            fail("Expected an overflow of " + amount + " " + currency);
+        } catch (ArithmeticException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import org.junit.Test;
+import org.mayocat.shop.payment.GatewayException;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentData;
+import org.mayocat.shop.payment.PaymentGateway;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @version $Id$
+ */
+public class GatewayExecutorsTest
+{
+    @Test
+    public void rejectedPurchasesFailTheirFuture() throws Exception {
+        ListeningExecutorService executor = GatewayExecutors.newBoundedExecutor(1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        PaymentGateway gateway = new PaymentGateway()
+        {
+            @Override
+            public GatewayResponse purchase(BigDecimal amount, Map<PaymentData, Object> options) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+
+            @Override
+            public GatewayResponse acknowledge(UUID orderId, Map<String, List<String>> data) {
+                return null;
+            }
+
+            @Override
+            public GatewayResponse acknowledge(Map<String, List<String>> data) {
+                return null;
+            }
+
+            @Override
+            public GatewayResponse callback(Map<String, List<String>> data) {
+                return null;
+            }
+        };
+        Map<PaymentData, Object> options = Collections.emptyMap();
+
+        try {
+            // One purchase running and one queued fill the executor
+            GatewayExecutors.purchase(executor, gateway, BigDecimal.ONE, options);
+            GatewayExecutors.purchase(executor, gateway, BigDecimal.ONE, options);
+            ListenableFuture<GatewayResponse> rejected =
+                    GatewayExecutors.purchase(executor, gateway, BigDecimal.ONE, options);
+
+            assertTrue(rejected.isDone());
+            try {
+                rejected.get();
+                fail("Rejected purchase succeeded");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof GatewayException);
+            }
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Test;
+import org.mayocat.shop.payment.model.PaymentOperation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @version $Id$
+ */
+public class MappedJournalTest
+{
+    private static final long EXPIRY = 50;
+
+    @Test
+    public void unresolvedEntriesExpire() throws Exception {
+        File directory = Files.createTempDirectory("journal").toFile();
+        MappedJournal journal = new MappedJournal(directory, 64 * 1024, 0, EXPIRY);
+        try {
+            journal.open();
+            journal.begin("stripe", "tenant", UUID.randomUUID(), "expired");
+            Thread.sleep(EXPIRY * 2);
+            JournalEntry entry = journal.begin("stripe", "tenant", UUID.randomUUID(), "pending");
+
+            assertEquals(1, journal.getPending());
+            List<JournalEntry> unresolved = journal.getUnresolved(System.currentTimeMillis() + 1);
+            assertEquals(1, unresolved.size());
+            assertSame(entry, unresolved.get(0));
+        } finally {
+            close(journal, directory);
+        }
+    }
+
+    @Test
+    public void completedEntriesAreHandedOverOnReopen() throws Exception {
+        File directory = Files.createTempDirectory("journal").toFile();
+        MappedJournal journal = new MappedJournal(directory, 64 * 1024, 60000, 60000);
+        journal.open();
+        UUID orderId = UUID.randomUUID();
+        JournalEntry entry = journal.begin("stripe", "tenant", orderId, "charge");
+        journal.complete(entry, PaymentOperation.Result.CAPTURED, "ch_1");
+        journal.begin("stripe", "tenant", UUID.randomUUID(), "unresolved");
+        journal.close();
+
+        journal = new MappedJournal(directory, 64 * 1024, 60000, 60000);
+        try {
+            List<JournalEntry> previousEntries = journal.open();
+            assertEquals(2, previousEntries.size());
+            JournalEntry completed = previousEntries.get(0);
+            assertEquals(orderId, completed.getOrderId());
+            assertTrue(completed.isResolved());
+            assertEquals(PaymentOperation.Result.CAPTURED, completed.getResult());
+            assertEquals("ch_1", completed.getExternalId());
+            assertFalse(previousEntries.get(1).isResolved());
+            assertEquals(1, journal.getPending());
+        } finally {
+            close(journal, directory);
+        }
+    }
+
+    @Test
+    public void entriesOfThePreviousRunExpire() throws Exception {
+        File directory = Files.createTempDirectory("journal").toFile();
+        MappedJournal journal = new MappedJournal(directory, 64 * 1024, 0, EXPIRY);
+        journal.open();
+        journal.begin("stripe", "tenant", UUID.randomUUID(), "expired");
+        journal.close();
+        Thread.sleep(EXPIRY * 2);
+
+        journal = new MappedJournal(directory, 64 * 1024, 0, EXPIRY);
+        try {
+            assertTrue(journal.open().isEmpty());
+            assertEquals(0, journal.getPending());
+        } finally {
+            close(journal, directory);
+        }
+    }
+
+    @Test
+    public void callsGoOnWhenTheJournalIsFull() throws Exception {
+        File directory = Files.createTempDirectory("journal").toFile();
+        MappedJournal journal = new MappedJournal(directory, 1024, 0, 60000);
+        try {
+            journal.open();
+            GatewayJournal gatewayJournal = new GatewayJournal(journal, "stripe", "tenant");
+            for (int i = 0; i < 100; i++) {
+                assertNotNull(gatewayJournal.begin(UUID.randomUUID(), "unresolved-" + i));
+            }
+            assertTrue(journal.getPending() < 100);
+        } finally {
+            close(journal, directory);
+        }
+    }
+
+    private static void close(MappedJournal journal, File directory) throws IOException {
+        journal.close();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
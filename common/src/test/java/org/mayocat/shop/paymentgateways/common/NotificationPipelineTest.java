@@ -0,0 +1,73 @@
+package org.mayocat.shop.paymentgateways.common;
+
+import com.codahale.metrics.MetricRegistry;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.mayocat.shop.payment.GatewayResponse;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @version $Id$
+ */
+public class NotificationPipelineTest
+{
+    @Test
+    public void failedNotificationsAreRetried() throws Exception {
+        NotificationPipeline pipeline = new NotificationPipeline("test", 10, 1, new MetricRegistry(), 3, 10);
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch handled = new CountDownLatch(1);
+        pipeline.submit(UUID.randomUUID(), new GatewayResponse(true, null), new NotificationHandler()
+        {
+            @Override
+            public void handle(UUID orderId, GatewayResponse response) throws Exception {
+                if (attempts.incrementAndGet() < 3) {
+                    throw new Exception("Database down");
+                }
+                handled.countDown();
+            }
+        });
+
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+        assertEquals(0, pipeline.getDeadLetterCount());
+        pipeline.shutdown(1000);
+    }
+
+    @Test
+    public void notificationsFailingEveryAttemptAreKeptAndReplayed() throws Exception {
+        NotificationPipeline pipeline = new NotificationPipeline("test", 10, 1, new MetricRegistry(), 2, 10);
+        final AtomicBoolean down = new AtomicBoolean(true);
+        final AtomicInteger attempts = new AtomicInteger();
+        final CountDownLatch handled = new CountDownLatch(1);
+        pipeline.submit(UUID.randomUUID(), new GatewayResponse(true, null), new NotificationHandler()
+        {
+            @Override
+            public void handle(UUID orderId, GatewayResponse response) throws Exception {
+                attempts.incrementAndGet();
+                if (down.get()) {
+                    throw new Exception("Database down");
+                }
+                handled.countDown();
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pipeline.getDeadLetterCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, pipeline.getDeadLetterCount());
+        assertEquals(2, attempts.get());
+
+        down.set(false);
+        assertEquals(1, pipeline.replayDeadLetters());
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+        assertEquals(0, pipeline.getDeadLetterCount());
+        pipeline.shutdown(1000);
+    }
+}
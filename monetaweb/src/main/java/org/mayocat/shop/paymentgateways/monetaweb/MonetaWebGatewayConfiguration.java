@@ -18,6 +18,60 @@ public class MonetaWebGatewayConfiguration
 
     private String languageId = "FRA";
 
+    /**
+     * Overrides the payment initialization endpoint derived from the environment, to use a local stub for example.
+     */
+    private String endpoint;
+
+    /**
+     * Endpoint of the payment inquiry API, which unresolved payment initializations are looked up by track ID with
+     * when recovering the journal. They are left unresolved when it is not set.
+     */
+    private String inquiryEndpoint;
+
+    /**
+     * Timeout, in milliseconds, to connect to the endpoint.
+     */
+    private int connectTimeout = 5000;
+
+    /**
+     * Timeout, in milliseconds, to wait for data from the endpoint once connected.
+     */
+    private int socketTimeout = 15000;
+
+    /**
+     * Timeout, in milliseconds, to wait for a free connection when all pooled connections are in use.
+     */
+    private long poolTimeout = 2000;
+
+    /**
+     * Maximum number of connections to the endpoint. The pool of an endpoint is shared by all tenants, and sized for
+     * the largest of their settings.
+     */
+    private int maxConnections = 20;
+
+    /**
+     * Number of payment initializations per second the tenant may make, zero for no limit. Initializations beyond it
+     * are refused without calling MonetaWeb.
+     */
+    private double rateLimit = 0;
+
+    /**
+     * Number of payment initializations the tenant may make at once, above its rate limit, after being idle.
+     */
+    private int rateLimitBurst = 20;
+
+    /**
+     * Number of consecutive payment initializations failing to reach MonetaWeb after which they fail at once, without
+     * calling MonetaWeb.
+     */
+    private int circuitFailureThreshold = 5;
+
+    /**
+     * Time, in milliseconds, payment initializations fail at once before a probe is let through to MonetaWeb.
+     */
+    private long circuitOpenDuration = 30000;
+
     public String getEnvironment()
     {
         return environment;
@@ -37,4 +91,54 @@ public class MonetaWebGatewayConfiguration
     {
         return languageId;
     }
+
+    public String getEndpoint()
+    {
+        return endpoint;
+    }
+
+    public String getInquiryEndpoint()
+    {
+        return inquiryEndpoint;
+    }
+
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    public int getSocketTimeout()
+    {
+        return socketTimeout;
+    }
+
+    public long getPoolTimeout()
+    {
+        return poolTimeout;
+    }
+
+    public int getMaxConnections()
+    {
+        return maxConnections;
+    }
+
+    public double getRateLimit()
+    {
+        return rateLimit;
+    }
+
+    public int getRateLimitBurst()
+    {
+        return rateLimitBurst;
+    }
+
+    public int getCircuitFailureThreshold()
+    {
+        return circuitFailureThreshold;
+    }
+
+    public long getCircuitOpenDuration()
+    {
+        return circuitOpenDuration;
+    }
 }
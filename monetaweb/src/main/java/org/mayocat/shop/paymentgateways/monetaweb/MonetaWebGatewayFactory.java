@@ -15,21 +15,32 @@ import org.mayocat.configuration.general.FilesSettings;
 import org.mayocat.context.WebContext;
 import org.mayocat.shop.payment.GatewayFactory;
 import org.mayocat.shop.payment.PaymentGateway;
+import org.mayocat.shop.paymentgateways.common.Bulkheads;
+import org.mayocat.shop.paymentgateways.common.GatewayInstanceCache;
+import org.mayocat.shop.paymentgateways.common.GatewayMetrics;
+import org.mayocat.shop.paymentgateways.common.GatewayMetricsRegistry;
+import org.mayocat.shop.paymentgateways.common.IdempotencyStore;
+import org.mayocat.shop.paymentgateways.common.NotificationPipelines;
+import org.mayocat.shop.paymentgateways.common.OperationJournal;
+import org.mayocat.shop.paymentgateways.common.OutboundLimiter;
+import org.mayocat.shop.paymentgateways.common.TenantConfigurationCache;
+import org.mayocat.shop.paymentgateways.common.WarmableGatewayFactory;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
 
+import com.codahale.metrics.MetricRegistry;
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.TreeTraversingParser;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.google.common.base.Preconditions;
 import com.yammer.dropwizard.json.ObjectMapperFactory;
 
 /**
  * @version $Id: da42277c42e6c89a97b7d2ee2c0da91a07df1ffa $
  */
 @Component(MonetaWebGatewayFactory.ID)
-public class MonetaWebGatewayFactory implements GatewayFactory
+public class MonetaWebGatewayFactory implements GatewayFactory, WarmableGatewayFactory, Initializable
 {
     public static final String ID = "monetaweb";
 
@@ -59,37 +70,119 @@ public class MonetaWebGatewayFactory implements GatewayFactory
     @Inject
     private SiteSettings siteSettings;
 
+    @Inject
+    private IdempotencyStore idempotencyStore;
+
+    @Inject
+    private TenantConfigurationCache configurationCache;
+
+    @Inject
+    private GatewayMetricsRegistry metricsRegistry;
+
+    @Inject
+    private MetricRegistry registry;
+
+    @Inject
+    private NotificationPipelines notificationPipelines;
+
+    @Inject
+    private Bulkheads bulkheads;
+
+    @Inject
+    private OperationJournal journal;
+
+    private ObjectMapper mapper;
+
+    private final GatewayInstanceCache gateways = new GatewayInstanceCache();
+
+    @Override
+    public void initialize()
+    {
+        this.mapper = objectMapperFactory.build(new YAMLFactory());
+    }
+
     @Override
     public String getId()
     {
         return ID;
     }
 
+    /**
+     * Nothing is shared by all tenants but the YAML mapper, which is built when the factory is initialized.
+     */
+    @Override
+    public void warmUp()
+    {
+    }
+
+    /**
+     * Parses and checks the configuration of the tenant, and opens a connection to its endpoint when there is none
+     * yet.
+     */
+    @Override
+    public void warmUp(String tenant, File directory) throws IOException
+    {
+        MonetaWebGatewayConfiguration configuration = configurationCache.get(tenant, ID,
+                new File(directory, TENANT_CONFIGURATION_FILENAME), MonetaWebGatewayConfiguration.class, mapper);
+        Preconditions.checkNotNull(configuration.getId(), "Missing MonetaWeb id");
+        Preconditions.checkNotNull(configuration.getPassword(), "Missing MonetaWeb password");
+
+        MonetaWebTransport transport = MonetaWebTransport.get(MonetaWebPaymentGateway.getPaymentEndpoint(configuration),
+                configuration.getMaxConnections());
+        transport.instrument(registry);
+        transport.preconnect(configuration.getConnectTimeout(), configuration.getSocketTimeout());
+    }
+
     @Override
     public PaymentGateway createGateway()
+    {
+        long start = System.nanoTime();
+        String tenant = context.getTenant().getSlug();
+        GatewayMetrics tenantMetrics = metricsRegistry.get(ID, tenant, MonetaWebPaymentGateway.OPERATIONS);
+
+        PaymentGateway gateway = createGateway(tenant, tenantMetrics);
+        if (gateway != null) {
+            tenantMetrics.record(GatewayMetrics.Operation.CREATE_GATEWAY, start, 0, null);
+        } else {
+            tenantMetrics.recordFailure(GatewayMetrics.Operation.CREATE_GATEWAY, start, 0);
+        }
+        return gateway;
+    }
+
+    private PaymentGateway createGateway(String tenant, GatewayMetrics tenantMetrics)
     {
         Path permanentDirectory = filesSettings.getPermanentDirectory();
         File tenantConfigurationFile = permanentDirectory
                 .resolve(TENANTS_DIRECTORY)
-                .resolve(context.getTenant().getSlug())
+                .resolve(tenant)
                 .resolve(PAYMENTS_DIRECTORY)
                 .resolve(ID)
                 .resolve(TENANT_CONFIGURATION_FILENAME).toFile();
 
-        ObjectMapper mapper = objectMapperFactory.build(new YAMLFactory());
-
-
         try {
-            JsonNode node = mapper.readTree(tenantConfigurationFile);
-            MonetaWebGatewayConfiguration configuration =
-                    mapper.readValue(new TreeTraversingParser(node), MonetaWebGatewayConfiguration.class);
+            MonetaWebGatewayConfiguration configuration = configurationCache.get(tenant, ID,
+                    tenantConfigurationFile, MonetaWebGatewayConfiguration.class, mapper);
 
             String baseUri = getSchemeAndDomain(context.getTenant());
             if (context.isAlternativeLocale()) {
                 baseUri += (SLASH + context.getLocale());
             }
 
-            return new MonetaWebPaymentGateway(configuration, baseUri);
+            // The base URL depends on the locale, so each tenant may have a gateway per locale
+            String key = tenant + SLASH + baseUri;
+            PaymentGateway gateway = gateways.get(key, configuration);
+            if (gateway == null) {
+                // Tenants share the connections to the endpoint fairly
+                MonetaWebTransport transport = MonetaWebTransport.get(
+                        MonetaWebPaymentGateway.getPaymentEndpoint(configuration), configuration.getMaxConnections());
+                transport.instrument(registry);
+                OutboundLimiter limiter = OutboundLimiter.create(tenant, configuration.getRateLimit(),
+                        configuration.getRateLimitBurst(), transport.getFairShare());
+                gateway = new MonetaWebPaymentGateway(configuration, baseUri, idempotencyStore, tenantMetrics,
+                        notificationPipelines.get(ID), limiter, bulkheads.get(ID), journal.get(ID, tenant));
+                gateways.put(key, gateway, configuration);
+            }
+            return gateway;
         } catch (FileNotFoundException e) {
             logger.error("Failed to create MonetaWeb Adaptive payment gateway : configuration file not found");
             return null;
@@ -0,0 +1,143 @@
+package org.mayocat.shop.paymentgateways.monetaweb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.mayocat.configuration.general.FilesSettings;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.model.PaymentOperation;
+import org.mayocat.shop.paymentgateways.common.JournalEntry;
+import org.mayocat.shop.paymentgateways.common.JournalRecoveryHandler;
+import org.mayocat.shop.paymentgateways.common.TenantConfigurationCache;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.yammer.dropwizard.json.ObjectMapperFactory;
+
+/**
+ * Looks the MonetaWeb payment initializations left unresolved up by their track ID, the order ID, with the payment
+ * inquiry API of the tenant. Their outcome is left unknown when the tenant has no inquiry endpoint set or when
+ * MonetaWeb has no payment for the track ID yet, as the customer may still be on the payment page.
+ *
+ * @version $Id$
+ */
+@Component(MonetaWebGatewayFactory.ID)
+@Singleton
+public class MonetaWebJournalRecoveryHandler implements JournalRecoveryHandler, Initializable
+{
+    private static final String ACTION_INQUIRY = "8";
+
+    private static final String TRACK_ID = "TrackID";
+
+    @Inject
+    private FilesSettings filesSettings;
+
+    @Inject
+    private ObjectMapperFactory objectMapperFactory;
+
+    @Inject
+    private TenantConfigurationCache configurationCache;
+
+    @Inject
+    private MetricRegistry registry;
+
+    private ObjectMapper mapper;
+
+    @Override
+    public void initialize()
+    {
+        this.mapper = objectMapperFactory.build(new YAMLFactory());
+    }
+
+    @Override
+    public GatewayResponse recover(JournalEntry entry) throws Exception
+    {
+        File configurationFile = filesSettings.getPermanentDirectory().resolve("tenants").resolve(entry.getTenant())
+                .resolve("payments").resolve(MonetaWebGatewayFactory.ID).resolve("configuration.yml").toFile();
+        MonetaWebGatewayConfiguration configuration = configurationCache.get(entry.getTenant(),
+                MonetaWebGatewayFactory.ID, configurationFile, MonetaWebGatewayConfiguration.class, mapper);
+        String endpoint = configuration.getInquiryEndpoint();
+        if (endpoint == null) {
+            return null;
+        }
+
+        String answer = inquire(endpoint, configuration, entry.getReference());
+        if (answer.contains("!ERROR!")) {
+            return null;
+        }
+        String result = getTag(answer, "result");
+        if (result == null) {
+            return null;
+        }
+
+        PaymentOperation operation = new PaymentOperation();
+        operation.setGatewayId(MonetaWebGatewayFactory.ID);
+        operation.setExternalId(getTag(answer, "paymentid"));
+        Map<String, Object> memo = new LinkedHashMap<String, Object>();
+        memo.put("recovered", true);
+        operation.setMemo(memo);
+        if (MonetaWebSettlementSource.CAPTURED_RESULTS.contains(result.toUpperCase())) {
+            operation.setResult(PaymentOperation.Result.CAPTURED);
+            return new GatewayResponse(true, operation);
+        }
+        operation.setResult(PaymentOperation.Result.FAILED);
+        return new GatewayResponse(false, operation);
+    }
+
+    private String inquire(String endpoint, MonetaWebGatewayConfiguration configuration, String trackId)
+            throws IOException
+    {
+        HttpPost httpPost = new HttpPost(endpoint);
+        List<NameValuePair> nvps = new ArrayList<NameValuePair>();
+        nvps.add(new BasicNameValuePair("id", configuration.getId()));
+        nvps.add(new BasicNameValuePair("password", configuration.getPassword()));
+        nvps.add(new BasicNameValuePair("action", ACTION_INQUIRY));
+        nvps.add(new BasicNameValuePair("trackid", trackId));
+        nvps.add(new BasicNameValuePair("udf5", TRACK_ID));
+
+        try {
+            httpPost.setEntity(new UrlEncodedFormEntity(nvps));
+            MonetaWebTransport transport = MonetaWebTransport.get(endpoint, configuration.getMaxConnections());
+            transport.instrument(registry);
+            HttpResponse response = transport.execute(httpPost, configuration.getConnectTimeout(),
+                    configuration.getSocketTimeout(), configuration.getPoolTimeout());
+            HttpEntity entity = response.getEntity();
+            String answer = entity != null ? EntityUtils.toString(entity) : "";
+            if (response.getStatusLine().getStatusCode() != 200) {
+                throw new IOException("MonetaWeb inquiry failed with status "
+                        + response.getStatusLine().getStatusCode());
+            }
+            return answer;
+        } finally {
+            httpPost.releaseConnection();
+        }
+    }
+
+    private static String getTag(String answer, String name)
+    {
+        int start = answer.indexOf("<" + name + ">");
+        int end = answer.indexOf("</" + name + ">");
+        if (start < 0 || end < start) {
+            return null;
+        }
+        String value = answer.substring(start + name.length() + 2, end).trim();
+        return value.isEmpty() ? null : value;
+    }
+}
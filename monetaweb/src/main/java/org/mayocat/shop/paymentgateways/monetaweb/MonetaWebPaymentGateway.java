@@ -1,6 +1,8 @@
 package org.mayocat.shop.paymentgateways.monetaweb;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigDecimal;
 import java.util.ArrayList;
@@ -8,6 +10,7 @@ import java.util.Currency;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.http.HttpEntity;
@@ -15,7 +18,6 @@ import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
 import org.joda.money.CurrencyUnit;
@@ -23,19 +25,43 @@ import org.mayocat.shop.payment.BasePaymentData;
 import org.mayocat.shop.payment.GatewayException;
 import org.mayocat.shop.payment.GatewayResponse;
 import org.mayocat.shop.payment.PaymentData;
-import org.mayocat.shop.payment.PaymentGateway;
 import org.mayocat.shop.payment.api.resources.PaymentResource;
 import org.mayocat.shop.payment.model.PaymentOperation;
+import org.mayocat.shop.paymentgateways.common.AmountCodec;
+import org.mayocat.shop.paymentgateways.common.AsyncPaymentGateway;
+import org.mayocat.shop.paymentgateways.common.Bulkhead;
+import org.mayocat.shop.paymentgateways.common.CircuitBreaker;
+import org.mayocat.shop.paymentgateways.common.GatewayExecutors;
+import org.mayocat.shop.paymentgateways.common.GatewayJournal;
+import org.mayocat.shop.paymentgateways.common.GatewayMetrics;
+import org.mayocat.shop.paymentgateways.common.IdempotencyStore;
+import org.mayocat.shop.paymentgateways.common.IngestingPaymentGateway;
+import org.mayocat.shop.paymentgateways.common.InMemoryIdempotencyStore;
+import org.mayocat.shop.paymentgateways.common.JournalEntry;
+import org.mayocat.shop.paymentgateways.common.NotificationHandler;
+import org.mayocat.shop.paymentgateways.common.NotificationPipeline;
+import org.mayocat.shop.paymentgateways.common.OutboundLimiter;
+import org.mayocat.shop.paymentgateways.common.RateLimitExceededException;
+import org.mayocat.shop.paymentgateways.common.RedirectPaymentGateway;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * @version $Id: 5df83ccae164b9327fca9ee3bfd848117be288ee $
  */
-public class MonetaWebPaymentGateway implements PaymentGateway
+public class MonetaWebPaymentGateway
+        implements AsyncPaymentGateway, IngestingPaymentGateway, RedirectPaymentGateway, Closeable
 {
+    /**
+     * The operations of the gateway, timed by its metrics.
+     */
+    static final Set<GatewayMetrics.Operation> OPERATIONS = Sets.immutableEnumSet(GatewayMetrics.Operation.PURCHASE,
+            GatewayMetrics.Operation.ACKNOWLEDGE, GatewayMetrics.Operation.CREATE_GATEWAY);
+
     private static final String PROD_ENVIRONMENT = "prod";
 
     private static final String TEST_PAYMENT_ENDPOINT = "https://test.monetaonline.it/monetaweb/hosted/init/http";
@@ -44,6 +70,8 @@ public class MonetaWebPaymentGateway implements PaymentGateway
 
     private static final String ACTION_AUTHORIZATION = "4";
 
+    private static final int CIRCUIT_PROBES = 1;
+
     private Logger logger = LoggerFactory.getLogger(MonetaWebPaymentGateway.class);
 
     private String paymentEndpoint;
@@ -56,15 +84,103 @@ public class MonetaWebPaymentGateway implements PaymentGateway
 
     private String baseURL;
 
+    private IdempotencyStore idempotencyStore;
+
+    private MonetaWebTransport transport;
+
+    private int connectTimeout;
+
+    private int socketTimeout;
+
+    private long poolTimeout;
+
+    private GatewayMetrics metrics;
+
+    private NotificationPipeline notificationPipeline;
+
+    private OutboundLimiter limiter;
+
+    private Bulkhead bulkhead;
+
+    private CircuitBreaker circuitBreaker;
+
+    private GatewayJournal journal;
+
     public MonetaWebPaymentGateway(MonetaWebGatewayConfiguration configuration, String baseURL)
     {
-        this.paymentEndpoint =
-                configuration.getEnvironment().equalsIgnoreCase(PROD_ENVIRONMENT) ? PROD_PAYMENT_ENDPOINT :
-                        TEST_PAYMENT_ENDPOINT;
+        this(configuration, baseURL, new InMemoryIdempotencyStore());
+    }
+
+    public MonetaWebPaymentGateway(MonetaWebGatewayConfiguration configuration, String baseURL,
+            IdempotencyStore idempotencyStore)
+    {
+        this(configuration, baseURL, idempotencyStore,
+                GatewayMetrics.unregistered(MonetaWebGatewayFactory.ID, OPERATIONS));
+    }
+
+    public MonetaWebPaymentGateway(MonetaWebGatewayConfiguration configuration, String baseURL,
+            IdempotencyStore idempotencyStore, GatewayMetrics metrics)
+    {
+        this(configuration, baseURL, idempotencyStore, metrics, null);
+    }
+
+    /**
+     * @param notificationPipeline the pipeline responses are ingested on, or null to process them on the calling
+     *        thread
+     */
+    public MonetaWebPaymentGateway(MonetaWebGatewayConfiguration configuration, String baseURL,
+            IdempotencyStore idempotencyStore, GatewayMetrics metrics, NotificationPipeline notificationPipeline)
+    {
+        this(configuration, baseURL, idempotencyStore, metrics, notificationPipeline, OutboundLimiter.unlimited());
+    }
+
+    /**
+     * @param limiter the limits of the payment initializations of the tenant
+     */
+    public MonetaWebPaymentGateway(MonetaWebGatewayConfiguration configuration, String baseURL,
+            IdempotencyStore idempotencyStore, GatewayMetrics metrics, NotificationPipeline notificationPipeline,
+            OutboundLimiter limiter)
+    {
+        this(configuration, baseURL, idempotencyStore, metrics, notificationPipeline, limiter, Bulkhead.unbounded());
+    }
+
+    /**
+     * @param bulkhead the concurrency budget of the payment initializations of all tenants
+     */
+    public MonetaWebPaymentGateway(MonetaWebGatewayConfiguration configuration, String baseURL,
+            IdempotencyStore idempotencyStore, GatewayMetrics metrics, NotificationPipeline notificationPipeline,
+            OutboundLimiter limiter, Bulkhead bulkhead)
+    {
+        this(configuration, baseURL, idempotencyStore, metrics, notificationPipeline, limiter, bulkhead,
+                GatewayJournal.unjournaled(MonetaWebGatewayFactory.ID));
+    }
+
+    /**
+     * @param journal records payment initializations before they are made, so that they are recovered if the node
+     *        dies before redirecting the customer
+     */
+    public MonetaWebPaymentGateway(MonetaWebGatewayConfiguration configuration, String baseURL,
+            IdempotencyStore idempotencyStore, GatewayMetrics metrics, NotificationPipeline notificationPipeline,
+            OutboundLimiter limiter, Bulkhead bulkhead, GatewayJournal journal)
+    {
+        this.journal = journal;
+        this.paymentEndpoint = getPaymentEndpoint(configuration);
+        this.limiter = limiter;
         this.id = configuration.getId();
         this.password = configuration.getPassword();
         this.languageId = configuration.getLanguageId();
         this.baseURL = baseURL;
+        this.idempotencyStore = idempotencyStore;
+        this.transport = MonetaWebTransport.get(paymentEndpoint, configuration.getMaxConnections());
+        this.connectTimeout = configuration.getConnectTimeout();
+        this.socketTimeout = configuration.getSocketTimeout();
+        this.poolTimeout = configuration.getPoolTimeout();
+        this.metrics = metrics;
+        this.notificationPipeline = notificationPipeline;
+        this.bulkhead = bulkhead;
+        this.circuitBreaker = new CircuitBreaker(configuration.getCircuitFailureThreshold(),
+                configuration.getCircuitOpenDuration(), CIRCUIT_PROBES);
+        metrics.watch(circuitBreaker);
 
         Preconditions.checkNotNull(id);
         Preconditions.checkNotNull(password);
@@ -72,8 +188,104 @@ public class MonetaWebPaymentGateway implements PaymentGateway
         Preconditions.checkNotNull(baseURL);
     }
 
+    /**
+     * @return the payment initialization endpoint of a configuration
+     */
+    static String getPaymentEndpoint(MonetaWebGatewayConfiguration configuration)
+    {
+        if (configuration.getEndpoint() != null) {
+            return configuration.getEndpoint();
+        }
+        return configuration.getEnvironment().equalsIgnoreCase(PROD_ENVIRONMENT) ? PROD_PAYMENT_ENDPOINT :
+                TEST_PAYMENT_ENDPOINT;
+    }
+
+    /**
+     * Payment initializations fail at once, with a {@link PaymentOperation.Result#FAILED} response, when the bulkhead
+     * of the gateway is full or when the circuit breaker of the tenant is open after MonetaWeb failed too many times in
+     * a row.
+     */
     @Override
     public GatewayResponse purchase(BigDecimal amount, Map<PaymentData, Object> options) throws GatewayException
+    {
+        try {
+            limiter.acquire();
+        } catch (RateLimitExceededException e) {
+            metrics.recordRateLimited();
+            throw e;
+        }
+        try {
+            if (!bulkhead.tryEnter()) {
+                metrics.recordBulkheadFull();
+                return unavailable("bulkheadFull");
+            }
+            try {
+                return limitedPurchase(amount, options);
+            } finally {
+                bulkhead.exit();
+            }
+        } finally {
+            limiter.release();
+        }
+    }
+
+    private GatewayResponse limitedPurchase(BigDecimal amount, Map<PaymentData, Object> options)
+            throws GatewayException
+    {
+        if (!circuitBreaker.tryAcquire()) {
+            metrics.recordCircuitOpen();
+            return unavailable("circuitOpen");
+        }
+        long start = System.nanoTime();
+        long[] remote = new long[1];
+        boolean available = false;
+        try {
+            GatewayResponse response = purchase(amount, options, remote);
+            available = response.isSuccessful();
+            metrics.record(GatewayMetrics.Operation.PURCHASE, start, remote[0], response);
+            return response;
+        } catch (RequestRejectedException e) {
+            // MonetaWeb answered, refusing the configuration of the tenant
+            available = true;
+            metrics.recordFailure(GatewayMetrics.Operation.PURCHASE, start, remote[0]);
+            throw e;
+        } catch (GatewayException e) {
+            metrics.recordFailure(GatewayMetrics.Operation.PURCHASE, start, remote[0]);
+            throw e;
+        } catch (RuntimeException e) {
+            // Not a failure of MonetaWeb, but of the options given
+            available = true;
+            metrics.recordFailure(GatewayMetrics.Operation.PURCHASE, start, remote[0]);
+            throw e;
+        } finally {
+            if (available) {
+                circuitBreaker.onSuccess();
+            } else {
+                circuitBreaker.onFailure();
+            }
+        }
+    }
+
+    /**
+     * @param reason why MonetaWeb was not called
+     * @return the failed response of a payment initialization refused without calling MonetaWeb
+     */
+    private GatewayResponse unavailable(String reason)
+    {
+        PaymentOperation operation = new PaymentOperation();
+        operation.setGatewayId(MonetaWebGatewayFactory.ID);
+        operation.setResult(PaymentOperation.Result.FAILED);
+        Map<String, Object> memo = new LinkedHashMap<String, Object>();
+        memo.put("error", reason);
+        operation.setMemo(memo);
+        return new GatewayResponse(false, operation);
+    }
+
+    /**
+     * @param remote receives the time, in nanoseconds, spent waiting for MonetaWeb
+     */
+    private GatewayResponse purchase(BigDecimal amount, Map<PaymentData, Object> options, long[] remote)
+            throws GatewayException
     {
         String baseURI = (String) options.get(BasePaymentData.BASE_URL);
         String orderId = options.get(BasePaymentData.ORDER_ID).toString();
@@ -84,6 +296,7 @@ public class MonetaWebPaymentGateway implements PaymentGateway
         String errorUrl = (String) options.get(BasePaymentData.CANCEL_URL);
 
         Currency currency = ((Currency) options.get(BasePaymentData.CURRENCY));
+        String amt = AmountCodec.format(AmountCodec.toMinorUnits(amount, currency), currency);
 
         PaymentOperation operation = new PaymentOperation();
         operation.setGatewayId(MonetaWebGatewayFactory.ID);
@@ -93,7 +306,7 @@ public class MonetaWebPaymentGateway implements PaymentGateway
             logger.debug("id : " + id);
             logger.debug("password : " + password);
             logger.debug("action : " + ACTION_AUTHORIZATION);
-            logger.debug("amt : " + amount.setScale(2).toString());
+            logger.debug("amt : " + amt);
             logger.debug("currencyCode : " + currency.getNumericCode());
             logger.debug("langId : " + languageId);
             logger.debug("responseUrl : " + responseUrl);
@@ -106,7 +319,7 @@ public class MonetaWebPaymentGateway implements PaymentGateway
         nvps.add(new BasicNameValuePair("id", id));
         nvps.add(new BasicNameValuePair("password", password));
         nvps.add(new BasicNameValuePair("action", ACTION_AUTHORIZATION));
-        nvps.add(new BasicNameValuePair("amt", amount.setScale(2).toString()));
+        nvps.add(new BasicNameValuePair("amt", amt));
         nvps.add(new BasicNameValuePair("currencycode", String.valueOf(currency.getNumericCode())));
         nvps.add(new BasicNameValuePair("langid", languageId)); // TODO get language from option locale
         nvps.add(new BasicNameValuePair("responseurl", responseUrl));
@@ -115,40 +328,55 @@ public class MonetaWebPaymentGateway implements PaymentGateway
         nvps.add(new BasicNameValuePair("udf1", "")); // No description for now. We will have to get it from options.
         nvps.add(new BasicNameValuePair("baseurl", baseURI));
 
+        JournalEntry entry;
+        try {
+            entry = journal.begin(UUID.fromString(orderId), orderId);
+        } catch (InterruptedIOException e) {
+            throw new GatewayException("Interrupted while journaling payment initialization", e);
+        }
+
         try {
             Map<String, Object> map = new LinkedHashMap<String, Object>();
             map.put("baseURI", baseURI);
             operation.setMemo(map);
 
-            DefaultHttpClient httpClient = new DefaultHttpClient();
             httpPost.setEntity(new UrlEncodedFormEntity(nvps));
-            HttpResponse response = httpClient.execute(httpPost);
+            long requestStart = System.nanoTime();
+            HttpResponse response = transport.execute(httpPost, connectTimeout, socketTimeout, poolTimeout);
+            HttpEntity entity = response.getEntity();
+            String stringResponse = entity != null ? EntityUtils.toString(entity) : null;
+            remote[0] = System.nanoTime() - requestStart;
+            if (logger.isDebugEnabled()) {
+                logger.debug("pool : " + transport.getStats());
+            }
 
             if (response.getStatusLine().getStatusCode() == 200) {
                 operation.setResult(PaymentOperation.Result.INITIALIZED);
                 GatewayResponse gatewayResponse;
-                HttpEntity entity = response.getEntity();
 
                 if (entity != null) {
                     gatewayResponse = new GatewayResponse(true, operation);
-                    String stringResponse = EntityUtils.toString(entity);
                     logger.debug("response : " + stringResponse);
                     if (stringResponse.contains("!ERROR!")) {
-                        throw new GatewayException("Failed to get a response entity : " + stringResponse);
+                        journal.complete(entry, PaymentOperation.Result.FAILED, null);
+                        throw new RequestRejectedException("Failed to get a response entity : " + stringResponse);
                     } else {
                         String redirectURL = stringResponse.split(":")[1] + ":" + stringResponse.split(":")[2];
                         String paymentId = stringResponse.split(":")[0];
 
                         gatewayResponse.setRedirectURL(redirectURL + "?PaymentID=" + paymentId);
+                        journal.complete(entry, PaymentOperation.Result.INITIALIZED, paymentId);
                     }
 
                     EntityUtils.consume(entity);
                 } else {
+                    journal.complete(entry, PaymentOperation.Result.FAILED, null);
                     throw new GatewayException("Failed to get a response entity");
                 }
 
                 return gatewayResponse;
             } else {
+                journal.complete(entry, PaymentOperation.Result.FAILED, null);
                 return new GatewayResponse(false, operation);
             }
         } catch (UnsupportedEncodingException e) {
@@ -161,6 +389,29 @@ public class MonetaWebPaymentGateway implements PaymentGateway
     }
 
     public GatewayResponse acknowledge(UUID orderId, Map<String, List<String>> data) throws GatewayException
+    {
+        return ingest(orderId, data, null);
+    }
+
+    /**
+     * Answers a MonetaWeb response as soon as it is mapped, and queues it for the handler. When the queue is full,
+     * the response is not acknowledged so that it is processed when the browser or MonetaWeb retries.
+     */
+    public GatewayResponse ingest(UUID orderId, Map<String, List<String>> data, NotificationHandler handler)
+            throws GatewayException
+    {
+        long start = System.nanoTime();
+        try {
+            GatewayResponse response = doAcknowledge(orderId, data, handler);
+            metrics.record(GatewayMetrics.Operation.ACKNOWLEDGE, start, 0, response);
+            return response;
+        } catch (RuntimeException e) {
+            metrics.recordFailure(GatewayMetrics.Operation.ACKNOWLEDGE, start, 0);
+            throw e;
+        }
+    }
+
+    private GatewayResponse doAcknowledge(UUID orderId, Map<String, List<String>> data, NotificationHandler handler)
     {
         Preconditions.checkElementIndex(0, data.get("result").size());
         Preconditions.checkElementIndex(0, data.get("paymentid").size());
@@ -168,6 +419,13 @@ public class MonetaWebPaymentGateway implements PaymentGateway
         String result = data.get("result").get(0).toString();
         String externalId = data.get("paymentid").get(0).toString();
 
+        // Browsers may hit the response URL again : give them the response already given
+        String acknowledgementKey = MonetaWebGatewayFactory.ID + ':' + externalId + ':' + result + ':' + orderId;
+        GatewayResponse previousResponse = idempotencyStore.get(acknowledgementKey);
+        if (previousResponse != null) {
+            return previousResponse;
+        }
+
         PaymentOperation operation = new PaymentOperation();
         operation.setGatewayId(MonetaWebGatewayFactory.ID);
         GatewayResponse response;
@@ -183,7 +441,74 @@ public class MonetaWebPaymentGateway implements PaymentGateway
             response.setResponseText(baseURL + "/checkout/error");
         }
 
+        if (!submit(orderId, response, handler)) {
+            return NotificationPipeline.retryLater();
+        }
+        idempotencyStore.put(acknowledgementKey, response);
         return response;
     }
-}
 
+    /**
+     * Hands a response to its handler, if any.
+     *
+     * @return false if the notification pipeline is full
+     */
+    private boolean submit(UUID orderId, GatewayResponse response, NotificationHandler handler)
+    {
+        if (handler == null) {
+            return true;
+        }
+        if (notificationPipeline == null) {
+            try {
+                handler.handle(orderId, response);
+            } catch (Exception e) {
+                logger.error("Failed to process MonetaWeb response of order " + orderId, e);
+            }
+            return true;
+        }
+        return notificationPipeline.submit(orderId, response, handler);
+    }
+
+    public ListenableFuture<GatewayResponse> purchaseAsync(BigDecimal amount, Map<PaymentData, Object> options)
+    {
+        return GatewayExecutors.purchase(GatewayExecutors.getDefault(), this, amount, options);
+    }
+
+    public ListenableFuture<GatewayResponse> acknowledgeAsync(UUID orderId, Map<String, List<String>> data)
+    {
+        return GatewayExecutors.acknowledge(GatewayExecutors.getDefault(), this, orderId, data);
+    }
+
+    /**
+     * MonetaWeb responses are told apart by their payment id and result.
+     */
+    @Override
+    public boolean isNotification(Map<String, List<String>> data)
+    {
+        return data.containsKey("paymentid") && data.containsKey("result");
+    }
+
+    /**
+     * Stops reporting the state of the circuit breaker of the tenant, once the gateway is replaced or evicted from the
+     * cache of its factory. The connections to the endpoint are shared by all tenants and stay open.
+     */
+    @Override
+    public void close()
+    {
+        metrics.unwatch(circuitBreaker);
+    }
+
+    /**
+     * An {@code !ERROR!} answer of MonetaWeb, which refuses the request because of the configuration of the tenant (a
+     * wrong terminal id or password for example). MonetaWeb is available, so these do not open the circuit breaker.
+     */
+    private static class RequestRejectedException extends GatewayException
+    {
+        private static final long serialVersionUID = 1L;
+
+        RequestRejectedException(String message)
+        {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.mayocat.shop.paymentgateways.monetaweb;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+import org.mayocat.shop.paymentgateways.common.DelimitedSettlementSource;
+import org.mayocat.shop.paymentgateways.common.SettlementRecord;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Settlement records of a MonetaWeb back office transactions export : a semicolon separated file, with decimal
+ * amounts and numeric currency codes.
+ *
+ * Records are identified by the MonetaWeb payment ID, which is what the gateway stores as the external ID of payment
+ * operations.
+ *
+ * @version $Id$
+ */
+public class MonetaWebSettlementSource extends DelimitedSettlementSource
+{
+    public static final String COLUMN_PAYMENT_ID = "PaymentID";
+
+    public static final String COLUMN_AMOUNT = "Amount";
+
+    public static final String COLUMN_CURRENCY = "Currency";
+
+    public static final String COLUMN_RESULT = "Result";
+
+    /**
+     * Results of captured payments.
+     */
+    public static final Set<String> CAPTURED_RESULTS = ImmutableSet.of("APPROVED", "CAPTURED");
+
+    private final int paymentId;
+
+    private final int amount;
+
+    private final int currency;
+
+    private final int result;
+
+    /**
+     * @param file the export file, encoded in UTF-8
+     * @throws IOException if the file cannot be opened or lacks a column
+     */
+    public MonetaWebSettlementSource(File file) throws IOException
+    {
+        super(file, ';', Charsets.UTF_8);
+        try {
+            this.paymentId = column(COLUMN_PAYMENT_ID);
+            this.amount = column(COLUMN_AMOUNT);
+            this.currency = column(COLUMN_CURRENCY);
+            this.result = column(COLUMN_RESULT);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    protected SettlementRecord read() throws IOException
+    {
+        String currencyCode = currency(currency);
+        String resultValue = text(result);
+        return new SettlementRecord(text(paymentId), decimalAmount(amount, currencyCode), currencyCode,
+                resultValue != null && CAPTURED_RESULTS.contains(resultValue.trim().toUpperCase()));
+    }
+}
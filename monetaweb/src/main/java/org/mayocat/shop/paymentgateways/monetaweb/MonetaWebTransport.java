@@ -0,0 +1,429 @@
+package org.mayocat.shop.paymentgateways.monetaweb;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.params.ClientPNames;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.mayocat.shop.paymentgateways.common.FairShareLimiter;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * HTTP transport to a MonetaWeb endpoint, shared by all the gateways of the process that use this endpoint.
+ *
+ * Each endpoint gets a single pooled client, so that connections, and their TLS sessions, are kept alive from one
+ * payment to the other instead of being opened for every checkout. Timeouts are set on each request, as they come
+ * from the configuration of the tenant that makes it.
+ *
+ * The occupancy of each pool and how long requests wait for its connections are reported by the
+ * {@code payments.monetaweb.pool.<endpoint>} gauges once {@link #instrument(MetricRegistry) instrumented}, so that
+ * pools can be sized. Pools are closed by {@link #shutdownAll()} when the application stops.
+ *
+ * @version $Id$
+ */
+public final class MonetaWebTransport
+{
+    /**
+     * How long a connection may stay idle in the pool before being closed.
+     */
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    /**
+     * How long a connection may be reused, so that DNS changes of the endpoint are eventually picked up.
+     */
+    private static final long CONNECTION_TTL = TimeUnit.MINUTES.toMillis(5);
+
+    private static final ConcurrentMap<String, MonetaWebTransport> TRANSPORTS =
+            new ConcurrentHashMap<String, MonetaWebTransport>();
+
+    private final String endpoint;
+
+    private final InstrumentedConnectionManager connectionManager;
+
+    private final DefaultHttpClient httpClient;
+
+    private final AtomicInteger maxConnections = new AtomicInteger();
+
+    private final AtomicLong lastEviction = new AtomicLong(System.currentTimeMillis());
+
+    private final FairShareLimiter fairShare = new FairShareLimiter(0);
+
+    private final AtomicBoolean instrumented = new AtomicBoolean();
+
+    private MonetaWebTransport(String endpoint)
+    {
+        this.endpoint = endpoint;
+        this.connectionManager = new InstrumentedConnectionManager();
+        this.httpClient = new DefaultHttpClient(connectionManager);
+    }
+
+    /**
+     * @param endpoint the endpoint URL
+     * @param maxConnections the number of connections the caller needs to the endpoint. The pool grows to the largest
+     * number asked for, it never shrinks
+     * @return the transport to the endpoint
+     */
+    public static MonetaWebTransport get(String endpoint, int maxConnections)
+    {
+        MonetaWebTransport transport = TRANSPORTS.get(endpoint);
+        if (transport == null) {
+            MonetaWebTransport created = new MonetaWebTransport(endpoint);
+            transport = TRANSPORTS.putIfAbsent(endpoint, created);
+            if (transport == null) {
+                transport = created;
+            } else {
+                created.shutdown();
+            }
+        }
+        transport.ensureCapacity(maxConnections);
+        return transport;
+    }
+
+    /**
+     * Closes the connections of all endpoints, when the application stops.
+     */
+    public static void shutdownAll()
+    {
+        for (String endpoint : TRANSPORTS.keySet()) {
+            MonetaWebTransport transport = TRANSPORTS.remove(endpoint);
+            if (transport != null) {
+                transport.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Reports the statistics of the pool to the registry, under {@code payments.monetaweb.pool.<endpoint>} with the
+     * characters of the endpoint other than letters and digits replaced by underscores. Does nothing once done.
+     *
+     * @param registry the platform metric registry
+     */
+    public void instrument(MetricRegistry registry)
+    {
+        if (!instrumented.compareAndSet(false, true)) {
+            return;
+        }
+        String prefix = MetricRegistry.name("payments", MonetaWebGatewayFactory.ID, "pool",
+                endpoint.replaceAll("[^A-Za-z0-9]+", "_"));
+        register(registry, MetricRegistry.name(prefix, "leased"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return connectionManager.getTotalStats().getLeased();
+            }
+        });
+        register(registry, MetricRegistry.name(prefix, "pending"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return connectionManager.getTotalStats().getPending();
+            }
+        });
+        register(registry, MetricRegistry.name(prefix, "available"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return connectionManager.getTotalStats().getAvailable();
+            }
+        });
+        register(registry, MetricRegistry.name(prefix, "max"), new Gauge<Integer>()
+        {
+            @Override
+            public Integer getValue()
+            {
+                return connectionManager.getTotalStats().getMax();
+            }
+        });
+        register(registry, MetricRegistry.name(prefix, "averageWait"), new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return getStats().getAverageWaitTime();
+            }
+        });
+        register(registry, MetricRegistry.name(prefix, "timeouts"), new Gauge<Long>()
+        {
+            @Override
+            public Long getValue()
+            {
+                return connectionManager.timeouts.get();
+            }
+        });
+    }
+
+    /**
+     * Registers a gauge in place of the one of a previous transport to the endpoint, if any.
+     */
+    private static void register(MetricRegistry registry, String name, Gauge<?> gauge)
+    {
+        registry.remove(name);
+        registry.register(name, gauge);
+    }
+
+    /**
+     * Executes a request with the given timeouts. The caller must release the connection of the request once it has
+     * consumed the response.
+     *
+     * @param request the request to execute
+     * @param connectTimeout the timeout to establish a connection, in milliseconds
+     * @param socketTimeout the timeout to wait for data, in milliseconds
+     * @param poolTimeout the timeout to get a connection from the pool, in milliseconds
+     */
+    public HttpResponse execute(HttpRequestBase request, int connectTimeout, int socketTimeout, long poolTimeout)
+            throws IOException
+    {
+        evictIdleConnections();
+
+        HttpParams params = request.getParams();
+        HttpConnectionParams.setConnectionTimeout(params, connectTimeout);
+        HttpConnectionParams.setSoTimeout(params, socketTimeout);
+        params.setLongParameter(ClientPNames.CONN_MANAGER_TIMEOUT, poolTimeout);
+
+        return httpClient.execute(request);
+    }
+
+    /**
+     * Opens a connection to the endpoint and leaves it in the pool, so that the first payment does not pay for the TLS
+     * handshake. Does nothing when the pool already holds an idle connection.
+     *
+     * @param connectTimeout the timeout to establish the connection, in milliseconds
+     * @param socketTimeout the timeout to wait for the answer, in milliseconds
+     * @throws IOException if the endpoint could not be reached
+     */
+    public void preconnect(int connectTimeout, int socketTimeout) throws IOException
+    {
+        if (connectionManager.getTotalStats().getAvailable() > 0) {
+            return;
+        }
+        HttpHead request = new HttpHead(endpoint);
+        try {
+            // Any answer will do, the connection is what matters
+            execute(request, connectTimeout, socketTimeout, connectTimeout);
+        } finally {
+            request.releaseConnection();
+        }
+    }
+
+    /**
+     * @return the limiter sharing the connections of the endpoint fairly between tenants
+     */
+    public FairShareLimiter getFairShare()
+    {
+        return fairShare;
+    }
+
+    public Stats getStats()
+    {
+        return new Stats(connectionManager.getTotalStats(), connectionManager.acquisitions.get(),
+                connectionManager.waitTime.get(), connectionManager.maxWaitTime.get(),
+                connectionManager.timeouts.get());
+    }
+
+    private void ensureCapacity(int requested)
+    {
+        while (true) {
+            int current = maxConnections.get();
+            if (requested <= current) {
+                return;
+            }
+            if (maxConnections.compareAndSet(current, requested)) {
+                // All requests go to the same route
+                connectionManager.setDefaultMaxPerRoute(requested);
+                connectionManager.setMaxTotal(requested);
+                fairShare.setCapacity(requested);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Closes idle connections before the server does, at most once per idle timeout, to avoid reusing connections that
+     * are about to be dropped.
+     */
+    private void evictIdleConnections()
+    {
+        long last = lastEviction.get();
+        long now = System.currentTimeMillis();
+        if (now - last > IDLE_TIMEOUT && lastEviction.compareAndSet(last, now)) {
+            connectionManager.closeExpiredConnections();
+            connectionManager.closeIdleConnections(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void shutdown()
+    {
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Occupancy of an endpoint pool, and how long requests waited to get a connection from it.
+     */
+    public static class Stats
+    {
+        private final int leased;
+
+        private final int pending;
+
+        private final int available;
+
+        private final int max;
+
+        private final long acquisitions;
+
+        private final long totalWaitTime;
+
+        private final long maxWaitTime;
+
+        private final long timeouts;
+
+        private Stats(PoolStats poolStats, long acquisitions, long totalWaitTime, long maxWaitTime, long timeouts)
+        {
+            this.leased = poolStats.getLeased();
+            this.pending = poolStats.getPending();
+            this.available = poolStats.getAvailable();
+            this.max = poolStats.getMax();
+            this.acquisitions = acquisitions;
+            this.totalWaitTime = totalWaitTime;
+            this.maxWaitTime = maxWaitTime;
+            this.timeouts = timeouts;
+        }
+
+        public int getLeased()
+        {
+            return leased;
+        }
+
+        public int getPending()
+        {
+            return pending;
+        }
+
+        public int getAvailable()
+        {
+            return available;
+        }
+
+        public int getMax()
+        {
+            return max;
+        }
+
+        public long getAcquisitions()
+        {
+            return acquisitions;
+        }
+
+        /**
+         * @return the average time, in microseconds, requests waited for a connection
+         */
+        public long getAverageWaitTime()
+        {
+            return acquisitions == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalWaitTime / acquisitions);
+        }
+
+        /**
+         * @return the longest time, in microseconds, a request waited for a connection
+         */
+        public long getMaxWaitTime()
+        {
+            return TimeUnit.NANOSECONDS.toMicros(maxWaitTime);
+        }
+
+        /**
+         * @return the number of requests that gave up waiting for a connection
+         */
+        public long getTimeouts()
+        {
+            return timeouts;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "leased=" + leased + ", pending=" + pending + ", available=" + available + ", max=" + max
+                    + ", acquisitions=" + acquisitions + ", averageWait=" + getAverageWaitTime() + "us, maxWait="
+                    + getMaxWaitTime() + "us, timeouts=" + timeouts;
+        }
+    }
+
+    /**
+     * Pooling connection manager that measures how long requests wait for a connection.
+     */
+    private static class InstrumentedConnectionManager extends PoolingClientConnectionManager
+    {
+        private final AtomicLong acquisitions = new AtomicLong();
+
+        private final AtomicLong waitTime = new AtomicLong();
+
+        private final AtomicLong maxWaitTime = new AtomicLong();
+
+        private final AtomicLong timeouts = new AtomicLong();
+
+        InstrumentedConnectionManager()
+        {
+            super(SchemeRegistryFactory.createDefault(), CONNECTION_TTL, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public ClientConnectionRequest requestConnection(HttpRoute route, Object state)
+        {
+            final ClientConnectionRequest request = super.requestConnection(route, state);
+            return new ClientConnectionRequest()
+            {
+                @Override
+                public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+                        throws InterruptedException, ConnectionPoolTimeoutException
+                {
+                    long start = System.nanoTime();
+                    try {
+                        ManagedClientConnection connection = request.getConnection(timeout, unit);
+                        record(System.nanoTime() - start);
+                        return connection;
+                    } catch (ConnectionPoolTimeoutException e) {
+                        timeouts.incrementAndGet();
+                        throw e;
+                    }
+                }
+
+                @Override
+                public void abortRequest()
+                {
+                    request.abortRequest();
+                }
+            };
+        }
+
+        private void record(long wait)
+        {
+            acquisitions.incrementAndGet();
+            waitTime.addAndGet(wait);
+            long max = maxWaitTime.get();
+            while (wait > max && !maxWaitTime.compareAndSet(max, wait)) {
+                max = maxWaitTime.get();
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package org.mayocat.shop.paymentgateways.monetaweb;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.inject.Singleton;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.ApplicationStoppedEvent;
+import org.xwiki.observation.event.Event;
+
+/**
+ * Closes the connections of the {@link MonetaWebTransport MonetaWeb transports} when the application stops.
+ *
+ * @version $Id$
+ */
+@Component(MonetaWebTransportListener.NAME)
+@Singleton
+public class MonetaWebTransportListener implements EventListener
+{
+    public static final String NAME = "monetaWebTransport";
+
+    @Override
+    public String getName()
+    {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new ApplicationStoppedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        MonetaWebTransport.shutdownAll();
+    }
+}
@@ -0,0 +1,129 @@
+package org.mayocat.shop.paymentgateways.paybox;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.util.List;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * Computes the HMAC of Paybox payment forms and verifies the RSA signature of Paybox IPNs.
+ *
+ * The tenant secret is decoded once, when the engine is created. {@link Mac} and {@link Signature} instances are
+ * looked up once per thread and reused, since for the short messages Paybox exchanges the provider lookup and key
+ * setup cost more than the hashing itself.
+ *
+ * Instances are thread-safe.
+ *
+ * @version $Id$
+ */
+public class PayboxCryptoEngine
+{
+    private static final String HMAC_ALGORITHM = "HmacSHA512";
+
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static final ThreadLocal<Signature> SIGNATURES = new ThreadLocal<Signature>()
+    {
+        @Override
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance(SIGNATURE_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Missing " + SIGNATURE_ALGORITHM + " signature algorithm", e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<char[]> HEX_BUFFERS = new ThreadLocal<char[]>()
+    {
+        @Override
+        protected char[] initialValue() {
+            // Large enough for a SHA-512 digest
+            return new char[128];
+        }
+    };
+
+    private final SecretKeySpec secretKey;
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>()
+    {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+                mac.init(secretKey);
+                return mac;
+            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                throw new IllegalStateException("Failed to initialize HMAC", e);
+            }
+        }
+    };
+
+    /**
+     * @param secret the tenant HMAC secret, hex-encoded as given in the Paybox back-office
+     */
+    public PayboxCryptoEngine(String secret) {
+        this.secretKey = new SecretKeySpec(DatatypeConverter.parseHexBinary(secret), HMAC_ALGORITHM);
+    }
+
+    /**
+     * Makes sure the JCA providers this engine needs are available, and pays for their lookup up-front.
+     */
+    public void warmUp() {
+        macs.get();
+        SIGNATURES.get();
+    }
+
+    /**
+     * @param input the message to sign, encoded with the platform default charset
+     * @return the upper-case hex-encoded HMAC-SHA512 of the message
+     */
+    public String hmac(String input) {
+        Mac mac = macs.get();
+        byte[] macData = mac.doFinal(input.getBytes());
+        return toHex(macData);
+    }
+
+    /**
+     * Verifies a SHA1withRSA signature against several keys, stopping at the first that matches.
+     *
+     * @param keys the candidate public keys
+     * @param message the buffer holding the signed message
+     * @param offset the offset of the signed message in the buffer
+     * @param length the length of the signed message
+     * @param signatureBytes the raw (decoded) signature
+     * @return true if one of the keys verifies the signature
+     */
+    public boolean verify(List<PublicKey> keys, byte[] message, int offset, int length, byte[] signatureBytes)
+            throws InvalidKeyException, SignatureException {
+        Signature signature = SIGNATURES.get();
+        for (PublicKey key : keys) {
+            signature.initVerify(key);
+            signature.update(message, offset, length);
+            if (signature.verify(signatureBytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] buffer = HEX_BUFFERS.get();
+        if (buffer.length < bytes.length * 2) {
+            buffer = new char[bytes.length * 2];
+            HEX_BUFFERS.set(buffer);
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            buffer[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            buffer[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(buffer, 0, bytes.length * 2);
+    }
+}
@@ -0,0 +1,116 @@
+package org.mayocat.shop.paymentgateways.paybox;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.mayocat.shop.payment.BasePaymentData;
+import org.mayocat.shop.payment.PaymentData;
+
+/**
+ * The Paybox payment form of a tenant, with everything that does not change from one purchase to the other compiled
+ * once.
+ *
+ * Parameters are always output in the same order, which is the order Paybox expects for the HMAC input.
+ *
+ * @version $Id$
+ */
+class PayboxFormTemplate
+{
+    private static final int EXPECTED_PARAMETERS = 16;
+
+    private static final ThreadLocal<StringBuilder> BUILDERS = new ThreadLocal<StringBuilder>()
+    {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(512);
+        }
+    };
+
+    private final String site;
+
+    private final String rang;
+
+    private final String id;
+
+    private final String returnParams;
+
+    private final String returnUrl;
+
+    private final String cancelUrl;
+
+    private final String formUrl;
+
+    /**
+     * Message head, up to the value of PBX_TOTAL.
+     */
+    private final String head;
+
+    /**
+     * Message part between PBX_TIME and PBX_REPONDRE_A values.
+     */
+    private final String returnParamsPart;
+
+    PayboxFormTemplate(PayboxTenantConfiguration configuration, String returnParams, String formUrl) {
+        this.site = configuration.getSite();
+        this.rang = configuration.getRang();
+        this.id = configuration.getId();
+        this.returnParams = returnParams;
+        this.returnUrl = configuration.getReturnUrl().isPresent() ? configuration.getReturnUrl().get() : null;
+        this.cancelUrl = configuration.getCancelUrl().isPresent() ? configuration.getCancelUrl().get() : null;
+        this.formUrl = formUrl;
+
+        this.head = "PBX_SITE=" + site + "&PBX_RANG=" + rang + "&PBX_IDENTIFIANT=" + id + "&PBX_TOTAL=";
+        this.returnParamsPart = "&PBX_RETOUR=" + returnParams + "&PBX_REPONDRE_A=";
+    }
+
+    String getFormUrl() {
+        return formUrl;
+    }
+
+    Object getReturnUrl(Map<PaymentData, Object> options) {
+        return returnUrl != null ? returnUrl : options.get(BasePaymentData.RETURN_URL);
+    }
+
+    Object getCancelUrl(Map<PaymentData, Object> options) {
+        return cancelUrl != null ? cancelUrl : options.get(BasePaymentData.CANCEL_URL);
+    }
+
+    /**
+     * Builds the HMAC input into a builder reused by the calling thread. The returned builder must not be kept.
+     */
+    StringBuilder message(long total, int currency, String order, String email, String time, Object ipnUrl,
+            Object returnUrl, Object cancelUrl) {
+        StringBuilder builder = BUILDERS.get();
+        builder.setLength(0);
+        builder.append(head).append(total)
+                .append("&PBX_DEVISE=").append(currency)
+                .append("&PBX_CMD=").append(order)
+                .append("&PBX_PORTEUR=").append(email)
+                .append("&PBX_HASH=SHA512&PBX_TIME=").append(time)
+                .append(returnParamsPart).append(ipnUrl)
+                .append("&PBX_EFFECTUE=").append(returnUrl)
+                .append("&PBX_ANNULE=").append(cancelUrl);
+        return builder;
+    }
+
+    /**
+     * Builds the form parameters, in the same order as in the HMAC input.
+     */
+    Map<String, Object> formData(long total, int currency, String order, String email, String time, Object ipnUrl,
+            Object returnUrl, Object cancelUrl) {
+        Map<String, Object> data = new LinkedHashMap<>(EXPECTED_PARAMETERS);
+        data.put("PBX_SITE", site);
+        data.put("PBX_RANG", rang);
+        data.put("PBX_IDENTIFIANT", id);
+        data.put("PBX_TOTAL", total);
+        data.put("PBX_DEVISE", currency);
+        data.put("PBX_CMD", order);
+        data.put("PBX_PORTEUR", email);
+        data.put("PBX_HASH", "SHA512");
+        data.put("PBX_TIME", time);
+        data.put("PBX_RETOUR", returnParams);
+        data.put("PBX_REPONDRE_A", ipnUrl);
+        data.put("PBX_EFFECTUE", returnUrl);
+        data.put("PBX_ANNULE", cancelUrl);
+        return data;
+    }
+}
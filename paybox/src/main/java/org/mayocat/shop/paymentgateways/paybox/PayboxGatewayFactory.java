@@ -1,17 +1,25 @@
 package org.mayocat.shop.paymentgateways.paybox;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.TreeTraversingParser;
 import com.google.common.base.Optional;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import javax.inject.Inject;
+import org.mayocat.context.WebContext;
 import org.mayocat.shop.payment.AbstractGatewayFactory;
 import org.mayocat.shop.payment.GatewayFactory;
 import org.mayocat.shop.payment.PaymentGateway;
+import org.mayocat.shop.paymentgateways.common.TenantConfigurationCache;
+import org.mayocat.shop.paymentgateways.common.GatewayInstanceCache;
+import org.mayocat.shop.paymentgateways.common.GatewayMetrics;
+import org.mayocat.shop.paymentgateways.common.GatewayMetricsRegistry;
+import org.mayocat.shop.paymentgateways.common.IdempotencyStore;
+import org.mayocat.shop.paymentgateways.common.NotificationPipelines;
+import org.mayocat.shop.paymentgateways.common.WarmableGatewayFactory;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 
@@ -19,16 +27,45 @@ import org.xwiki.component.annotation.Component;
  * @version $Id$
  */
 @Component(PayboxGatewayFactory.ID)
-public class PayboxGatewayFactory extends AbstractGatewayFactory implements GatewayFactory
+public class PayboxGatewayFactory extends AbstractGatewayFactory implements GatewayFactory, WarmableGatewayFactory
 {
     public static final String ID = "paybox";
 
+    private static final String CONFIGURATION_FILENAME = "configuration.yml";
+
+    /**
+     * Any valid secret, for warming up the HMAC provider before tenant secrets are known.
+     */
+    private static final String WARM_UP_SECRET = "00";
+
     @Inject
     private ObjectMapper mapper;
 
     @Inject
     private Logger logger;
 
+    @Inject
+    private WebContext context;
+
+    @Inject
+    private TenantConfigurationCache configurationCache;
+
+    @Inject
+    private GatewayMetricsRegistry metricsRegistry;
+
+    @Inject
+    private IdempotencyStore idempotencyStore;
+
+    @Inject
+    private NotificationPipelines notificationPipelines;
+
+    /**
+     * Key stores of the tenants that override the bundled Paybox key, by override file.
+     */
+    private final ConcurrentMap<File, PayboxKeyStore> keyStores = new ConcurrentHashMap<>();
+
+    private final GatewayInstanceCache gateways = new GatewayInstanceCache();
+
     @Override
     public String getId() {
         return ID;
@@ -36,19 +73,38 @@ public class PayboxGatewayFactory extends AbstractGatewayFactory implements Gate
 
     @Override
     public PaymentGateway createGateway() {
+        long start = System.nanoTime();
+        String tenant = context.getTenant().getSlug();
+        GatewayMetrics tenantMetrics = metricsRegistry.get(ID, tenant, PayboxPaymentGateway.OPERATIONS);
+
+        PaymentGateway gateway = createGateway(tenant, tenantMetrics);
+        if (gateway != null) {
+            tenantMetrics.record(GatewayMetrics.Operation.CREATE_GATEWAY, start, 0, null);
+        } else {
+            tenantMetrics.recordFailure(GatewayMetrics.Operation.CREATE_GATEWAY, start, 0);
+        }
+        return gateway;
+    }
 
-        Optional<File> tenantConfigurationFile = getTenantConfigurationFile("configuration.yml");
+    private PaymentGateway createGateway(String tenant, GatewayMetrics tenantMetrics) {
+        Optional<File> tenantConfigurationFile = getTenantConfigurationFile(CONFIGURATION_FILENAME);
         if (!tenantConfigurationFile.isPresent()) {
             logger.error("Failed to create Paybox payment gateway : no tenant configuration found");
             return null;
         }
 
         try {
-            JsonNode node = mapper.readTree(tenantConfigurationFile.get());
-            PayboxTenantConfiguration configuration =
-                    mapper.readValue(new TreeTraversingParser(node), PayboxTenantConfiguration.class);
+            PayboxTenantConfiguration configuration = configurationCache.get(tenant, ID,
+                    tenantConfigurationFile.get(), PayboxTenantConfiguration.class, mapper);
+            PayboxKeyStore keyStore = getKeyStore();
 
-            return new PayboxPaymentGateway(configuration);
+            PaymentGateway gateway = gateways.get(tenant, configuration, keyStore);
+            if (gateway == null) {
+                gateway = new PayboxPaymentGateway(configuration, keyStore, idempotencyStore, tenantMetrics,
+                        notificationPipelines.get(ID));
+                gateways.put(tenant, gateway, configuration, keyStore);
+            }
+            return gateway;
 
         } catch (FileNotFoundException e) {
             logger.error("Failed to create Paybox payment gateway : configuration file not found");
@@ -61,4 +117,49 @@ public class PayboxGatewayFactory extends AbstractGatewayFactory implements Gate
             return null;
         }
     }
+
+    /**
+     * Parses the bundled Paybox key, and looks up the HMAC, RSA key and signature providers.
+     */
+    @Override
+    public void warmUp() {
+        PayboxKeyStore.bundled().getKeys();
+        new PayboxCryptoEngine(WARM_UP_SECRET).warmUp();
+    }
+
+    /**
+     * Parses the configuration and the keys of the tenant, and checks that its secret is usable.
+     */
+    @Override
+    public void warmUp(String tenant, File directory) throws IOException {
+        PayboxTenantConfiguration configuration = configurationCache.get(tenant, ID,
+                new File(directory, CONFIGURATION_FILENAME), PayboxTenantConfiguration.class, mapper);
+        if (configuration.getSecret() == null) {
+            throw new IllegalArgumentException("Missing Paybox secret");
+        }
+        new PayboxCryptoEngine(configuration.getSecret()).warmUp();
+
+        File keyFile = new File(directory, PayboxKeyStore.KEY_FILENAME);
+        getKeyStore(keyFile.exists() ? Optional.of(keyFile) : Optional.<File>absent()).getKeys();
+    }
+
+    private PayboxKeyStore getKeyStore() {
+        return getKeyStore(getTenantConfigurationFile(PayboxKeyStore.KEY_FILENAME));
+    }
+
+    private PayboxKeyStore getKeyStore(Optional<File> keyFile) {
+        if (!keyFile.isPresent()) {
+            return PayboxKeyStore.bundled();
+        }
+
+        PayboxKeyStore keyStore = keyStores.get(keyFile.get());
+        if (keyStore == null) {
+            keyStore = new PayboxKeyStore(keyFile);
+            PayboxKeyStore existing = keyStores.putIfAbsent(keyFile.get(), keyStore);
+            if (existing != null) {
+                keyStore = existing;
+            }
+        }
+        return keyStore;
+    }
 }
@@ -0,0 +1,176 @@
+package org.mayocat.shop.paymentgateways.paybox;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import com.google.common.io.Resources;
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.binary.Base64;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the public keys used to verify the signature of Paybox IPNs.
+ *
+ * The key bundled with this module is parsed only once. A tenant can add keys by dropping a {@value #KEY_FILENAME}
+ * file (which may contain several PEM blocks) in its Paybox payments directory, for example while Paybox rotates its
+ * key. That file is re-read whenever its modification time or size changes, and its keys are tried before the
+ * bundled one.
+ *
+ * @version $Id$
+ */
+public class PayboxKeyStore
+{
+    public static final String KEY_FILENAME = "paybox.pem";
+
+    private static final String BUNDLED_KEY = "org.mayocat.shop.paymentgateways.paybox/paybox.pem";
+
+    private static final String BEGIN_PUBLIC_KEY = "-----BEGIN PUBLIC KEY-----";
+
+    private static final String END_PUBLIC_KEY = "-----END PUBLIC KEY-----";
+
+    /**
+     * Minimum delay between two checks of the override file modification time.
+     */
+    private static final long CHECK_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+
+    private static final PayboxKeyStore BUNDLED = new PayboxKeyStore(Optional.<File>absent());
+
+    private Logger logger = LoggerFactory.getLogger(PayboxKeyStore.class);
+
+    private final Optional<File> overrideFile;
+
+    private volatile Snapshot snapshot;
+
+    private volatile long nextCheck;
+
+    public PayboxKeyStore(Optional<File> overrideFile) {
+        this.overrideFile = overrideFile;
+    }
+
+    /**
+     * @return the key store holding only the key bundled with this module
+     */
+    public static PayboxKeyStore bundled() {
+        return BUNDLED;
+    }
+
+    /**
+     * @return the keys to try, in order, when verifying a Paybox signature
+     */
+    public List<PublicKey> getKeys() {
+        if (!overrideFile.isPresent()) {
+            return BundledKeys.KEYS;
+        }
+
+        Snapshot current = snapshot;
+        long now = System.currentTimeMillis();
+        if (current == null || now >= nextCheck) {
+            current = refresh(now);
+        }
+        return current.keys;
+    }
+
+    private synchronized Snapshot refresh(long now) {
+        Snapshot current = snapshot;
+        if (current != null && now < nextCheck) {
+            // Another thread refreshed while we were waiting for the lock
+            return current;
+        }
+
+        File file = overrideFile.get();
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        if (current == null || current.lastModified != lastModified || current.length != length) {
+            ImmutableList.Builder<PublicKey> keys = ImmutableList.builder();
+            if (lastModified != 0L) {
+                try {
+                    keys.addAll(parse(Files.toString(file, Charsets.UTF_8)));
+                    logger.info("Loaded Paybox keys from {}", file);
+                } catch (IOException | GeneralSecurityException | IllegalArgumentException e) {
+                    if (current != null) {
+                        logger.error("Failed to reload Paybox keys from {}, keeping previous keys", file, e);
+                        nextCheck = now + CHECK_INTERVAL;
+                        return current;
+                    }
+                    logger.error("Failed to load Paybox keys from {}, using bundled key only", file, e);
+                }
+            }
+            keys.addAll(BundledKeys.KEYS);
+            current = new Snapshot(keys.build(), lastModified, length);
+            snapshot = current;
+        }
+
+        nextCheck = now + CHECK_INTERVAL;
+        return current;
+    }
+
+    /**
+     * Parses all the public keys of a PEM document.
+     *
+     * @param pem the PEM document, holding one or several "PUBLIC KEY" blocks
+     * @return the parsed keys, in document order
+     */
+    static List<PublicKey> parse(String pem) throws GeneralSecurityException {
+        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+        ImmutableList.Builder<PublicKey> keys = ImmutableList.builder();
+
+        int begin = pem.indexOf(BEGIN_PUBLIC_KEY);
+        while (begin >= 0) {
+            int end = pem.indexOf(END_PUBLIC_KEY, begin);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated public key block");
+            }
+            String keyAsString = pem.substring(begin + BEGIN_PUBLIC_KEY.length(), end);
+            X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(Base64.decodeBase64(keyAsString));
+            keys.add(keyFactory.generatePublic(publicKeySpec));
+            begin = pem.indexOf(BEGIN_PUBLIC_KEY, end);
+        }
+
+        List<PublicKey> result = keys.build();
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("No public key found");
+        }
+        return result;
+    }
+
+    private static class Snapshot
+    {
+        private final List<PublicKey> keys;
+
+        private final long lastModified;
+
+        private final long length;
+
+        private Snapshot(List<PublicKey> keys, long lastModified, long length) {
+            this.keys = keys;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Lazy holder for the key bundled with this module.
+     */
+    private static class BundledKeys
+    {
+        private static final List<PublicKey> KEYS = load();
+
+        private static List<PublicKey> load() {
+            try {
+                return parse(Resources.toString(Resources.getResource(BUNDLED_KEY), Charsets.UTF_8));
+            } catch (IOException | GeneralSecurityException e) {
+                throw new RuntimeException("Failed to load bundled Paybox public key", e);
+            }
+        }
+    }
+}
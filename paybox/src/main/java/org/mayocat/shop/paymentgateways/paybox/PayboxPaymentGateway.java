@@ -5,27 +5,15 @@ import com.google.common.base.Function;
 import com.google.common.base.Joiner;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.Maps;
-import com.google.common.io.Resources;
-import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
 import java.math.BigDecimal;
-import java.security.InvalidKeyException;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.Signature;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.Collection;
 import java.util.Currency;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
-import javax.crypto.Mac;
-import javax.crypto.spec.SecretKeySpec;
-import javax.xml.bind.DatatypeConverter;
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.binary.Hex;
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormatter;
 import org.joda.time.format.ISODateTimeFormat;
@@ -35,16 +23,31 @@ import org.mayocat.shop.payment.BasePaymentData;
 import org.mayocat.shop.payment.GatewayException;
 import org.mayocat.shop.payment.GatewayResponse;
 import org.mayocat.shop.payment.PaymentData;
-import org.mayocat.shop.payment.PaymentGateway;
 import org.mayocat.shop.payment.model.PaymentOperation;
+import org.mayocat.shop.paymentgateways.common.AmountCodec;
+import org.mayocat.shop.paymentgateways.common.AsyncPaymentGateway;
+import org.mayocat.shop.paymentgateways.common.GatewayExecutors;
+import org.mayocat.shop.paymentgateways.common.GatewayMetrics;
+import org.mayocat.shop.paymentgateways.common.IdempotencyStore;
+import org.mayocat.shop.paymentgateways.common.IngestingPaymentGateway;
+import org.mayocat.shop.paymentgateways.common.InMemoryIdempotencyStore;
+import org.mayocat.shop.paymentgateways.common.NotificationHandler;
+import org.mayocat.shop.paymentgateways.common.NotificationPipeline;
+import org.mayocat.shop.paymentgateways.common.RedirectPaymentGateway;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * @version $Id$
  */
-public class PayboxPaymentGateway implements PaymentGateway
+public class PayboxPaymentGateway implements AsyncPaymentGateway, IngestingPaymentGateway, RedirectPaymentGateway
 {
+    /**
+     * The operations of the gateway, timed by its metrics.
+     */
+    static final Set<GatewayMetrics.Operation> OPERATIONS = Sets.immutableEnumSet(GatewayMetrics.Operation.PURCHASE,
+            GatewayMetrics.Operation.ACKNOWLEDGE, GatewayMetrics.Operation.CREATE_GATEWAY);
+
     public static final String UTF_8 = "UTF-8";
 
     private PayboxTenantConfiguration configuration;
@@ -63,6 +66,13 @@ public class PayboxPaymentGateway implements PaymentGateway
 
     private static final String STATUS_SUCCESSFUL = "00000";
 
+    private static final String PRODUCTION_FORM_URL = "https://tpeweb.paybox.com/cgi/MYchoix_pagepaiement.cgi";
+
+    private static final String PREPRODUCTION_FORM_URL =
+            "https://preprod-tpeweb.paybox.com/cgi/MYchoix_pagepaiement.cgi";
+
+    private static final DateTimeFormatter TIME_FORMATTER = ISODateTimeFormat.dateTimeNoMillis();
+
     static {
         RETURN_PARAMS.put(RETURN_PARAM_STATUS, "E");
         RETURN_PARAMS.put(RETURN_PARAM_AUTHORIZATION, "A");
@@ -70,93 +80,151 @@ public class PayboxPaymentGateway implements PaymentGateway
         RETURN_PARAMS.put(RETURN_PARAM_REQUEST_ID, "T");
     }
 
+    /**
+     * The PBX_RETOUR value : our names for the parameters Paybox sends back, and the signature last.
+     */
+    private static final String RETURN_PARAMS_VALUE =
+            Joiner.on(";").withKeyValueSeparator(":").join(RETURN_PARAMS) + ";signature:K";
+
+    private PayboxKeyStore keyStore;
+
+    private PayboxCryptoEngine cryptoEngine;
+
+    private PayboxFormTemplate template;
+
+    private IdempotencyStore idempotencyStore;
+
+    private GatewayMetrics metrics;
+
+    private NotificationPipeline notificationPipeline;
+
     public PayboxPaymentGateway(PayboxTenantConfiguration configuration) {
+        this(configuration, PayboxKeyStore.bundled(), new InMemoryIdempotencyStore());
+    }
+
+    public PayboxPaymentGateway(PayboxTenantConfiguration configuration, PayboxKeyStore keyStore,
+            IdempotencyStore idempotencyStore) {
+        this(configuration, keyStore, idempotencyStore,
+                GatewayMetrics.unregistered(PayboxGatewayFactory.ID, OPERATIONS));
+    }
+
+    public PayboxPaymentGateway(PayboxTenantConfiguration configuration, PayboxKeyStore keyStore,
+            IdempotencyStore idempotencyStore, GatewayMetrics metrics) {
+        this(configuration, keyStore, idempotencyStore, metrics, null);
+    }
+
+    /**
+     * @param notificationPipeline the pipeline IPNs are ingested on, or null to process them on the calling thread
+     */
+    public PayboxPaymentGateway(PayboxTenantConfiguration configuration, PayboxKeyStore keyStore,
+            IdempotencyStore idempotencyStore, GatewayMetrics metrics, NotificationPipeline notificationPipeline) {
         this.configuration = configuration;
+        this.keyStore = keyStore;
+        this.idempotencyStore = idempotencyStore;
+        this.metrics = metrics;
+        this.notificationPipeline = notificationPipeline;
+        this.cryptoEngine = new PayboxCryptoEngine(configuration.getSecret());
+        this.template = new PayboxFormTemplate(configuration, RETURN_PARAMS_VALUE, getFormUrl(configuration));
+    }
+
+    private static String getFormUrl(PayboxTenantConfiguration configuration) {
+        if (configuration.getFormUrl() != null) {
+            return configuration.getFormUrl();
+        }
+        return configuration.getMode().equalsIgnoreCase("production") ? PRODUCTION_FORM_URL : PREPRODUCTION_FORM_URL;
     }
 
     @Override
     public GatewayResponse purchase(BigDecimal amount, Map<PaymentData, Object> options) throws GatewayException {
-        final Map<String, Object> paymentData = Maps.newLinkedHashMap();
+        // Paybox payments are made on its payment page : purchases and acknowledgements are all local work
+        long start = System.nanoTime();
+        try {
+            GatewayResponse response = doPurchase(amount, options);
+            metrics.record(GatewayMetrics.Operation.PURCHASE, start, 0, response);
+            return response;
+        } catch (RuntimeException e) {
+            metrics.recordFailure(GatewayMetrics.Operation.PURCHASE, start, 0);
+            throw e;
+        }
+    }
 
+    private GatewayResponse doPurchase(BigDecimal amount, Map<PaymentData, Object> options) {
         Currency currency = (Currency) options.get(BasePaymentData.CURRENCY);
         Order order = (Order) options.get(BasePaymentData.ORDER);
         Customer customer = (Customer) options.get(BasePaymentData.CUSTOMER);
 
-        DateTimeFormatter formatter = ISODateTimeFormat.dateTimeNoMillis();
-
-        paymentData.put("PBX_SITE", configuration.getSite());
-        paymentData.put("PBX_RANG", configuration.getRang());
-        paymentData.put("PBX_IDENTIFIANT", configuration.getId());
-        paymentData.put("PBX_TOTAL", "1000");
-        paymentData.put("PBX_TOTAL", amount.multiply(BigDecimal.valueOf(100)).longValue());
-        paymentData.put("PBX_DEVISE", currency.getNumericCode());
-        paymentData.put("PBX_CMD", order.getId().toString());
-        paymentData.put("PBX_PORTEUR", customer.getEmail());
-        paymentData.put("PBX_HASH", "SHA512");
-        paymentData.put("PBX_TIME", formatter.print(new DateTime()));
-
-        // Params
-        String returnParams = Joiner.on(";").join(FluentIterable.from(RETURN_PARAMS.keySet())
-                .transform(new Function<String, String>()
-                {
-                    public String apply(String key) {
-                        return key + ":" + RETURN_PARAMS.get(key);
-                    }
-                }).toList());
-        paymentData.put("PBX_RETOUR", returnParams + ";signature:K");
+        long total = AmountCodec.toMinorUnits(amount, currency);
+        int currencyCode = currency.getNumericCode();
+        String orderId = order.getId().toString();
+        String email = customer.getEmail();
+        String time = TIME_FORMATTER.print(new DateTime());
 
         // Success (return), cancel & IPN URL
-        paymentData.put("PBX_REPONDRE_A", options.get(BasePaymentData.IPN_URL));
-        if (configuration.getReturnUrl().isPresent()) {
-            paymentData.put("PBX_EFFECTUE", configuration.getReturnUrl().get());
-        } else {
-            paymentData.put("PBX_EFFECTUE", options.get(BasePaymentData.RETURN_URL));
-        }
-        if (configuration.getCancelUrl().isPresent()) {
-            paymentData.put("PBX_ANNULE", configuration.getCancelUrl().get());
-        } else {
-            paymentData.put("PBX_ANNULE", options.get(BasePaymentData.CANCEL_URL));
-        }
-
+        Object ipnUrl = options.get(BasePaymentData.IPN_URL);
+        Object returnUrl = template.getReturnUrl(options);
+        Object cancelUrl = template.getCancelUrl(options);
 
         // Failed (refused) URL
         // paymentData.put("PBX_REFUSE", "");
         // "Waiting" URL
         // paymentData.put("PBX_ATTENTE", "");
 
-        Collection<String> params = FluentIterable.from(paymentData.keySet())
-                .transform(new Function<String, String>()
-                {
-                    public String apply(String key) {
-                        return key + "=" + paymentData.get(key);
-                    }
-                }).toList();
-
-        String message = Joiner.on("&").join(params);
+        StringBuilder message =
+                template.message(total, currencyCode, orderId, email, time, ipnUrl, returnUrl, cancelUrl);
 
         this.logger.debug("PAYBOX PARAMS: {}", message);
 
-        paymentData.put("PBX_HMAC", this.computeHMAC(message));
+        Map<String, Object> paymentData =
+                template.formData(total, currencyCode, orderId, email, time, ipnUrl, returnUrl, cancelUrl);
+        paymentData.put("PBX_HMAC", this.computeHMAC(message.toString()));
 
         PaymentOperation paymentOperation = new PaymentOperation();
+        paymentOperation.setGatewayId(PayboxGatewayFactory.ID);
         paymentOperation.setResult(PaymentOperation.Result.INITIALIZED);
 
         GatewayResponse response = new GatewayResponse(true, paymentOperation);
         response.setData(paymentData);
-
-        if (configuration.getMode().equalsIgnoreCase("production")) {
-            response.setFormURL("https://tpeweb.paybox.com/cgi/MYchoix_pagepaiement.cgi");
-        } else {
-            response.setFormURL("https://preprod-tpeweb.paybox.com/cgi/MYchoix_pagepaiement.cgi");
-        }
+        response.setFormURL(template.getFormUrl());
 
         return response;
     }
 
     @Override
-    public GatewayResponse acknowledge(UUID orderId, final Map<String, List<String>> data) throws GatewayException {
+    public GatewayResponse acknowledge(UUID orderId, Map<String, List<String>> data) throws GatewayException {
+        return ingest(orderId, data, null);
+    }
+
+    /**
+     * Acknowledges a Paybox IPN as soon as its signature is verified, and queues it for the handler. When the queue
+     * is full, the IPN is not acknowledged so that Paybox sends it again.
+     */
+    @Override
+    public GatewayResponse ingest(UUID orderId, Map<String, List<String>> data, NotificationHandler handler)
+            throws GatewayException {
+        long start = System.nanoTime();
+        try {
+            GatewayResponse response = doAcknowledge(orderId, data, handler);
+            metrics.record(GatewayMetrics.Operation.ACKNOWLEDGE, start, 0, response);
+            return response;
+        } catch (GatewayException | RuntimeException e) {
+            metrics.recordFailure(GatewayMetrics.Operation.ACKNOWLEDGE, start, 0);
+            throw e;
+        }
+    }
+
+    private GatewayResponse doAcknowledge(UUID orderId, final Map<String, List<String>> data,
+            NotificationHandler handler) throws GatewayException {
         this.logger.info("Acknowledge paybox payment!");
 
+        // Paybox retries IPNs : give a retried IPN the response already given to it
+        String acknowledgementKey = acknowledgementKey(data.get(RETURN_PARAM_TRANSACTION_ID).get(0),
+                Base64.decodeBase64(data.get("signature").get(0)));
+        GatewayResponse previousResponse = idempotencyStore.get(acknowledgementKey);
+        if (previousResponse != null) {
+            this.logger.info("Paybox IPN already acknowledged");
+            return previousResponse;
+        }
+
         // First, verify the message signature from paybox, to ensure its authenticity
 
         String message = Joiner.on("&").join(FluentIterable.from(RETURN_PARAMS.keySet())
@@ -168,40 +236,122 @@ public class PayboxPaymentGateway implements PaymentGateway
                 }).toList());
         boolean isVerified = this.verifySignature(message, data.get("signature").get(0));
 
-        GatewayResponse gatewayResponse;
-        PaymentOperation operation = new PaymentOperation();
-        Map<String, Object> memo = Maps.newHashMap();
-
         if (isVerified) {
             // Request is legit.
 
             this.logger.info("Paybox signature verified");
 
-            String transactionId = data.get(RETURN_PARAM_TRANSACTION_ID).get(0);
-            String responseStatus = data.get(RETURN_PARAM_STATUS).get(0);
+            GatewayResponse response = acknowledged(data.get(RETURN_PARAM_STATUS).get(0),
+                    data.get(RETURN_PARAM_AUTHORIZATION).get(0), data.get(RETURN_PARAM_TRANSACTION_ID).get(0),
+                    data.get(RETURN_PARAM_REQUEST_ID).get(0));
+            if (!submit(orderId, response, handler)) {
+                return NotificationPipeline.retryLater();
+            }
+            idempotencyStore.put(acknowledgementKey, response);
+            return response;
+        } else {
+            // Request is not legit, it is not verified against the Paybox public key.
+
+            this.logger.error("Paybox signature not verified");
+            throw new GatewayException("Illegal Paybox IPN attempt : signature check failed");
+        }
+    }
+
+    /**
+     * Acknowledges a Paybox IPN from its raw query string.
+     *
+     * @see #acknowledge(UUID, byte[])
+     */
+    public GatewayResponse acknowledge(UUID orderId, String queryString) throws GatewayException {
+        return acknowledge(orderId, queryString.getBytes(Charsets.US_ASCII));
+    }
 
-            memo.put("requestId", data.get(RETURN_PARAM_REQUEST_ID).get(0));
-            memo.put("authorization", data.get(RETURN_PARAM_AUTHORIZATION).get(0));
-            memo.put("status", responseStatus);
+    /**
+     * Acknowledges a Paybox IPN from the raw bytes of its query string, without having the container parse it first.
+     *
+     * The signature is checked against the signed prefix of the query string as is, and the IPN parameters are only
+     * decoded once it has been verified, so that forged IPNs are rejected as cheaply as possible.
+     *
+     * @param orderId the ID of the order the IPN is about
+     * @param queryString the query string bytes, as sent by Paybox
+     */
+    public GatewayResponse acknowledge(UUID orderId, byte[] queryString) throws GatewayException {
+        return ingest(orderId, queryString, null);
+    }
 
-            operation.setGatewayId(PayboxGatewayFactory.ID);
-            operation.setExternalId(transactionId);
-            operation.setMemo(memo);
+    /**
+     * Ingests a Paybox IPN from the raw bytes of its query string.
+     *
+     * @see #acknowledge(UUID, byte[])
+     * @see #ingest(UUID, Map, NotificationHandler)
+     */
+    public GatewayResponse ingest(UUID orderId, byte[] queryString, NotificationHandler handler)
+            throws GatewayException {
+        long start = System.nanoTime();
+        try {
+            GatewayResponse response = doAcknowledge(orderId, queryString, handler);
+            metrics.record(GatewayMetrics.Operation.ACKNOWLEDGE, start, 0, response);
+            return response;
+        } catch (GatewayException | RuntimeException e) {
+            metrics.recordFailure(GatewayMetrics.Operation.ACKNOWLEDGE, start, 0);
+            throw e;
+        }
+    }
 
-            if (responseStatus.equals(STATUS_SUCCESSFUL)) {
-                operation.setResult(PaymentOperation.Result.CAPTURED);
-                gatewayResponse = new GatewayResponse(true, operation);
-            } else {
-                operation.setResult(PaymentOperation.Result.FAILED);
-                gatewayResponse = new GatewayResponse(false, operation);
+    private GatewayResponse doAcknowledge(UUID orderId, byte[] queryString, NotificationHandler handler)
+            throws GatewayException {
+        PayboxQueryString query = new PayboxQueryString(queryString);
+
+        String acknowledgementKey = null;
+        if (query.getSignedLength() > 0) {
+            acknowledgementKey = acknowledgementKey(query.getParameter(RETURN_PARAM_TRANSACTION_ID),
+                    query.getSignature());
+            GatewayResponse previousResponse = idempotencyStore.get(acknowledgementKey);
+            if (previousResponse != null) {
+                this.logger.info("Paybox IPN already acknowledged");
+                return previousResponse;
             }
-            return gatewayResponse;
-        } else {
-            // Request is not legit, it is not verified against the Paybox public key.
+        }
 
+        boolean isVerified = false;
+        if (query.getSignedLength() > 0) {
+            try {
+                isVerified = cryptoEngine.verify(keyStore.getKeys(), query.getBytes(), 0, query.getSignedLength(),
+                        query.getSignature());
+            } catch (Exception e) {
+                this.logger.warn("Exception while verifying paybox signature", e);
+            }
+        }
+
+        if (!isVerified) {
             this.logger.error("Paybox signature not verified");
             throw new GatewayException("Illegal Paybox IPN attempt : signature check failed");
         }
+
+        String status = query.getParameter(RETURN_PARAM_STATUS);
+        String authorization = query.getParameter(RETURN_PARAM_AUTHORIZATION);
+        String transactionId = query.getParameter(RETURN_PARAM_TRANSACTION_ID);
+        String requestId = query.getParameter(RETURN_PARAM_REQUEST_ID);
+        if (status == null || transactionId == null) {
+            throw new GatewayException("Invalid Paybox IPN : missing status or transaction ID");
+        }
+
+        GatewayResponse response = acknowledged(status, authorization, transactionId, requestId);
+        if (!submit(orderId, response, handler)) {
+            return NotificationPipeline.retryLater();
+        }
+        idempotencyStore.put(acknowledgementKey, response);
+        return response;
+    }
+
+    @Override
+    public ListenableFuture<GatewayResponse> purchaseAsync(BigDecimal amount, Map<PaymentData, Object> options) {
+        return GatewayExecutors.purchase(GatewayExecutors.getDefault(), this, amount, options);
+    }
+
+    @Override
+    public ListenableFuture<GatewayResponse> acknowledgeAsync(UUID orderId, Map<String, List<String>> data) {
+        return GatewayExecutors.acknowledge(GatewayExecutors.getDefault(), this, orderId, data);
     }
 
     @Override
@@ -214,46 +364,83 @@ public class PayboxPaymentGateway implements PaymentGateway
         throw new RuntimeException("Not supported");
     }
 
+    /**
+     * IPNs are told apart by the parameters of {@link #RETURN_PARAMS_VALUE} and their signature.
+     */
+    @Override
+    public boolean isNotification(Map<String, List<String>> data) {
+        return data.containsKey(RETURN_PARAM_TRANSACTION_ID) && data.containsKey(RETURN_PARAM_STATUS)
+                && data.containsKey("signature");
+    }
+
     // ---------------------------------------------------------------------------------------------
 
-    private String computeHMAC(String input) {
-        Mac mac = null;
-        SecretKeySpec secretKey = new SecretKeySpec(DatatypeConverter.parseHexBinary(this.configuration.getSecret()), "HmacSHA512");
-        try {
-            mac = Mac.getInstance("HmacSHA512");
-            mac.init(secretKey);
-            final byte[] macData = mac.doFinal(input.getBytes());
-            byte[] hex = new Hex().encode(macData);
-            return new String(hex, "UTF-8").toUpperCase();
-        } catch (NoSuchAlgorithmException | InvalidKeyException | UnsupportedEncodingException e) {
-            throw new RuntimeException("Failed to compute HMAC", e);
+    /**
+     * Hands a verified IPN to its handler, if any.
+     *
+     * @return false if the notification pipeline is full
+     */
+    private boolean submit(UUID orderId, GatewayResponse response, NotificationHandler handler) {
+        if (handler == null) {
+            return true;
+        }
+        if (notificationPipeline == null) {
+            try {
+                handler.handle(orderId, response);
+            } catch (Exception e) {
+                this.logger.error("Failed to process Paybox IPN of order {}", orderId, e);
+            }
+            return true;
         }
+        return notificationPipeline.submit(orderId, response, handler);
+    }
+
+    /**
+     * @param signature the decoded signature : IPNs acknowledged from their parameters or from their raw query string
+     *        get the same key, whatever the encoding of their signature
+     */
+    private String acknowledgementKey(String transactionId, byte[] signature) {
+        // The signature is part of the key, so that a forged IPN cannot get the response of a legit one
+        return PayboxGatewayFactory.ID + ':' + transactionId + ':' + Base64.encodeBase64String(signature);
+    }
+
+    private GatewayResponse acknowledged(String status, String authorization, String transactionId,
+            String requestId) {
+        PaymentOperation operation = new PaymentOperation();
+        Map<String, Object> memo = Maps.newHashMap();
+
+        memo.put("requestId", requestId);
+        memo.put("authorization", authorization);
+        memo.put("status", status);
+
+        operation.setGatewayId(PayboxGatewayFactory.ID);
+        operation.setExternalId(transactionId);
+        operation.setMemo(memo);
+
+        if (status.equals(STATUS_SUCCESSFUL)) {
+            operation.setResult(PaymentOperation.Result.CAPTURED);
+            return new GatewayResponse(true, operation);
+        } else {
+            operation.setResult(PaymentOperation.Result.FAILED);
+            return new GatewayResponse(false, operation);
+        }
+    }
+
+    private String computeHMAC(String input) {
+        return cryptoEngine.hmac(input);
     }
 
     private boolean verifySignature(String message, String signatureText) {
-        final Signature signature;
         try {
-            signature = Signature.getInstance("SHA1withRSA");
-            signature.initVerify(getKey());
-            signature.update(message.getBytes(UTF_8));
-
             final Base64 b64 = new Base64();
             final byte[] bytes = b64.decode(signatureText.getBytes(UTF_8));
+            final byte[] messageBytes = message.getBytes(UTF_8);
 
-            return signature.verify(bytes);
+            // Several keys are tried while Paybox rotates its key
+            return cryptoEngine.verify(keyStore.getKeys(), messageBytes, 0, messageBytes.length, bytes);
         } catch (Exception e) {
             this.logger.warn("Exception while verifying paybox signature", e);
             return false;
         }
     }
-
-    private PublicKey getKey() throws NoSuchAlgorithmException, IOException, InvalidKeySpecException {
-        KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-        String keyAsString = Resources.toString(
-                Resources.getResource("org.mayocat.shop.paymentgateways.paybox/paybox.pem"), Charsets.UTF_8);
-        keyAsString = keyAsString.replace("-----BEGIN PUBLIC KEY-----\n", "");
-        keyAsString = keyAsString.replace("-----END PUBLIC KEY-----", "");
-        X509EncodedKeySpec publicKeySpec = new X509EncodedKeySpec(Base64.decodeBase64(keyAsString));
-        return keyFactory.generatePublic(publicKeySpec);
-    }
 }
@@ -0,0 +1,127 @@
+package org.mayocat.shop.paymentgateways.paybox;
+
+import com.google.common.base.Charsets;
+import java.util.Arrays;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Reads the raw query string of a Paybox IPN directly from its bytes.
+ *
+ * Paybox signs everything that precedes the signature parameter, which it always sends last (see the "signature:K"
+ * in PBX_RETOUR). Locating that boundary is enough to check the signature, so nothing else is decoded until the
+ * signature has been verified.
+ *
+ * @version $Id$
+ */
+final class PayboxQueryString
+{
+    private static final byte[] SIGNATURE_PARAMETER = "&signature=".getBytes(Charsets.US_ASCII);
+
+    private final byte[] query;
+
+    private final int signedLength;
+
+    PayboxQueryString(byte[] query) {
+        this.query = query;
+        this.signedLength = indexOf(query, SIGNATURE_PARAMETER);
+    }
+
+    /**
+     * @return the query string bytes, which start with the signed part
+     */
+    byte[] getBytes() {
+        return query;
+    }
+
+    /**
+     * @return the length of the signed part of the query string, or -1 when it holds no signature
+     */
+    int getSignedLength() {
+        return signedLength;
+    }
+
+    /**
+     * @return the decoded signature
+     */
+    byte[] getSignature() {
+        int start = signedLength + SIGNATURE_PARAMETER.length;
+        return Base64.decodeBase64(urlDecode(query, start, signatureEnd(start)));
+    }
+
+    private int signatureEnd(int start) {
+        int end = start;
+        while (end < query.length && query[end] != '&') {
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * @param name the name of a parameter of the signed part
+     * @return the decoded parameter value, or null if the parameter is absent
+     */
+    String getParameter(String name) {
+        int limit = signedLength < 0 ? query.length : signedLength;
+        int start = 0;
+        while (start < limit) {
+            int end = start;
+            while (end < limit && query[end] != '&') {
+                end++;
+            }
+            if (nameMatches(name, start, end)) {
+                byte[] value = urlDecode(query, start + name.length() + 1, end);
+                return new String(value, Charsets.UTF_8);
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    private boolean nameMatches(String name, int start, int end) {
+        int length = name.length();
+        if (end - start <= length || query[start + length] != '=') {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (query[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] urlDecode(byte[] source, int start, int end) {
+        byte[] decoded = new byte[end - start];
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = source[i];
+            if (b == '+') {
+                decoded[length++] = ' ';
+            } else if (b == '%') {
+                int high = i + 2 < end ? Character.digit(source[i + 1], 16) : -1;
+                int low = i + 2 < end ? Character.digit(source[i + 2], 16) : -1;
+                if (high < 0 || low < 0) {
+                    throw new IllegalArgumentException("Invalid escape sequence in Paybox query string");
+                }
+                decoded[length++] = (byte) ((high << 4) + low);
+                i += 2;
+            } else {
+                decoded[length++] = b;
+            }
+        }
+        return length == decoded.length ? decoded : Arrays.copyOf(decoded, length);
+    }
+
+    private static int indexOf(byte[] source, byte[] target) {
+        outer:
+        for (int i = 0; i <= source.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (source[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,67 @@
+package org.mayocat.shop.paymentgateways.paybox;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import org.mayocat.shop.paymentgateways.common.DelimitedSettlementSource;
+import org.mayocat.shop.paymentgateways.common.SettlementRecord;
+
+/**
+ * Settlement records of a Paybox back office transactions export : a semicolon separated file, with amounts in cents
+ * and numeric currency codes.
+ *
+ * Records are identified by the Paybox transaction number, which is what the gateway stores as the external ID of
+ * payment operations.
+ *
+ * @version $Id$
+ */
+public class PayboxSettlementSource extends DelimitedSettlementSource
+{
+    public static final String COLUMN_TRANSACTION = "NumTrans";
+
+    public static final String COLUMN_AMOUNT = "Montant";
+
+    public static final String COLUMN_CURRENCY = "Devise";
+
+    public static final String COLUMN_STATUS = "Statut";
+
+    /**
+     * Statuses of captured transactions, in French and English back offices.
+     */
+    public static final Set<String> CAPTURED_STATUSES =
+            ImmutableSet.of("T\u00e9l\u00e9collect\u00e9", "Captur\u00e9", "Captured", "Remitted");
+
+    private final int transaction;
+
+    private final int amount;
+
+    private final int currency;
+
+    private final int status;
+
+    /**
+     * @param file the export file, encoded in ISO-8859-1 as the Paybox back office produces it
+     * @throws IOException if the file cannot be opened or lacks a column
+     */
+    public PayboxSettlementSource(File file) throws IOException {
+        super(file, ';', Charsets.ISO_8859_1);
+        try {
+            this.transaction = column(COLUMN_TRANSACTION);
+            this.amount = column(COLUMN_AMOUNT);
+            this.currency = column(COLUMN_CURRENCY);
+            this.status = column(COLUMN_STATUS);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    protected SettlementRecord read() throws IOException {
+        String status = text(this.status);
+        return new SettlementRecord(text(transaction), minorUnits(amount), currency(currency),
+                status != null && CAPTURED_STATUSES.contains(status.trim()));
+    }
+}
@@ -21,6 +21,11 @@ public class PayboxTenantConfiguration
 
     private Optional<String> cancelUrl;
 
+    /**
+     * Overrides the payment form URL derived from the mode, to use a local simulator for example.
+     */
+    private String formUrl;
+
     public String getSite() {
         return site;
     }
@@ -48,4 +53,8 @@ public class PayboxTenantConfiguration
     public String getMode() {
         return mode;
     }
+
+    public String getFormUrl() {
+        return formUrl;
+    }
 }
@@ -0,0 +1,149 @@
+package org.mayocat.shop.paymentgateways.paybox;
+
+import java.nio.charset.Charset;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.xml.bind.DatatypeConverter;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link PayboxCryptoEngine} against the signing and verification code it replaced in
+ * {@link PayboxPaymentGateway}.
+ *
+ * @version $Id$
+ */
+public class PayboxCryptoEngineTest
+{
+    private static final String SECRET = "0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF"
+            + "0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final List<String> MESSAGES = Arrays.asList(
+            "",
+            "PBX_SITE=1999888&PBX_RANG=32&PBX_IDENTIFIANT=107904482&PBX_TOTAL=1000&PBX_DEVISE=978"
+                    + "&PBX_CMD=4ae0a1a6-5b4c-4a0f-9e39-2b1a7c3f1c11&PBX_PORTEUR=test@example.com"
+                    + "&PBX_RETOUR=amount:M;reference:R;authorization:A;error:E;signature:K"
+                    + "&PBX_HASH=SHA512&PBX_TIME=2014-07-01T12:00:00+02:00",
+            "PBX_PORTEUR=évelyne.dûpont@exemple.fr&PBX_TOTAL=1999",
+            "日本語のメッセージ");
+
+    @Test
+    public void hmacIsTheSameAsBefore() throws Exception {
+        PayboxCryptoEngine engine = new PayboxCryptoEngine(SECRET);
+        for (String message : MESSAGES) {
+            assertEquals(previousHmac(SECRET, message), engine.hmac(message));
+        }
+    }
+
+    @Test
+    public void hmacIsTheSameAsBeforeAcrossThreads() throws Exception {
+        final PayboxCryptoEngine engine = new PayboxCryptoEngine(SECRET);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                final String message = MESSAGES.get(i % MESSAGES.size()) + i;
+                results.add(executor.submit(new Callable<Boolean>()
+                {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return previousHmac(SECRET, message).equals(engine.hmac(message));
+                    }
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void verifyAgreesWithBefore() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(1024);
+        KeyPair rotated = generator.generateKeyPair();
+        KeyPair current = generator.generateKeyPair();
+        List<PublicKey> keys = Arrays.asList(rotated.getPublic(), current.getPublic());
+        PayboxCryptoEngine engine = new PayboxCryptoEngine(SECRET);
+
+        for (String message : MESSAGES) {
+            byte[] messageBytes = message.getBytes(UTF_8);
+            byte[] signature = sign(current, messageBytes);
+            assertTrue(previousVerify(keys, messageBytes, signature));
+            assertTrue(engine.verify(keys, messageBytes, 0, messageBytes.length, signature));
+
+            byte[] tampered = (message + "&PBX_TOTAL=1").getBytes(UTF_8);
+            assertFalse(previousVerify(keys, tampered, signature));
+            assertFalse(engine.verify(keys, tampered, 0, tampered.length, signature));
+
+            assertFalse(engine.verify(Collections.singletonList(rotated.getPublic()), messageBytes, 0,
+                    messageBytes.length, signature));
+        }
+    }
+
+    @Test
+    public void verifyReadsTheMessageAtAnOffset() throws Exception {
+        KeyPair key = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        byte[] message = MESSAGES.get(1).getBytes(UTF_8);
+        byte[] signature = sign(key, message);
+        byte[] buffer = new byte[message.length + 10];
+        System.arraycopy(message, 0, buffer, 4, message.length);
+
+        assertTrue(new PayboxCryptoEngine(SECRET).verify(Collections.singletonList(key.getPublic()), buffer, 4,
+                message.length, signature));
+    }
+
+    /**
+     * The HMAC code of {@link PayboxPaymentGateway} before {@link PayboxCryptoEngine}.
+     */
+    private static String previousHmac(String secret, String input) throws Exception {
+        SecretKeySpec secretKey = new SecretKeySpec(DatatypeConverter.parseHexBinary(secret), "HmacSHA512");
+        Mac mac = Mac.getInstance("HmacSHA512");
+        mac.init(secretKey);
+        final byte[] macData = mac.doFinal(input.getBytes());
+        byte[] hex = new Hex().encode(macData);
+        return new String(hex, "UTF-8").toUpperCase();
+    }
+
+    /**
+     * The verification code of {@link PayboxPaymentGateway} before {@link PayboxCryptoEngine}.
+     */
+    private static boolean previousVerify(List<PublicKey> keys, byte[] messageBytes, byte[] bytes) throws Exception {
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        for (PublicKey key : keys) {
+            signature.initVerify(key);
+            signature.update(messageBytes);
+            if (signature.verify(bytes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static byte[] sign(KeyPair key, byte[] message) throws Exception {
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(key.getPrivate());
+        signature.update(message);
+        return signature.sign();
+    }
+}
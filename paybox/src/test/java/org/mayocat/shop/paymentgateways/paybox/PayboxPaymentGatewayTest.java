@@ -0,0 +1,110 @@
+package org.mayocat.shop.paymentgateways.paybox;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import java.io.File;
+import java.net.URLEncoder;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.paymentgateways.common.IdempotencyStore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * @version $Id$
+ */
+public class PayboxPaymentGatewayTest
+{
+    private static final String SIGNED = "status=00000&authorization=XXXXXX&transactionId=12345678&requestId=87654321";
+
+    @Test
+    public void ipnRetriedThroughTheOtherPathGetsTheSameResponse() throws Exception {
+        // Paybox signatures hold '+' and '/', URL-encoded in the query string and not in the parameters
+        KeyPair generated;
+        String encodedSignature;
+        do {
+            generated = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+            encodedSignature = Base64.encodeBase64String(sign(generated, SIGNED));
+        } while (!encodedSignature.contains("+") && !encodedSignature.contains("/"));
+        final KeyPair key = generated;
+        final List<String> keys = new ArrayList<>();
+        IdempotencyStore store = new IdempotencyStore()
+        {
+            private final Map<String, GatewayResponse> responses = new HashMap<>();
+
+            @Override
+            public GatewayResponse get(String key) {
+                keys.add(key);
+                return responses.get(key);
+            }
+
+            @Override
+            public void put(String key, GatewayResponse response) {
+                responses.put(key, response);
+            }
+        };
+        PayboxKeyStore keyStore = new PayboxKeyStore(Optional.<File>absent())
+        {
+            @Override
+            public List<PublicKey> getKeys() {
+                return Collections.singletonList(key.getPublic());
+            }
+        };
+        PayboxPaymentGateway gateway = new PayboxPaymentGateway(configuration(), keyStore, store);
+
+        Map<String, List<String>> data = new HashMap<>();
+        data.put("status", Collections.singletonList("00000"));
+        data.put("authorization", Collections.singletonList("XXXXXX"));
+        data.put("transactionId", Collections.singletonList("12345678"));
+        data.put("requestId", Collections.singletonList("87654321"));
+        data.put("signature", Collections.singletonList(encodedSignature));
+        UUID orderId = UUID.randomUUID();
+        GatewayResponse first = gateway.acknowledge(orderId, data);
+
+        String query = SIGNED + "&signature=" + URLEncoder.encode(encodedSignature, "UTF-8");
+        GatewayResponse retried = gateway.acknowledge(orderId, query.getBytes(Charsets.US_ASCII));
+
+        assertEquals(2, keys.size());
+        assertEquals(keys.get(0), keys.get(1));
+        assertSame(first, retried);
+    }
+
+    private static byte[] sign(KeyPair key, String message) throws Exception {
+        Signature signature = Signature.getInstance("SHA1withRSA");
+        signature.initSign(key.getPrivate());
+        signature.update(message.getBytes(Charsets.UTF_8));
+        return signature.sign();
+    }
+
+    private static PayboxTenantConfiguration configuration() {
+        return new PayboxTenantConfiguration()
+        {
+            @Override
+            public String getSecret() {
+                return "0123456789ABCDEF0123456789ABCDEF";
+            }
+
+            @Override
+            public Optional<String> getReturnUrl() {
+                return Optional.absent();
+            }
+
+            @Override
+            public Optional<String> getCancelUrl() {
+                return Optional.absent();
+            }
+        };
+    }
+}
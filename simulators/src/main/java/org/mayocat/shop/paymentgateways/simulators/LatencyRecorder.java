@@ -0,0 +1,76 @@
+package org.mayocat.shop.paymentgateways.simulators;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the latencies of an operation, and reports their percentiles.
+ *
+ * @version $Id$
+ */
+public class LatencyRecorder
+{
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private final String name;
+
+    private long[] latencies = new long[1024];
+
+    private int count;
+
+    private int errors;
+
+    public LatencyRecorder(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @param latency the operation latency, in nanoseconds
+     * @param successful whether the operation succeeded
+     */
+    public synchronized void record(long latency, boolean successful) {
+        if (count == latencies.length) {
+            latencies = Arrays.copyOf(latencies, count * 2);
+        }
+        latencies[count++] = latency;
+        if (!successful) {
+            errors++;
+        }
+    }
+
+    /**
+     * @param elapsed the time, in nanoseconds, the operations were run for
+     * @return the throughput, error count and latency percentiles of the operation
+     */
+    public synchronized String report(long elapsed) {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%-28s %8d ops %8.1f ops/s %6d errors", name, count,
+                count / (elapsed / (double) TimeUnit.SECONDS.toNanos(1)), errors));
+        for (double percentile : PERCENTILES) {
+            report.append(String.format(Locale.ROOT, "  p%s=%.2fms", format(percentile),
+                    toMillis(valueAt(sorted, percentile))));
+        }
+        report.append(String.format(Locale.ROOT, "  max=%.2fms", toMillis(count > 0 ? sorted[count - 1] : 0)));
+        return report.toString();
+    }
+
+    private static long valueAt(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static String format(double percentile) {
+        return percentile == Math.rint(percentile) ? String.valueOf((long) percentile) : String.valueOf(percentile);
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,269 @@
+package org.mayocat.shop.paymentgateways.simulators;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import com.fasterxml.jackson.datatype.guava.GuavaModule;
+import com.google.common.base.Splitter;
+import com.stripe.Stripe;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.mayocat.shop.payment.BasePaymentData;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentData;
+import org.mayocat.shop.paymentgateways.monetaweb.MonetaWebGatewayConfiguration;
+import org.mayocat.shop.paymentgateways.paybox.PayboxTenantConfiguration;
+import org.mayocat.shop.paymentgateways.stripe.StripeTenantConfiguration;
+
+/**
+ * Runs checkouts against the provider simulators at a target rate, and reports throughput and latency percentiles per
+ * gateway.
+ *
+ * Checkouts are started on schedule whether or not previous ones are done, and purchase latencies are measured from
+ * the time a checkout was scheduled : when the gateways fall behind, the time checkouts wait shows in the latencies
+ * instead of lowering the rate.
+ *
+ * Settings are read from system properties :
+ * <ul>
+ * <li>loadtest.gateways : the gateways to load, among "paybox", "stripe" and "monetaweb" (all by default)</li>
+ * <li>loadtest.rate : checkouts started per second and per gateway (50)</li>
+ * <li>loadtest.duration : how long to run, in seconds (30)</li>
+ * <li>loadtest.threads : the number of threads running checkouts (64)</li>
+ * <li>simulator.* : how providers behave, see {@link SimulatorSettings#fromSystemProperties()}</li>
+ * </ul>
+ *
+ * @version $Id$
+ */
+public class LoadDriver
+{
+    private static final String PAYBOX_CONFIGURATION = "site: '1999888'\n"
+            + "rang: '32'\n"
+            + "id: '107904482'\n"
+            + "secret: '0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF"
+            + "0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF0123456789ABCDEF'\n"
+            + "returnUrl: ~\n"
+            + "cancelUrl: ~\n";
+
+    private static final String STRIPE_WEBHOOK_SECRET = "whsec_simulator";
+
+    private final SimulatorSettings settings;
+
+    private final double rate;
+
+    private final long duration;
+
+    private final ObjectMapper mapper;
+
+    private final List<ProviderSimulator> simulators = new ArrayList<>();
+
+    public LoadDriver(SimulatorSettings settings, double rate, long duration) {
+        this.settings = settings;
+        this.rate = rate;
+        this.duration = duration;
+        this.mapper = new ObjectMapper(new YAMLFactory());
+        this.mapper.registerModule(new GuavaModule());
+    }
+
+    public static void main(String[] args) throws Exception {
+        SimulatorSettings settings = SimulatorSettings.fromSystemProperties();
+        double rate = Double.parseDouble(System.getProperty("loadtest.rate", "50"));
+        long duration = Long.getLong("loadtest.duration", 30);
+        int threads = Integer.getInteger("loadtest.threads", 64);
+        List<String> gateways = Splitter.on(',').trimResults().omitEmptyStrings()
+                .splitToList(System.getProperty("loadtest.gateways", "paybox,stripe,monetaweb"));
+
+        LoadDriver driver = new LoadDriver(settings, rate, duration);
+        try {
+            List<PaymentFlow<?>> flows = new ArrayList<>();
+            for (String gateway : gateways) {
+                flows.add(driver.createFlow(gateway));
+            }
+            System.out.println("Running " + gateways + " at " + rate + " checkouts/s each for " + duration
+                    + "s, providers : " + settings);
+            for (String line : driver.run(flows, threads)) {
+                System.out.println(line);
+            }
+        } finally {
+            driver.stop();
+        }
+    }
+
+    /**
+     * Starts the simulator of a provider, and creates a flow running checkouts against it.
+     *
+     * @param gateway the gateway identifier
+     */
+    public PaymentFlow<?> createFlow(String gateway) throws Exception {
+        switch (gateway) {
+            case "paybox":
+                PayboxIpnEmitter emitter = new PayboxIpnEmitter(settings);
+                File keyFile = File.createTempFile("paybox", ".pem");
+                keyFile.deleteOnExit();
+                emitter.writePublicKey(keyFile);
+                return new PayboxFlow(configuration(PAYBOX_CONFIGURATION, PayboxTenantConfiguration.class), emitter,
+                        keyFile);
+            case "stripe":
+                StripeSimulator stripe = start(new StripeSimulator(settings, STRIPE_WEBHOOK_SECRET));
+                // The Stripe client only has a process-wide API base
+                Stripe.overrideApiBase(stripe.getBaseUrl());
+                return new StripeFlow(configuration("apiKey: sk_test_simulator\n"
+                        + "webhookSecret: " + STRIPE_WEBHOOK_SECRET + "\n", StripeTenantConfiguration.class), stripe);
+            case "monetaweb":
+                MonetaWebSimulator monetaWeb = start(new MonetaWebSimulator(settings));
+                return new MonetaWebFlow(configuration("id: '99999999'\n"
+                        + "password: '99999999'\n"
+                        + "endpoint: '" + monetaWeb.getEndpoint() + "'\n", MonetaWebGatewayConfiguration.class),
+                        monetaWeb);
+            default:
+                throw new IllegalArgumentException("Unknown gateway [" + gateway + "]");
+        }
+    }
+
+    /**
+     * Runs checkouts of all flows at the same time.
+     *
+     * @param flows the flows to run
+     * @param threads the number of threads running checkouts
+     * @return the report of the run
+     */
+    public List<String> run(List<PaymentFlow<?>> flows, int threads) throws InterruptedException {
+        ExecutorService workers = Executors.newFixedThreadPool(threads);
+        List<Thread> schedulers = new ArrayList<>();
+        List<LatencyRecorder> recorders = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (PaymentFlow<?> flow : flows) {
+            LatencyRecorder purchases = new LatencyRecorder(flow.getName() + " purchase");
+            LatencyRecorder acknowledgements = new LatencyRecorder(flow.getName() + " acknowledge");
+            recorders.add(purchases);
+            recorders.add(acknowledgements);
+            Thread scheduler = new Thread(new Scheduler<>(flow, workers, start, purchases, acknowledgements),
+                    "loadtest-" + flow.getName());
+            scheduler.start();
+            schedulers.add(scheduler);
+        }
+        for (Thread scheduler : schedulers) {
+            scheduler.join();
+        }
+        workers.shutdown();
+        if (!workers.awaitTermination(duration + 60, TimeUnit.SECONDS)) {
+            workers.shutdownNow();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        List<String> report = new ArrayList<>();
+        for (LatencyRecorder recorder : recorders) {
+            report.add(recorder.report(elapsed));
+        }
+        for (ProviderSimulator simulator : simulators) {
+            report.add(simulator.toString());
+        }
+        return report;
+    }
+
+    public void stop() {
+        for (ProviderSimulator simulator : simulators) {
+            simulator.stop();
+        }
+    }
+
+    private <T extends ProviderSimulator> T start(T simulator) {
+        simulator.start();
+        simulators.add(simulator);
+        return simulator;
+    }
+
+    private <T> T configuration(String yaml, Class<T> type) throws IOException {
+        return mapper.readValue(yaml, type);
+    }
+
+    /**
+     * Starts the checkouts of a flow on schedule.
+     */
+    private class Scheduler<N> implements Runnable
+    {
+        private final PaymentFlow<N> flow;
+
+        private final ExecutorService workers;
+
+        private final long start;
+
+        private final LatencyRecorder purchases;
+
+        private final LatencyRecorder acknowledgements;
+
+        Scheduler(PaymentFlow<N> flow, ExecutorService workers, long start, LatencyRecorder purchases,
+                LatencyRecorder acknowledgements) {
+            this.flow = flow;
+            this.workers = workers;
+            this.start = start;
+            this.purchases = purchases;
+            this.acknowledgements = acknowledgements;
+        }
+
+        @Override
+        public void run() {
+            long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+            long end = start + TimeUnit.SECONDS.toNanos(duration);
+            try {
+                for (long scheduled = start; scheduled < end; scheduled += interval) {
+                    long wait = scheduled - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                    final long checkoutStart = scheduled;
+                    workers.execute(new Runnable()
+                    {
+                        @Override
+                        public void run() {
+                            checkout(checkoutStart);
+                        }
+                    });
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void checkout(long scheduled) {
+            Map<PaymentData, Object> options = flow.newOrder();
+            UUID orderId = (UUID) options.get(BasePaymentData.ORDER_ID);
+
+            GatewayResponse purchase;
+            try {
+                purchase = flow.purchase(options);
+                purchases.record(System.nanoTime() - scheduled, purchase.isSuccessful());
+            } catch (Exception e) {
+                purchases.record(System.nanoTime() - scheduled, false);
+                return;
+            }
+            if (!purchase.isSuccessful()) {
+                return;
+            }
+
+            N notification;
+            try {
+                notification = flow.notification(orderId, purchase);
+            } catch (Exception e) {
+                return;
+            }
+            if (notification == null) {
+                return;
+            }
+
+            long acknowledgementStart = System.nanoTime();
+            try {
+                GatewayResponse acknowledgement = flow.acknowledge(orderId, notification);
+                acknowledgements.record(System.nanoTime() - acknowledgementStart, acknowledgement.isSuccessful());
+            } catch (Exception e) {
+                acknowledgements.record(System.nanoTime() - acknowledgementStart, false);
+            }
+        }
+    }
+}
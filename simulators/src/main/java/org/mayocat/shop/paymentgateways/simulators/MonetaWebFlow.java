@@ -0,0 +1,58 @@
+package org.mayocat.shop.paymentgateways.simulators;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentData;
+import org.mayocat.shop.paymentgateways.common.InMemoryIdempotencyStore;
+import org.mayocat.shop.paymentgateways.monetaweb.MonetaWebGatewayConfiguration;
+import org.mayocat.shop.paymentgateways.monetaweb.MonetaWebGatewayFactory;
+import org.mayocat.shop.paymentgateways.monetaweb.MonetaWebPaymentGateway;
+
+/**
+ * MonetaWeb checkout : the payment is initialized on the MonetaWeb endpoint, then the hosted page posts the outcome
+ * to the response URL.
+ *
+ * @version $Id$
+ */
+public class MonetaWebFlow extends PaymentFlow<Map<String, List<String>>>
+{
+    private static final String PAYMENT_ID = "PaymentID=";
+
+    private final MonetaWebSimulator simulator;
+
+    private final MonetaWebPaymentGateway gateway;
+
+    public MonetaWebFlow(MonetaWebGatewayConfiguration configuration, MonetaWebSimulator simulator) {
+        super(MonetaWebGatewayFactory.ID);
+        this.simulator = simulator;
+        this.gateway = new MonetaWebPaymentGateway(configuration, "http://shop.example.com",
+                new InMemoryIdempotencyStore());
+    }
+
+    @Override
+    public GatewayResponse purchase(Map<PaymentData, Object> options) throws Exception {
+        return gateway.purchase(AMOUNT, options);
+    }
+
+    @Override
+    public Map<String, List<String>> notification(UUID orderId, GatewayResponse purchase) {
+        String redirectUrl = purchase.getRedirectURL();
+        if (redirectUrl == null || !redirectUrl.contains(PAYMENT_ID)) {
+            return null;
+        }
+        Map<String, List<String>> data = new LinkedHashMap<>();
+        data.put("paymentid", Collections.singletonList(
+                redirectUrl.substring(redirectUrl.indexOf(PAYMENT_ID) + PAYMENT_ID.length())));
+        data.put("result", Collections.singletonList(simulator.nextResult()));
+        return data;
+    }
+
+    @Override
+    public GatewayResponse acknowledge(UUID orderId, Map<String, List<String>> notification) throws Exception {
+        return gateway.acknowledge(orderId, notification);
+    }
+}
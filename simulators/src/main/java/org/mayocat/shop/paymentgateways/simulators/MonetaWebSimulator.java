@@ -0,0 +1,61 @@
+package org.mayocat.shop.paymentgateways.simulators;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates the MonetaWeb payment initialization endpoint, answering with the "paymentId:hostedPageUrl" line the
+ * gateway expects.
+ *
+ * @version $Id$
+ */
+public class MonetaWebSimulator extends ProviderSimulator
+{
+    public static final String PATH = "/monetaweb/hosted/init/http";
+
+    private static final String TEXT = "text/plain";
+
+    /**
+     * The hosted payment page. It is never requested, and the gateway expects it without a port.
+     */
+    private static final String HOSTED_PAGE_URL = "https://localhost/monetaweb/hosted/page";
+
+    private final AtomicLong paymentIds = new AtomicLong(ThreadLocalRandom.current().nextInt(1000000));
+
+    public MonetaWebSimulator(SimulatorSettings settings) throws IOException {
+        super(PATH, settings);
+    }
+
+    /**
+     * @return the URL to use as the gateway endpoint
+     */
+    public String getEndpoint() {
+        return getBaseUrl() + PATH;
+    }
+
+    /**
+     * @return the outcome of a payment made on the hosted page, as given to the response URL
+     */
+    public String nextResult() {
+        return getSettings().shouldFail() ? "NOT APPROVED" : "Approved";
+    }
+
+    @Override
+    protected Response respond(Request request) throws IOException {
+        if (!request.getParameters().containsKey("trackid")) {
+            return new Response(200, TEXT, "!ERROR!GW00456-Missing track id");
+        }
+        return new Response(200, TEXT, paymentIds.incrementAndGet() + ":" + HOSTED_PAGE_URL);
+    }
+
+    @Override
+    protected Response fail(Request request) {
+        return new Response(200, TEXT, "!ERROR!GW00150-Simulated failure");
+    }
+
+    @Override
+    protected Response throttle(Request request) {
+        return new Response(503, TEXT, "Service unavailable");
+    }
+}
@@ -0,0 +1,50 @@
+package org.mayocat.shop.paymentgateways.simulators;
+
+import com.google.common.base.Optional;
+import java.io.File;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentData;
+import org.mayocat.shop.paymentgateways.common.InMemoryIdempotencyStore;
+import org.mayocat.shop.paymentgateways.paybox.PayboxGatewayFactory;
+import org.mayocat.shop.paymentgateways.paybox.PayboxKeyStore;
+import org.mayocat.shop.paymentgateways.paybox.PayboxPaymentGateway;
+import org.mayocat.shop.paymentgateways.paybox.PayboxTenantConfiguration;
+
+/**
+ * Paybox checkout : the payment form is computed locally, then the IPN emitter notifies the outcome.
+ *
+ * @version $Id$
+ */
+public class PayboxFlow extends PaymentFlow<byte[]>
+{
+    private final PayboxIpnEmitter emitter;
+
+    private final PayboxPaymentGateway gateway;
+
+    private final AtomicLong transactionIds = new AtomicLong();
+
+    public PayboxFlow(PayboxTenantConfiguration configuration, PayboxIpnEmitter emitter, File keyFile) {
+        super(PayboxGatewayFactory.ID);
+        this.emitter = emitter;
+        this.gateway = new PayboxPaymentGateway(configuration, new PayboxKeyStore(Optional.of(keyFile)),
+                new InMemoryIdempotencyStore());
+    }
+
+    @Override
+    public GatewayResponse purchase(Map<PaymentData, Object> options) throws Exception {
+        return gateway.purchase(AMOUNT, options);
+    }
+
+    @Override
+    public byte[] notification(UUID orderId, GatewayResponse purchase) throws Exception {
+        return emitter.emit(String.valueOf(transactionIds.incrementAndGet()));
+    }
+
+    @Override
+    public GatewayResponse acknowledge(UUID orderId, byte[] notification) throws Exception {
+        return gateway.acknowledge(orderId, notification);
+    }
+}
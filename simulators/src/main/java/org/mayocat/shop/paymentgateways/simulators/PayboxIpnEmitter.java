@@ -0,0 +1,83 @@
+package org.mayocat.shop.paymentgateways.simulators;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.RateLimiter;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulates the IPNs Paybox sends once a payment is made, signed with a test RSA key instead of the Paybox one.
+ *
+ * Gateways verify them once the public key of the emitter is installed as the tenant Paybox key, see
+ * {@link #writePublicKey(File)}. Failures are simulated as refused payments, and the configured latency as a delay
+ * before the IPN is emitted.
+ *
+ * @version $Id$
+ */
+public class PayboxIpnEmitter
+{
+    private static final String STATUS_SUCCESSFUL = "00000";
+
+    private static final String STATUS_REFUSED = "00105";
+
+    private final SimulatorSettings settings;
+
+    private final KeyPair keyPair;
+
+    private final RateLimiter rateLimiter;
+
+    private final AtomicLong requestIds = new AtomicLong();
+
+    public PayboxIpnEmitter(SimulatorSettings settings) throws GeneralSecurityException {
+        this.settings = settings;
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        // Paybox signs with a 1024 bits key
+        generator.initialize(1024);
+        this.keyPair = generator.generateKeyPair();
+        this.rateLimiter = settings.getThrottle() > 0 ? RateLimiter.create(settings.getThrottle()) : null;
+    }
+
+    /**
+     * Writes the public key of the emitter, in the PEM format of the Paybox key file.
+     */
+    public void writePublicKey(File file) throws IOException {
+        String pem = "-----BEGIN PUBLIC KEY-----\n"
+                + BaseEncoding.base64().withSeparator("\n", 64).encode(keyPair.getPublic().getEncoded())
+                + "\n-----END PUBLIC KEY-----\n";
+        Files.write(pem, file, Charsets.US_ASCII);
+    }
+
+    /**
+     * Emits the IPN of a transaction, once the simulated latency has elapsed.
+     *
+     * @param transactionId the Paybox transaction
+     * @return the raw IPN query string, with the parameters asked for by the gateway and the signature last
+     */
+    public byte[] emit(String transactionId) throws InterruptedException {
+        if (rateLimiter != null) {
+            rateLimiter.acquire();
+        }
+        settings.simulateLatency();
+
+        String status = settings.shouldFail() ? STATUS_REFUSED : STATUS_SUCCESSFUL;
+        String message = "status=" + status + "&authorization=XXXXXX&transactionId=" + transactionId
+                + "&requestId=" + requestIds.incrementAndGet();
+        try {
+            Signature signature = Signature.getInstance("SHA1withRSA");
+            signature.initSign(keyPair.getPrivate());
+            signature.update(message.getBytes(Charsets.US_ASCII));
+            String encoded = URLEncoder.encode(BaseEncoding.base64().encode(signature.sign()), "UTF-8");
+            return (message + "&signature=" + encoded).getBytes(Charsets.US_ASCII);
+        } catch (GeneralSecurityException | IOException e) {
+            throw new IllegalStateException("Failed to sign IPN", e);
+        }
+    }
+}
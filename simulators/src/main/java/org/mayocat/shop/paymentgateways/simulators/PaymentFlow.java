@@ -0,0 +1,85 @@
+package org.mayocat.shop.paymentgateways.simulators;
+
+import java.math.BigDecimal;
+import java.util.Currency;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.mayocat.shop.billing.model.Order;
+import org.mayocat.shop.customer.model.Customer;
+import org.mayocat.shop.payment.BasePaymentData;
+import org.mayocat.shop.payment.CreditCardPaymentData;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentData;
+
+/**
+ * A checkout against a gateway : a purchase, followed by the acknowledgement of the notification the provider sends
+ * about its outcome.
+ *
+ * @param <N> the type of the provider notifications
+ * @version $Id$
+ */
+public abstract class PaymentFlow<N>
+{
+    protected static final BigDecimal AMOUNT = new BigDecimal("42.50");
+
+    private static final String BASE_URL = "http://shop.example.com";
+
+    private final String name;
+
+    protected PaymentFlow(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Performs the purchase.
+     */
+    public abstract GatewayResponse purchase(Map<PaymentData, Object> options) throws Exception;
+
+    /**
+     * Simulates the notification the provider sends about a purchase. This is the provider side of the flow, which
+     * load tests do not measure.
+     *
+     * @return the notification, or null if the provider sends none for this purchase
+     */
+    public abstract N notification(UUID orderId, GatewayResponse purchase) throws Exception;
+
+    /**
+     * Acknowledges a provider notification.
+     */
+    public abstract GatewayResponse acknowledge(UUID orderId, N notification) throws Exception;
+
+    /**
+     * @return the purchase options the platform would give for a new order
+     */
+    public Map<PaymentData, Object> newOrder() {
+        UUID orderId = UUID.randomUUID();
+
+        Customer customer = new Customer();
+        customer.setId(UUID.randomUUID());
+        customer.setEmail("buyer@example.com");
+
+        Order order = new Order();
+        order.setId(orderId);
+        order.setCustomer(customer);
+
+        Map<PaymentData, Object> options = new LinkedHashMap<>();
+        options.put(BasePaymentData.CURRENCY, Currency.getInstance("EUR"));
+        options.put(BasePaymentData.ORDER, order);
+        options.put(BasePaymentData.ORDER_ID, orderId);
+        options.put(BasePaymentData.CUSTOMER, customer);
+        options.put(BasePaymentData.BASE_URL, BASE_URL);
+        options.put(BasePaymentData.IPN_URL, BASE_URL + "/api/payment/" + orderId + "/ack/" + name);
+        options.put(BasePaymentData.RETURN_URL, BASE_URL + "/checkout/return/" + orderId);
+        options.put(BasePaymentData.CANCEL_URL, BASE_URL + "/checkout/cancel/" + orderId);
+        options.put(CreditCardPaymentData.CARD_NUMBER, "4242424242424242");
+        options.put(CreditCardPaymentData.EXPIRATION_MONTH, 12);
+        options.put(CreditCardPaymentData.EXPIRATION_YEAR, 2030);
+        options.put(CreditCardPaymentData.VERIFICATION_CODE, "123");
+        return options;
+    }
+}
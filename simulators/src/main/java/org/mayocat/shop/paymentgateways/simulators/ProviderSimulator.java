@@ -0,0 +1,189 @@
+package org.mayocat.shop.paymentgateways.simulators;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.RateLimiter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A payment provider API simulated on a local HTTP server, answering after the configured latency, and failing or
+ * throttling requests as configured.
+ *
+ * @version $Id$
+ */
+public abstract class ProviderSimulator
+{
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    private final SimulatorSettings settings;
+
+    private final RateLimiter rateLimiter;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * @param path the path the provider API answers on
+     * @param settings how the provider behaves
+     */
+    protected ProviderSimulator(String path, SimulatorSettings settings) throws IOException {
+        this.settings = settings;
+        this.rateLimiter = settings.getThrottle() > 0 ? RateLimiter.create(settings.getThrottle()) : null;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        // Requests wait for their simulated latency on the server threads, which must not limit concurrency
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(executor);
+        this.server.createContext(path, new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ProviderSimulator.this.handle(exchange);
+            }
+        });
+    }
+
+    /**
+     * @return the response to a request that went through
+     */
+    protected abstract Response respond(Request request) throws IOException;
+
+    /**
+     * @return the response to a request that fails, as the provider gives it
+     */
+    protected abstract Response fail(Request request);
+
+    /**
+     * @return the response to a request that is throttled, as the provider gives it
+     */
+    protected abstract Response throttle(Request request);
+
+    public ProviderSimulator start() {
+        server.start();
+        return this;
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the base URL of the simulator, without trailing slash
+     */
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public SimulatorSettings getSettings() {
+        return settings;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " : requests=" + requests + ", failures=" + failures + ", throttled="
+                + throttled;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        Request request = new Request(exchange, ByteStreams.toByteArray(exchange.getRequestBody()));
+        Response response;
+        try {
+            if (rateLimiter != null && !rateLimiter.tryAcquire()) {
+                throttled.incrementAndGet();
+                response = throttle(request);
+            } else {
+                settings.simulateLatency();
+                if (settings.shouldFail()) {
+                    failures.incrementAndGet();
+                    response = fail(request);
+                } else {
+                    response = respond(request);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            exchange.close();
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", response.contentType);
+        exchange.sendResponseHeaders(response.status, response.body.length);
+        OutputStream body = exchange.getResponseBody();
+        body.write(response.body);
+        body.close();
+    }
+
+    /**
+     * A request made to the simulator.
+     */
+    protected static class Request
+    {
+        private final HttpExchange exchange;
+
+        private final byte[] body;
+
+        private Request(HttpExchange exchange, byte[] body) {
+            this.exchange = exchange;
+            this.body = body;
+        }
+
+        public String getHeader(String name) {
+            return exchange.getRequestHeaders().getFirst(name);
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        /**
+         * @return the parameters of the URL-encoded form in the request body
+         */
+        public Map<String, String> getParameters() throws UnsupportedEncodingException {
+            Map<String, String> parameters = new LinkedHashMap<>();
+            for (String pair : Splitter.on('&').omitEmptyStrings().split(new String(body, Charsets.US_ASCII))) {
+                int separator = pair.indexOf('=');
+                String name = separator < 0 ? pair : pair.substring(0, separator);
+                String value = separator < 0 ? "" : pair.substring(separator + 1);
+                parameters.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+            }
+            return parameters;
+        }
+    }
+
+    /**
+     * A response given by the simulator.
+     */
+    protected static class Response
+    {
+        private final int status;
+
+        private final String contentType;
+
+        private final byte[] body;
+
+        public Response(int status, String contentType, String body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body.getBytes(Charsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.mayocat.shop.paymentgateways.simulators;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a simulated provider behaves : how long it takes to answer, how often it fails and how many requests per second
+ * it accepts before throttling.
+ *
+ * @version $Id$
+ */
+public class SimulatorSettings
+{
+    private final long latency;
+
+    private final long jitter;
+
+    private final double errorRate;
+
+    private final double throttle;
+
+    /**
+     * @param latency the base response time, in milliseconds
+     * @param jitter the maximum random time, in milliseconds, added to the base response time
+     * @param errorRate the proportion of requests that fail, between 0 and 1
+     * @param throttle the number of requests per second accepted before throttling, 0 for no limit
+     */
+    public SimulatorSettings(long latency, long jitter, double errorRate, double throttle) {
+        this.latency = latency;
+        this.jitter = jitter;
+        this.errorRate = errorRate;
+        this.throttle = throttle;
+    }
+
+    /**
+     * @return settings read from the "simulator.latency", "simulator.jitter", "simulator.errorRate" and
+     * "simulator.throttle" system properties
+     */
+    public static SimulatorSettings fromSystemProperties() {
+        return new SimulatorSettings(
+                Long.getLong("simulator.latency", 50),
+                Long.getLong("simulator.jitter", 20),
+                Double.parseDouble(System.getProperty("simulator.errorRate", "0.01")),
+                Double.parseDouble(System.getProperty("simulator.throttle", "0")));
+    }
+
+    public long getLatency() {
+        return latency;
+    }
+
+    public long getJitter() {
+        return jitter;
+    }
+
+    public double getErrorRate() {
+        return errorRate;
+    }
+
+    public double getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Waits for a simulated response time.
+     */
+    void simulateLatency() throws InterruptedException {
+        long delay = latency + (jitter > 0 ? ThreadLocalRandom.current().nextLong(jitter + 1) : 0);
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * @return whether the current request should fail
+     */
+    boolean shouldFail() {
+        return errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    @Override
+    public String toString() {
+        return "latency=" + latency + "ms, jitter=" + jitter + "ms, errorRate=" + errorRate + ", throttle="
+                + (throttle > 0 ? throttle + "/s" : "none");
+    }
+}
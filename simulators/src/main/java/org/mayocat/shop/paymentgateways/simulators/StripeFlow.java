@@ -0,0 +1,50 @@
+package org.mayocat.shop.paymentgateways.simulators;
+
+import java.util.Currency;
+import java.util.Map;
+import java.util.UUID;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.PaymentData;
+import org.mayocat.shop.paymentgateways.common.AmountCodec;
+import org.mayocat.shop.paymentgateways.stripe.StripeGatewayFactory;
+import org.mayocat.shop.paymentgateways.stripe.StripePaymentGateway;
+import org.mayocat.shop.paymentgateways.stripe.StripeTenantConfiguration;
+
+/**
+ * Stripe checkout : the card is charged through the charges API, then Stripe confirms the charge with a webhook
+ * event.
+ *
+ * @version $Id$
+ */
+public class StripeFlow extends PaymentFlow<StripeSimulator.Webhook>
+{
+    private final StripeSimulator simulator;
+
+    private final StripePaymentGateway gateway;
+
+    public StripeFlow(StripeTenantConfiguration configuration, StripeSimulator simulator) {
+        super(StripeGatewayFactory.ID);
+        this.simulator = simulator;
+        this.gateway = new StripePaymentGateway(configuration);
+    }
+
+    @Override
+    public GatewayResponse purchase(Map<PaymentData, Object> options) throws Exception {
+        return gateway.purchase(AMOUNT, options);
+    }
+
+    @Override
+    public StripeSimulator.Webhook notification(UUID orderId, GatewayResponse purchase) {
+        Object chargeId = purchase.getOperation().getMemo().get("chargeId");
+        if (chargeId == null) {
+            return null;
+        }
+        return simulator.webhook("charge.succeeded", chargeId.toString(),
+                AmountCodec.toMinorUnits(AMOUNT, Currency.getInstance("EUR")), "eur");
+    }
+
+    @Override
+    public GatewayResponse acknowledge(UUID orderId, StripeSimulator.Webhook notification) throws Exception {
+        return gateway.webhook(notification.getPayload(), notification.getSignature());
+    }
+}
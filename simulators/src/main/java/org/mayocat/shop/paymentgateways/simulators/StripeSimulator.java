@@ -0,0 +1,143 @@
+package org.mayocat.shop.paymentgateways.simulators;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.BaseEncoding;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Simulates the Stripe charges API, and the webhook events Stripe sends about charges.
+ *
+ * Charges are declined for the "4000000000000002" test card, like on Stripe. Requests with an idempotency key that
+ * was already used get the response first given to that key.
+ *
+ * @version $Id$
+ */
+public class StripeSimulator extends ProviderSimulator
+{
+    public static final String PATH = "/v1/charges";
+
+    private static final String JSON = "application/json";
+
+    private static final String DECLINED_CARD = "4000000000000002";
+
+    private final String webhookSecret;
+
+    private final AtomicLong chargeIds = new AtomicLong();
+
+    private final Cache<String, Response> idempotentResponses =
+            CacheBuilder.newBuilder().maximumSize(100000).expireAfterWrite(1, TimeUnit.HOURS).build();
+
+    /**
+     * @param settings how the API behaves
+     * @param webhookSecret the secret webhook events are signed with
+     */
+    public StripeSimulator(SimulatorSettings settings, String webhookSecret) throws IOException {
+        super(PATH, settings);
+        this.webhookSecret = webhookSecret;
+    }
+
+    /**
+     * Builds a signed webhook event about a charge.
+     *
+     * @param type the event type, "charge.succeeded" for example
+     * @param chargeId the charge the event is about
+     * @param amount the charge amount, in cents
+     * @param currency the charge currency
+     */
+    public Webhook webhook(String type, String chargeId, long amount, String currency) {
+        String payload = "{\"id\":\"evt_" + chargeIds.incrementAndGet() + "\",\"object\":\"event\",\"type\":\"" + type
+                + "\",\"data\":{\"object\":{\"id\":\"" + chargeId + "\",\"object\":\"charge\",\"amount\":" + amount
+                + ",\"currency\":\"" + currency + "\",\"status\":\"succeeded\",\"metadata\":{}}}}";
+        String timestamp = String.valueOf(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(webhookSecret.getBytes(Charsets.UTF_8), "HmacSHA256"));
+            byte[] signature = mac.doFinal((timestamp + "." + payload).getBytes(Charsets.UTF_8));
+            return new Webhook(payload.getBytes(Charsets.UTF_8),
+                    "t=" + timestamp + ",v1=" + BaseEncoding.base16().lowerCase().encode(signature));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Failed to sign webhook event", e);
+        }
+    }
+
+    @Override
+    protected Response respond(Request request) throws IOException {
+        String idempotencyKey = request.getHeader("Idempotency-Key");
+        if (idempotencyKey != null) {
+            Response previous = idempotentResponses.getIfPresent(idempotencyKey);
+            if (previous != null) {
+                return previous;
+            }
+        }
+
+        Map<String, String> parameters = request.getParameters();
+        String number = parameters.get("card[number]");
+        Response response;
+        if (DECLINED_CARD.equals(number)) {
+            response = error(402, "card_error", "card_declined", "Your card was declined.");
+        } else {
+            String last4 = number == null ? "4242" : number.substring(Math.max(0, number.length() - 4));
+            response = new Response(200, JSON, "{\"id\":\"ch_" + chargeIds.incrementAndGet()
+                    + "\",\"object\":\"charge\",\"livemode\":false,\"paid\":true,\"captured\":true,"
+                    + "\"status\":\"succeeded\",\"amount\":" + parameters.get("amount") + ",\"currency\":\""
+                    + parameters.get("currency") + "\",\"card\":{\"id\":\"card_simulated\",\"object\":\"card\","
+                    + "\"last4\":\"" + last4 + "\",\"brand\":\"Visa\",\"exp_month\":"
+                    + parameters.get("card[exp_month]") + ",\"exp_year\":" + parameters.get("card[exp_year]")
+                    + "},\"metadata\":{}}");
+        }
+
+        if (idempotencyKey != null) {
+            idempotentResponses.put(idempotencyKey, response);
+        }
+        return response;
+    }
+
+    @Override
+    protected Response fail(Request request) {
+        return error(500, "api_error", null, "Simulated failure");
+    }
+
+    @Override
+    protected Response throttle(Request request) {
+        return error(429, "invalid_request_error", "rate_limit", "Too many requests hit the API too quickly.");
+    }
+
+    private static Response error(int status, String type, String code, String message) {
+        return new Response(status, JSON, "{\"error\":{\"type\":\"" + type + "\","
+                + (code != null ? "\"code\":\"" + code + "\"," : "") + "\"message\":\"" + message + "\"}}");
+    }
+
+    /**
+     * A webhook event, as Stripe posts it.
+     */
+    public static class Webhook
+    {
+        private final byte[] payload;
+
+        private final String signature;
+
+        private Webhook(byte[] payload, String signature) {
+            this.payload = payload;
+            this.signature = signature;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        /**
+         * @return the value of the "Stripe-Signature" header
+         */
+        public String getSignature() {
+            return signature;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.mayocat.shop.paymentgateways.stripe;
+
+import com.google.common.base.Strings;
+import com.stripe.Stripe;
+
+/**
+ * The base URL of the Stripe API.
+ *
+ * The Stripe client only has a process-wide API base, so it is never taken from tenant configurations : only the
+ * {@link StripeGatewayFactory#API_BASE_PROPERTY} system property overrides it, to use a local simulator for example.
+ * The property is read and applied once, the first time the API is about to be called.
+ *
+ * @version $Id$
+ */
+final class StripeApiBase
+{
+    private static final String API_BASE;
+
+    static {
+        String override = System.getProperty(StripeGatewayFactory.API_BASE_PROPERTY);
+        if (Strings.isNullOrEmpty(override)) {
+            API_BASE = Stripe.LIVE_API_BASE;
+        } else {
+            Stripe.overrideApiBase(override);
+            API_BASE = override;
+        }
+    }
+
+    private StripeApiBase() {
+    }
+
+    /**
+     * Applies the override of the API base, if any. Must be called before the API is first called.
+     */
+    static void init() {
+        // Done by the class initializer
+    }
+
+    /**
+     * @return the base URL of the Stripe API
+     */
+    static String get() {
+        return API_BASE;
+    }
+}
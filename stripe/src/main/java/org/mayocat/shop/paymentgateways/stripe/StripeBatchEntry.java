@@ -0,0 +1,30 @@
+package org.mayocat.shop.paymentgateways.stripe;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import org.mayocat.shop.payment.PaymentData;
+
+/**
+ * A charge of a batch, with the same amount and options as a single purchase.
+ *
+ * @version $Id$
+ */
+public class StripeBatchEntry
+{
+    private final BigDecimal amount;
+
+    private final Map<PaymentData, Object> options;
+
+    public StripeBatchEntry(BigDecimal amount, Map<PaymentData, Object> options) {
+        this.amount = amount;
+        this.options = options;
+    }
+
+    public BigDecimal getAmount() {
+        return amount;
+    }
+
+    public Map<PaymentData, Object> getOptions() {
+        return options;
+    }
+}
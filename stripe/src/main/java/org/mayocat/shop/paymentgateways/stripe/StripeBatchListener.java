@@ -0,0 +1,26 @@
+package org.mayocat.shop.paymentgateways.stripe;
+
+import org.mayocat.shop.payment.GatewayException;
+import org.mayocat.shop.payment.GatewayResponse;
+
+/**
+ * Receives the outcome of each charge of a batch as soon as it completes, in completion order.
+ *
+ * Methods are called from the threads running the charges, concurrently, so implementations must be thread-safe.
+ *
+ * @version $Id$
+ */
+public interface StripeBatchListener
+{
+    /**
+     * @param index the index of the entry in the batch
+     * @param response the response the purchase of the entry returned
+     */
+    void onResponse(int index, GatewayResponse response);
+
+    /**
+     * @param index the index of the entry in the batch
+     * @param e the exception the purchase of the entry failed with
+     */
+    void onFailure(int index, GatewayException e);
+}
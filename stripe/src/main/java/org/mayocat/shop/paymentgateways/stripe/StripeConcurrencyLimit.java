@@ -0,0 +1,75 @@
+package org.mayocat.shop.paymentgateways.stripe;
+
+/**
+ * Adaptive limit of the number of concurrent calls to Stripe, following additive increase, multiplicative decrease :
+ * the limit grows by one each time a full window of calls completes without being rate limited, and is halved when
+ * Stripe rate limits a call.
+ *
+ * Calls in flight when the limit is halved were started under the previous limit, so their own rate limiting does not
+ * halve it again.
+ *
+ * @version $Id$
+ */
+class StripeConcurrencyLimit
+{
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private double limit;
+
+    private int inFlight;
+
+    /**
+     * Incremented on each decrease, to tell apart the calls started before it.
+     */
+    private long generation;
+
+    /**
+     * @param initialLimit the limit to start with
+     * @param maxLimit the limit never exceeded, whatever Stripe accepts
+     */
+    StripeConcurrencyLimit(int initialLimit, int maxLimit) {
+        this.minLimit = 1;
+        this.maxLimit = Math.max(minLimit, maxLimit);
+        this.limit = Math.max(minLimit, Math.min(initialLimit, this.maxLimit));
+    }
+
+    /**
+     * Waits until a call may start.
+     *
+     * @return the permit of the call, to pass to {@link #release(long, boolean)} when it completes
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized long acquire() throws InterruptedException {
+        while (inFlight >= (int) limit) {
+            wait();
+        }
+        inFlight++;
+        return generation;
+    }
+
+    /**
+     * @param permit the permit returned when the call started
+     * @param rateLimited whether Stripe rate limited the call
+     */
+    synchronized void release(long permit, boolean rateLimited) {
+        inFlight--;
+        if (rateLimited) {
+            if (permit == generation) {
+                limit = Math.max(minLimit, limit / 2);
+                generation++;
+            }
+        } else {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the current limit
+     */
+    synchronized int getLimit() {
+        return (int) limit;
+    }
+}
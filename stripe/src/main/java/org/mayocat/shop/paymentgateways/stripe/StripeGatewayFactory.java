@@ -1,17 +1,28 @@
 package org.mayocat.shop.paymentgateways.stripe;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.TreeTraversingParser;
 import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.stripe.Stripe;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import javax.inject.Inject;
+import org.mayocat.context.WebContext;
 import org.mayocat.shop.payment.AbstractGatewayFactory;
 import org.mayocat.shop.payment.GatewayFactory;
 import org.mayocat.shop.payment.PaymentGateway;
+import org.mayocat.shop.paymentgateways.common.Bulkheads;
+import org.mayocat.shop.paymentgateways.common.FairShareLimiter;
+import org.mayocat.shop.paymentgateways.common.GatewayConnections;
+import org.mayocat.shop.paymentgateways.common.GatewayInstanceCache;
+import org.mayocat.shop.paymentgateways.common.GatewayMetrics;
+import org.mayocat.shop.paymentgateways.common.GatewayMetricsRegistry;
+import org.mayocat.shop.paymentgateways.common.OperationJournal;
+import org.mayocat.shop.paymentgateways.common.OutboundLimiter;
+import org.mayocat.shop.paymentgateways.common.TenantConfigurationCache;
+import org.mayocat.shop.paymentgateways.common.WarmableGatewayFactory;
 import org.slf4j.Logger;
 import org.xwiki.component.annotation.Component;
 
@@ -19,16 +30,66 @@ import org.xwiki.component.annotation.Component;
  * @version $Id$
  */
 @Component(StripeGatewayFactory.ID)
-public class StripeGatewayFactory  extends AbstractGatewayFactory implements GatewayFactory
+public class StripeGatewayFactory  extends AbstractGatewayFactory implements GatewayFactory, WarmableGatewayFactory
 {
     public static final String ID = "stripe";
 
+    private static final String CONFIGURATION_FILENAME = "configuration.yml";
+
+    /**
+     * The stripe-java classes the first charge would load, the resource base class holding the JSON mapper first.
+     */
+    private static final String[] WARM_UP_CLASSES = {
+        "com.stripe.net.APIResource",
+        "com.stripe.model.Charge",
+        "com.stripe.model.ChargeCollection",
+        "com.stripe.model.Card",
+        "com.stripe.model.Customer",
+        "com.stripe.model.CustomerCollection",
+        "com.stripe.exception.CardException"
+    };
+
+    private static final int PRECONNECT_TIMEOUT = 5000;
+
+    /**
+     * System property setting the number of concurrent calls to Stripe all tenants share fairly.
+     */
+    public static final String MAX_CONCURRENT_CALLS_PROPERTY = "mayocat.paymentgateways.stripe.maxConcurrentCalls";
+
+    private static final int DEFAULT_MAX_CONCURRENT_CALLS = 64;
+
+    /**
+     * System property overriding the base URL of the Stripe API for the whole process, to use a local simulator for
+     * example. Only meant for test environments.
+     */
+    public static final String API_BASE_PROPERTY = "mayocat.paymentgateways.stripe.apiBase";
+
     @Inject
     private ObjectMapper mapper;
 
     @Inject
     private Logger logger;
 
+    @Inject
+    private WebContext context;
+
+    @Inject
+    private TenantConfigurationCache configurationCache;
+
+    @Inject
+    private GatewayMetricsRegistry metricsRegistry;
+
+    @Inject
+    private Bulkheads bulkheads;
+
+    @Inject
+    private OperationJournal journal;
+
+    private final GatewayInstanceCache gateways = new GatewayInstanceCache();
+
+    private final FairShareLimiter outboundShare =
+            new FairShareLimiter(Integer.getInteger(MAX_CONCURRENT_CALLS_PROPERTY, DEFAULT_MAX_CONCURRENT_CALLS));
+
     @Override
     public String getId() {
         return ID;
@@ -36,18 +97,63 @@ public class StripeGatewayFactory  extends AbstractGatewayFactory implements Gat
 
     @Override
     public PaymentGateway createGateway() {
-        Optional<File> tenantConfigurationFile = getTenantConfigurationFile("configuration.yml");
+        long start = System.nanoTime();
+        String tenant = context.getTenant().getSlug();
+        GatewayMetrics tenantMetrics = metricsRegistry.get(ID, tenant, StripePaymentGateway.OPERATIONS);
+
+        PaymentGateway gateway = createGateway(tenant, tenantMetrics);
+        if (gateway != null) {
+            tenantMetrics.record(GatewayMetrics.Operation.CREATE_GATEWAY, start, 0, null);
+        } else {
+            tenantMetrics.recordFailure(GatewayMetrics.Operation.CREATE_GATEWAY, start, 0);
+        }
+        return gateway;
+    }
+
+    /**
+     * Loads and initializes the stripe-java classes, and opens a connection to the Stripe API.
+     */
+    @Override
+    public void warmUp() throws IOException, ClassNotFoundException {
+        ClassLoader classLoader = Stripe.class.getClassLoader();
+        for (String className : WARM_UP_CLASSES) {
+            Class.forName(className, true, classLoader);
+        }
+        GatewayConnections.preconnect(StripeApiBase.get(), PRECONNECT_TIMEOUT);
+    }
+
+    /**
+     * Parses and checks the configuration of the tenant. All tenants share the connection opened by {@link #warmUp()}.
+     */
+    @Override
+    public void warmUp(String tenant, File directory) throws IOException {
+        StripeTenantConfiguration configuration = configurationCache.get(tenant, ID,
+                new File(directory, CONFIGURATION_FILENAME), StripeTenantConfiguration.class, mapper);
+        if (Strings.isNullOrEmpty(configuration.getApiKey())) {
+            throw new IllegalArgumentException("Missing Stripe API key");
+        }
+    }
+
+    private PaymentGateway createGateway(String tenant, GatewayMetrics tenantMetrics) {
+        Optional<File> tenantConfigurationFile = getTenantConfigurationFile(CONFIGURATION_FILENAME);
         if (!tenantConfigurationFile.isPresent()) {
             logger.error("Failed to create Paybox payment gateway : no tenant configuration found");
             return null;
         }
 
         try {
-            JsonNode node = mapper.readTree(tenantConfigurationFile.get());
-            StripeTenantConfiguration configuration =
-                    mapper.readValue(new TreeTraversingParser(node), StripeTenantConfiguration.class);
+            StripeTenantConfiguration configuration = configurationCache.get(tenant, ID,
+                    tenantConfigurationFile.get(), StripeTenantConfiguration.class, mapper);
 
-            return new StripePaymentGateway(configuration);
+            PaymentGateway gateway = gateways.get(tenant, configuration);
+            if (gateway == null) {
+                OutboundLimiter limiter = OutboundLimiter.create(tenant, configuration.getRateLimit(),
+                        configuration.getRateLimitBurst(), outboundShare);
+                gateway = new StripePaymentGateway(configuration, tenantMetrics, limiter, bulkheads.get(ID),
+                        journal.get(ID, tenant));
+                gateways.put(tenant, gateway, configuration);
+            }
+            return gateway;
 
         } catch (FileNotFoundException e) {
             logger.error("Failed to create stripe payment gateway : configuration file not found");
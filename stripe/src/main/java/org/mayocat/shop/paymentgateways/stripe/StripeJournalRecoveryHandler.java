@@ -0,0 +1,96 @@
+package org.mayocat.shop.paymentgateways.stripe;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.stripe.model.Charge;
+import com.stripe.model.ChargeCollection;
+import com.stripe.net.RequestOptions;
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import org.mayocat.configuration.general.FilesSettings;
+import org.mayocat.shop.payment.GatewayResponse;
+import org.mayocat.shop.payment.model.PaymentOperation;
+import org.mayocat.shop.paymentgateways.common.JournalEntry;
+import org.mayocat.shop.paymentgateways.common.JournalRecoveryHandler;
+import org.mayocat.shop.paymentgateways.common.TenantConfigurationCache;
+import org.xwiki.component.annotation.Component;
+
+/**
+ * Finds the charge of a journaled Stripe call among the charges of the tenant created since, by the idempotency key in
+ * its metadata. Stripe creates charges synchronously : when there is none, the card was not charged.
+ *
+ * @version $Id$
+ */
+@Component(StripeGatewayFactory.ID)
+@Singleton
+public class StripeJournalRecoveryHandler implements JournalRecoveryHandler
+{
+    private static final int PAGE_SIZE = 100;
+
+    /**
+     * How much earlier than the call charges are looked for, in seconds, as the clocks of Stripe and of the node
+     * differ.
+     */
+    private static final long CLOCK_SKEW = 300;
+
+    @Inject
+    private ObjectMapper mapper;
+
+    @Inject
+    private FilesSettings filesSettings;
+
+    @Inject
+    private TenantConfigurationCache configurationCache;
+
+    @Override
+    public GatewayResponse recover(JournalEntry entry) throws Exception {
+        StripeApiBase.init();
+        File configurationFile = filesSettings.getPermanentDirectory().resolve("tenants").resolve(entry.getTenant())
+                .resolve("payments").resolve(StripeGatewayFactory.ID).resolve("configuration.yml").toFile();
+        StripeTenantConfiguration configuration = configurationCache.get(entry.getTenant(), StripeGatewayFactory.ID,
+                configurationFile, StripeTenantConfiguration.class, mapper);
+        RequestOptions requestOptions =
+                (new RequestOptions.RequestOptionsBuilder()).setApiKey(configuration.getApiKey()).build();
+
+        PaymentOperation op = new PaymentOperation();
+        op.setGatewayId(StripeGatewayFactory.ID);
+        op.setMemo(ImmutableMap.<String, Object>of("recovered", true));
+
+        Charge charge = findCharge(entry, requestOptions);
+        if (charge == null) {
+            op.setResult(PaymentOperation.Result.FAILED);
+            return new GatewayResponse(false, op);
+        }
+        op.setExternalId(charge.getId());
+        op.setResult(Boolean.TRUE.equals(charge.getPaid()) ? PaymentOperation.Result.CAPTURED :
+                PaymentOperation.Result.REFUSED);
+        return new GatewayResponse(true, op);
+    }
+
+    private Charge findCharge(JournalEntry entry, RequestOptions requestOptions) throws Exception {
+        Map<String, Object> created = new HashMap<>();
+        created.put("gte", entry.getTime() / 1000 - CLOCK_SKEW);
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("limit", PAGE_SIZE);
+        parameters.put("created", created);
+
+        while (true) {
+            ChargeCollection charges = Charge.all(parameters, requestOptions);
+            List<Charge> data = charges.getData();
+            for (Charge charge : data) {
+                Map<String, String> metadata = charge.getMetadata();
+                if (metadata != null && entry.getReference().equals(metadata.get("idempotency_key"))) {
+                    return charge;
+                }
+            }
+            if (!Boolean.TRUE.equals(charges.getHasMore()) || data.isEmpty()) {
+                return null;
+            }
+            parameters.put("starting_after", data.get(data.size() - 1).getId());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.mayocat.shop.paymentgateways.stripe;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.stripe.exception.CardException;
+import com.stripe.model.Card;
+import com.stripe.model.Charge;
+import java.util.Map;
+
+/**
+ * Builds the memos of Stripe payment operations.
+ *
+ * Memos are stored with every payment, so they only hold a compact projection of the charge or error : what is
+ * needed to follow a payment up in the Stripe dashboard. The raw charge and full stack traces are only kept for
+ * tenants that enable the debug flag of their configuration.
+ *
+ * @version $Id$
+ */
+final class StripeMemos
+{
+    private static final int MAX_MESSAGE_LENGTH = 512;
+
+    private static final int MAX_STACK_TRACE_FRAMES = 8;
+
+    private static final String TRUNCATED = "...";
+
+    private StripeMemos() {
+    }
+
+    static Map<String, Object> charge(Charge charge, StripeRetryPolicy.Execution execution, boolean debug) {
+        ImmutableMap.Builder<String, Object> memo = ImmutableMap.builder();
+        put(memo, "chargeId", charge.getId());
+        put(memo, "status", charge.getStatus());
+        put(memo, "amount", charge.getAmount());
+        put(memo, "currency", charge.getCurrency());
+        put(memo, "failureCode", charge.getFailureCode());
+        Card card = charge.getCard();
+        if (card != null) {
+            put(memo, "cardBrand", card.getBrand());
+            put(memo, "cardLast4", card.getLast4());
+        }
+        putRetries(memo, execution);
+        if (debug) {
+            memo.put("charge", charge.toString());
+        }
+        return memo.build();
+    }
+
+    static Map<String, Object> event(StripeWebhookEvent event) {
+        ImmutableMap.Builder<String, Object> memo = ImmutableMap.builder();
+        put(memo, "eventId", event.getId());
+        put(memo, "event", event.getType());
+        put(memo, "chargeId", event.getChargeId());
+        put(memo, "status", event.getStatus());
+        put(memo, "amount", event.getAmount());
+        put(memo, "amountRefunded", event.getAmountRefunded());
+        put(memo, "currency", event.getCurrency());
+        put(memo, "failureCode", event.getFailureCode());
+        return memo.build();
+    }
+
+    static Map<String, Object> cardError(CardException e, StripeRetryPolicy.Execution execution) {
+        ImmutableMap.Builder<String, Object> memo = ImmutableMap.builder();
+        put(memo, "status", e.getCode());
+        put(memo, "message", truncate(e.getMessage(), MAX_MESSAGE_LENGTH));
+        putRetries(memo, execution);
+        return memo.build();
+    }
+
+    static Map<String, Object> error(Exception e, StripeRetryPolicy.Execution execution, boolean debug) {
+        ImmutableMap.Builder<String, Object> memo = ImmutableMap.builder();
+        put(memo, "exceptionClass", e.getClass().getSimpleName());
+        put(memo, "exceptionMessage", truncate(e.getMessage(), MAX_MESSAGE_LENGTH));
+        memo.put("stackTrace", debug ? Throwables.getStackTraceAsString(e) : abbreviatedStackTrace(e));
+        putRetries(memo, execution);
+        return memo.build();
+    }
+
+    private static void putRetries(ImmutableMap.Builder<String, Object> memo, StripeRetryPolicy.Execution execution) {
+        if (execution.getRetries() > 0) {
+            memo.put("retries", execution.getRetries());
+            memo.put("retryWait", execution.getWaited());
+        }
+    }
+
+    private static void put(ImmutableMap.Builder<String, Object> memo, String key, Object value) {
+        // Immutable maps do not accept null values
+        if (value != null) {
+            memo.put(key, value);
+        }
+    }
+
+    private static String abbreviatedStackTrace(Throwable throwable) {
+        StringBuilder builder = new StringBuilder(MAX_MESSAGE_LENGTH);
+        StackTraceElement[] frames = throwable.getStackTrace();
+        for (int i = 0; i < Math.min(frames.length, MAX_STACK_TRACE_FRAMES); i++) {
+            builder.append("at ").append(frames[i]).append('\n');
+        }
+        if (frames.length > MAX_STACK_TRACE_FRAMES) {
+            builder.append(TRUNCATED).append('\n');
+        }
+        Throwable cause = throwable.getCause();
+        if (cause != null) {
+            builder.append("Caused by: ").append(cause.getClass().getName()).append(": ")
+                    .append(truncate(cause.getMessage(), MAX_MESSAGE_LENGTH));
+        }
+        return builder.toString();
+    }
+
+    private static String truncate(String value, int maxLength) {
+        if (value == null || value.length() <= maxLength) {
+            return value;
+        }
+        return value.substring(0, maxLength - TRUNCATED.length()) + TRUNCATED;
+    }
+}
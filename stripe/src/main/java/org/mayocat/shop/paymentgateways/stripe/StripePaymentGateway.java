@@ -1,19 +1,39 @@
 package org.mayocat.shop.paymentgateways.stripe;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.stripe.exception.APIConnectionException;
 import com.stripe.exception.AuthenticationException;
 import com.stripe.exception.CardException;
 import com.stripe.exception.InvalidRequestException;
+import com.stripe.exception.StripeException;
 import com.stripe.model.Charge;
+import com.stripe.model.Customer;
+import com.stripe.model.CustomerCollection;
 import com.stripe.net.RequestOptions;
-import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.math.BigDecimal;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
 import java.util.Currency;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import org.mayocat.shop.billing.model.Order;
 import org.mayocat.shop.payment.BasePaymentData;
 import org.mayocat.shop.payment.CreditCardError;
@@ -23,36 +43,222 @@ import org.mayocat.shop.payment.GatewayException;
 import org.mayocat.shop.payment.GatewayResponse;
 import org.mayocat.shop.payment.PaymentData;
 import org.mayocat.shop.payment.model.PaymentOperation;
+import org.mayocat.shop.paymentgateways.common.AmountCodec;
+import org.mayocat.shop.paymentgateways.common.AsyncPaymentGateway;
+import org.mayocat.shop.paymentgateways.common.Bulkhead;
+import org.mayocat.shop.paymentgateways.common.CircuitBreaker;
+import org.mayocat.shop.paymentgateways.common.GatewayExecutors;
+import org.mayocat.shop.paymentgateways.common.GatewayJournal;
+import org.mayocat.shop.paymentgateways.common.GatewayMetrics;
+import org.mayocat.shop.paymentgateways.common.JournalEntry;
+import org.mayocat.shop.paymentgateways.common.OutboundLimiter;
+import org.mayocat.shop.paymentgateways.common.RateLimitExceededException;
+import org.mayocat.shop.paymentgateways.common.SettlementSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * @version $Id$
  */
-public class StripePaymentGateway implements CreditCardPaymentGateway
+public class StripePaymentGateway implements CreditCardPaymentGateway, AsyncPaymentGateway, Closeable
 {
+    /**
+     * The operations of the gateway, timed by its metrics.
+     */
+    static final Set<GatewayMetrics.Operation> OPERATIONS = Sets.immutableEnumSet(GatewayMetrics.Operation.PURCHASE,
+            GatewayMetrics.Operation.CALLBACK, GatewayMetrics.Operation.CREATE_GATEWAY);
+
     private Logger logger = LoggerFactory.getLogger(StripePaymentGateway.class);
 
+    private static final String RATE_LIMIT = "rate_limit";
+
+    private static final int CIRCUIT_PROBES = 1;
+
+    private static final String CARD_KEY_ALGORITHM = "HmacSHA256";
+
+    /**
+     * The metadata of the Stripe customers created for customers of the shop.
+     */
+    private static final String CUSTOMER_ID_METADATA = "customer_id";
+
+    private static final String CARD_KEY_METADATA = "card_key";
+
+    /**
+     * The number of Stripe customers with the email of a customer of the shop that are looked at to find the one
+     * created for it.
+     */
+    private static final int CUSTOMER_LOOKUP_LIMIT = 100;
+
+    /**
+     * Keys under which the raw webhook body and its signature header are passed to {@link #callback(Map)}.
+     */
+    public static final String WEBHOOK_PAYLOAD = "payload";
+
+    public static final String WEBHOOK_SIGNATURE = "Stripe-Signature";
+
+    /**
+     * Key of the {@link GatewayResponse#getData() data} of the responses to webhook events with nothing to record, with
+     * the type of the event.
+     */
+    public static final String IGNORED_EVENT = "ignoredEvent";
+
     private StripeTenantConfiguration tenantConfiguration;
 
+    private StripeRetryPolicy retryPolicy;
+
+    private StripeWebhookVerifier webhookVerifier;
+
+    private GatewayMetrics metrics;
+
+    private StripeConcurrencyLimit batchLimit;
+
+    private OutboundLimiter limiter;
+
+    private Bulkhead bulkhead;
+
+    private CircuitBreaker circuitBreaker;
+
+    /**
+     * The saved card of each customer of the shop, when customers are reused.
+     */
+    private Cache<UUID, StripeSavedCard> savedCards;
+
+    private SecretKeySpec cardKeySecret;
+
+    private GatewayJournal journal;
+
     public StripePaymentGateway(StripeTenantConfiguration tenantConfiguration) {
+        this(tenantConfiguration, GatewayMetrics.unregistered(StripeGatewayFactory.ID, OPERATIONS));
+    }
+
+    public StripePaymentGateway(StripeTenantConfiguration tenantConfiguration, GatewayMetrics metrics) {
+        this(tenantConfiguration, metrics, OutboundLimiter.unlimited());
+    }
+
+    /**
+     * @param limiter the limits of the purchases of the tenant
+     */
+    public StripePaymentGateway(StripeTenantConfiguration tenantConfiguration, GatewayMetrics metrics,
+            OutboundLimiter limiter) {
+        this(tenantConfiguration, metrics, limiter, Bulkhead.unbounded());
+    }
+
+    /**
+     * @param bulkhead the concurrency budget of the purchases of all tenants
+     */
+    public StripePaymentGateway(StripeTenantConfiguration tenantConfiguration, GatewayMetrics metrics,
+            OutboundLimiter limiter, Bulkhead bulkhead) {
+        this(tenantConfiguration, metrics, limiter, bulkhead, GatewayJournal.unjournaled(StripeGatewayFactory.ID));
+    }
+
+    /**
+     * @param journal records charges before they are made, so that they are recovered if the node dies meanwhile
+     */
+    public StripePaymentGateway(StripeTenantConfiguration tenantConfiguration, GatewayMetrics metrics,
+            OutboundLimiter limiter, Bulkhead bulkhead, GatewayJournal journal) {
+        StripeApiBase.init();
+        this.limiter = limiter;
+        this.journal = journal;
+        this.bulkhead = bulkhead;
+        this.circuitBreaker = new CircuitBreaker(tenantConfiguration.getCircuitFailureThreshold(),
+                tenantConfiguration.getCircuitOpenDuration(), CIRCUIT_PROBES);
+        metrics.watch(circuitBreaker);
+        if (tenantConfiguration.isReuseCustomers()) {
+            if (Strings.isNullOrEmpty(tenantConfiguration.getCardKeySecret())) {
+                this.logger.warn("Stripe customers are not reused : no card key secret is configured");
+            } else {
+                this.savedCards = CacheBuilder.newBuilder()
+                        .maximumSize(tenantConfiguration.getCustomerCacheSize())
+                        .<UUID, StripeSavedCard>build();
+                this.cardKeySecret = new SecretKeySpec(
+                        tenantConfiguration.getCardKeySecret().getBytes(Charsets.UTF_8), CARD_KEY_ALGORITHM);
+            }
+        }
         this.tenantConfiguration = tenantConfiguration;
+        this.metrics = metrics;
+        this.retryPolicy =
+                new StripeRetryPolicy(tenantConfiguration.getMaxRetries(), tenantConfiguration.getRetryBudget());
+        this.batchLimit = new StripeConcurrencyLimit(tenantConfiguration.getBatchConcurrency(),
+                tenantConfiguration.getMaxBatchConcurrency());
+        if (!Strings.isNullOrEmpty(tenantConfiguration.getWebhookSecret())) {
+            this.webhookVerifier = new StripeWebhookVerifier(tenantConfiguration.getWebhookSecret());
+        }
     }
 
+    /**
+     * Purchases fail at once, with a {@link PaymentOperation.Result#FAILED} response, when the bulkhead of the gateway
+     * is full or when the circuit breaker of the tenant is open after Stripe failed too many times in a row.
+     */
     @Override
     public GatewayResponse purchase(BigDecimal amount, Map<PaymentData, Object> data) throws GatewayException {
+        try {
+            limiter.acquire();
+        } catch (RateLimitExceededException e) {
+            metrics.recordRateLimited();
+            throw e;
+        }
+        try {
+            if (!bulkhead.tryEnter()) {
+                metrics.recordBulkheadFull();
+                return unavailable("bulkheadFull");
+            }
+            try {
+                return purchase(amount, data, retryPolicy.start());
+            } finally {
+                bulkhead.exit();
+            }
+        } finally {
+            limiter.release();
+        }
+    }
+
+    private GatewayResponse purchase(BigDecimal amount, Map<PaymentData, Object> data,
+            StripeRetryPolicy.Execution execution) throws GatewayException {
+        if (!circuitBreaker.tryAcquire()) {
+            metrics.recordCircuitOpen();
+            return unavailable("circuitOpen");
+        }
+        long start = System.nanoTime();
+        try {
+            GatewayResponse response = charge(amount, data, execution);
+            metrics.record(GatewayMetrics.Operation.PURCHASE, start, execution.getRemoteTime(), response);
+            return response;
+        } catch (GatewayException | RuntimeException e) {
+            metrics.recordFailure(GatewayMetrics.Operation.PURCHASE, start, execution.getRemoteTime());
+            throw e;
+        } finally {
+            if (execution.isUnavailable()) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onSuccess();
+            }
+        }
+    }
+
+    /**
+     * @param reason why Stripe was not called
+     * @return the failed response of a purchase refused without calling Stripe
+     */
+    private GatewayResponse unavailable(String reason) {
+        PaymentOperation op = new PaymentOperation();
+        op.setGatewayId("stripe");
+        op.setResult(PaymentOperation.Result.FAILED);
+        op.setMemo(ImmutableMap.<String, Object>of("error", reason));
+        return new GatewayResponse(false, op);
+    }
+
+    private GatewayResponse charge(BigDecimal amount, Map<PaymentData, Object> data,
+            StripeRetryPolicy.Execution execution) throws GatewayException {
         Order order = (Order) data.get(BasePaymentData.ORDER);
 
         if (!data.containsKey(CreditCardPaymentData.CARD_NUMBER)) {
             throw new GatewayException("Card information is required");
         }
 
-        RequestOptions requestOptions = (new RequestOptions.RequestOptionsBuilder())
-                .setApiKey(this.tenantConfiguration.getApiKey()).build();
-
         Map<String, Object> chargeMap = new HashMap<>();
-        chargeMap.put("amount", amount.multiply(BigDecimal.valueOf(100)).longValue());
-        chargeMap.put("currency", ((Currency) data.get(BasePaymentData.CURRENCY)).getCurrencyCode());
+        Currency currency = (Currency) data.get(BasePaymentData.CURRENCY);
+        chargeMap.put("amount", AmountCodec.toMinorUnits(amount, currency));
+        chargeMap.put("currency", currency.getCurrencyCode());
         Map<String, Object> cardMap = new HashMap<>();
         cardMap.put("number", data.get(CreditCardPaymentData.CARD_NUMBER));
         cardMap.put("exp_month", data.get(CreditCardPaymentData.EXPIRATION_MONTH));
@@ -63,7 +269,6 @@ public class StripePaymentGateway implements CreditCardPaymentGateway
         if (data.containsKey(CreditCardPaymentData.VERIFICATION_CODE)) {
             cardMap.put("cvc", data.get(CreditCardPaymentData.VERIFICATION_CODE));
         }
-        chargeMap.put("card", cardMap);
 
         Map<String, String> metadata = new HashMap<>();
         metadata.put("order_id", order.getId().toString());
@@ -73,56 +278,359 @@ public class StripePaymentGateway implements CreditCardPaymentGateway
         }
         chargeMap.put("metadata", metadata);
 
+        // The same key is sent on retries, so that Stripe never performs the same charge twice
+        String idempotencyKey = getIdempotencyKey(order);
+        // Lets recovery find the charge back from the journal
+        metadata.put("idempotency_key", idempotencyKey);
+
+        JournalEntry entry;
+        try {
+            entry = journal.begin(order.getId(), idempotencyKey);
+        } catch (InterruptedIOException e) {
+            throw new GatewayException("Interrupted while journaling charge", e);
+        }
+
         PaymentOperation op = new PaymentOperation();
 
         try {
-            final Charge charge = Charge.create(chargeMap, requestOptions);
+            Charge charge = null;
+            StripeSavedCard savedCard = getSavedCard(order, cardMap, idempotencyKey, execution);
+            if (savedCard != null) {
+                try {
+                    charge = chargeSavedCard(chargeMap, savedCard, idempotencyKey, execution);
+                } catch (InvalidRequestException e) {
+                    // The customer or its card was deleted in Stripe since it was saved : it is looked up again on
+                    // the next purchase, and created again only if it is gone
+                    this.logger.warn("Failed to charge saved card of {}, charging the card", savedCard.getCustomerId());
+                    savedCards.invalidate(order.getCustomer().getId());
+                }
+            }
+            if (charge == null) {
+                chargeMap.put("card", cardMap);
+                charge = createCharge(chargeMap, requestOptions(idempotencyKey), execution);
+            }
             op.setGatewayId("stripe");
+            op.setExternalId(charge.getId());
             op.setResult(PaymentOperation.Result.CAPTURED);
-            op.setMemo(new HashMap<String, Object>()
-            {
-                {
-                    put("charge", charge.toString());
-                }
-            });
+            op.setMemo(StripeMemos.charge(charge, execution, tenantConfiguration.isDebug()));
+            journal.complete(entry, op.getResult(), op.getExternalId());
             return new GatewayResponse(true, op);
 
-        } catch (final CardException e) {
-            op.setMemo(new HashMap<String, Object>()
-            {
-                {
-                    put("status", e.getCode());
-                    put("message", e.getMessage());
-                }
-            });
+        } catch (CardException e) {
+            op.setMemo(StripeMemos.cardError(e, execution));
             op.setResult(PaymentOperation.Result.REFUSED);
+            journal.complete(entry, op.getResult(), null);
+            CreditCardError error = getCode(e.getCode());
+            metrics.recordCardError(error);
             GatewayResponse response = new GatewayResponse(true, op);
-            response.setData(new HashMap<String, Object>()
-            {
-                {
-                    put("error", getCode(e.getCode()));
-                }
-            });
+            response.setData(ImmutableMap.<String, Object>of("error", error));
             return response;
         } catch (InvalidRequestException | AuthenticationException | APIConnectionException e) {
             this.logger.error("Failed to perform charge", e);
+            if (e instanceof APIConnectionException) {
+                // Whether Stripe charged the card is unknown : the entry is left for recovery to find out
+                execution.unavailable();
+            } else {
+                journal.complete(entry, PaymentOperation.Result.FAILED, null);
+            }
             op.setResult(PaymentOperation.Result.FAILED);
-            final StringWriter stackTraceWriter = new StringWriter();
-            e.printStackTrace(new PrintWriter(stackTraceWriter));
-            op.setMemo(new HashMap<String, Object>() {
-                {
-                    put("exceptionClass", e.getClass().getSimpleName());
-                    put("exceptionMessage", e.getMessage());
-                    put("stackTrace", stackTraceWriter.toString());
-                }
-            });
+            op.setMemo(StripeMemos.error(e, execution, tenantConfiguration.isDebug()));
 
             return new GatewayResponse(false, op);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new GatewayException(e);
         } catch (Exception e) {
+            execution.unavailable();
             throw new GatewayException(e);
         }
     }
 
+    /**
+     * @return the saved card to charge instead of sending the card, or null when customers are not reused, the order
+     *         has no customer, or the customer pays with another card than the saved one
+     */
+    private StripeSavedCard getSavedCard(Order order, Map<String, Object> cardMap, String idempotencyKey,
+            StripeRetryPolicy.Execution execution) throws StripeException, InterruptedException {
+        if (savedCards == null || order.getCustomer() == null) {
+            return null;
+        }
+        UUID customerId = order.getCustomer().getId();
+        String cardKey = getCardKey(cardMap);
+        StripeSavedCard savedCard = savedCards.getIfPresent(customerId);
+        if (savedCard == null) {
+            // The customer may have been saved before a restart, or before being evicted
+            savedCard = findSavedCard(order, execution);
+            if (savedCard == null) {
+                savedCard = createCustomer(order, cardMap, cardKey, idempotencyKey, execution);
+            }
+            savedCards.put(customerId, savedCard);
+        }
+        // Another card is charged as it is, the saved card stays the one the customer usually pays with
+        return savedCard.isFor(cardKey) ? savedCard : null;
+    }
+
+    /**
+     * Looks the Stripe customer created for a customer of the shop up, among those with its email.
+     *
+     * @return the card saved on the Stripe customer, or null if there is none
+     */
+    private StripeSavedCard findSavedCard(Order order, StripeRetryPolicy.Execution execution)
+            throws StripeException, InterruptedException {
+        String email = order.getCustomer().getEmail();
+        if (Strings.isNullOrEmpty(email)) {
+            return null;
+        }
+        final Map<String, Object> params = new HashMap<>();
+        params.put("email", email);
+        params.put("limit", CUSTOMER_LOOKUP_LIMIT);
+        final RequestOptions requestOptions = requestOptions();
+        CustomerCollection customers = call(new StripeCall<CustomerCollection>()
+        {
+            @Override
+            public CustomerCollection call() throws StripeException {
+                return Customer.all(params, requestOptions);
+            }
+        }, execution);
+
+        String customerId = order.getCustomer().getId().toString();
+        for (Customer customer : customers.getData()) {
+            Map<String, String> metadata = customer.getMetadata();
+            if (metadata != null && customerId.equals(metadata.get(CUSTOMER_ID_METADATA))
+                    && metadata.get(CARD_KEY_METADATA) != null && customer.getDefaultCard() != null) {
+                return new StripeSavedCard(customer.getId(), customer.getDefaultCard(),
+                        metadata.get(CARD_KEY_METADATA));
+            }
+        }
+        return null;
+    }
+
+    private StripeSavedCard createCustomer(Order order, Map<String, Object> cardMap, String cardKey,
+            String idempotencyKey, StripeRetryPolicy.Execution execution) throws StripeException, InterruptedException {
+        final Map<String, Object> customerMap = new HashMap<>();
+        customerMap.put("card", cardMap);
+        customerMap.put("email", order.getCustomer().getEmail());
+        // Lets the customer be found back, and its saved card be told from its other cards
+        customerMap.put("metadata", ImmutableMap.of(CUSTOMER_ID_METADATA, order.getCustomer().getId().toString(),
+                CARD_KEY_METADATA, cardKey));
+        // Keyed by the purchase, so that its retries create a single Stripe customer
+        final RequestOptions requestOptions = requestOptions(idempotencyKey + "-customer");
+        Customer customer = call(new StripeCall<Customer>()
+        {
+            @Override
+            public Customer call() throws StripeException {
+                return Customer.create(customerMap, requestOptions);
+            }
+        }, execution);
+        return new StripeSavedCard(customer.getId(), customer.getDefaultCard(), cardKey);
+    }
+
+    private Charge chargeSavedCard(Map<String, Object> chargeMap, StripeSavedCard savedCard, String idempotencyKey,
+            StripeRetryPolicy.Execution execution) throws StripeException, InterruptedException {
+        Map<String, Object> savedCardChargeMap = new HashMap<>(chargeMap);
+        savedCardChargeMap.put("customer", savedCard.getCustomerId());
+        savedCardChargeMap.put("card", savedCard.getCardId());
+        // Another key than the one of charging the card, since Stripe refuses to reuse a key with other parameters
+        return createCharge(savedCardChargeMap, requestOptions(idempotencyKey + "-" + savedCard.getCustomerId()),
+                execution);
+    }
+
+    private RequestOptions requestOptions() {
+        return (new RequestOptions.RequestOptionsBuilder()).setApiKey(this.tenantConfiguration.getApiKey()).build();
+    }
+
+    private RequestOptions requestOptions(String idempotencyKey) {
+        return (new RequestOptions.RequestOptionsBuilder())
+                .setApiKey(this.tenantConfiguration.getApiKey())
+                .setIdempotencyKey(idempotencyKey).build();
+    }
+
+    /**
+     * Creates a charge, retrying as allowed by the retry policy.
+     */
+    private Charge createCharge(final Map<String, Object> chargeMap, final RequestOptions requestOptions,
+            StripeRetryPolicy.Execution execution) throws StripeException, InterruptedException {
+        return call(new StripeCall<Charge>()
+        {
+            @Override
+            public Charge call() throws StripeException {
+                return Charge.create(chargeMap, requestOptions);
+            }
+        }, execution);
+    }
+
+    /**
+     * Calls Stripe, retrying on connection errors and rate limiting as allowed by the retry policy.
+     */
+    private <T> T call(StripeCall<T> call, StripeRetryPolicy.Execution execution)
+            throws StripeException, InterruptedException {
+        while (true) {
+            try {
+                long start = System.nanoTime();
+                try {
+                    return call.call();
+                } finally {
+                    // Before backing off, which counts the delay itself
+                    execution.addRemoteTime(System.nanoTime() - start);
+                }
+            } catch (APIConnectionException e) {
+                if (!execution.backOff()) {
+                    throw e;
+                }
+                this.logger.warn("Failed to connect to Stripe, retrying ({})", e.getMessage());
+            } catch (CardException e) {
+                if (!RATE_LIMIT.equals(e.getCode())) {
+                    throw e;
+                }
+                execution.rateLimited();
+                if (!execution.backOff()) {
+                    throw e;
+                }
+                this.logger.warn("Rate limited by Stripe, retrying");
+            }
+        }
+    }
+
+    /**
+     * Identifies a card without holding its number : an HMAC of the number and the expiration date, keyed with the
+     * card key secret of the tenant so that it cannot be reversed by trying all card numbers.
+     */
+    private String getCardKey(Map<String, Object> cardMap) {
+        String card = cardMap.get("number") + ":" + cardMap.get("exp_month") + ":" + cardMap.get("exp_year");
+        try {
+            Mac mac = Mac.getInstance(CARD_KEY_ALGORITHM);
+            mac.init(cardKeySecret);
+            return BaseEncoding.base16().lowerCase().encode(mac.doFinal(card.getBytes(Charsets.UTF_8)));
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new RuntimeException("Failed to compute card key", e);
+        }
+    }
+
+    /**
+     * @return a new idempotency key for a purchase of an order : it is only reused by the retries of the purchase, so
+     *         that paying the order again, after a decline or with corrected card details, makes a new charge
+     */
+    private String getIdempotencyKey(Order order) {
+        return order.getId() + "-" + UUID.randomUUID();
+    }
+
+    /**
+     * Charges a batch of entries, for subscription renewals or invoice runs.
+     *
+     * Charges run concurrently on the default gateway executor, as many at a time as the adaptive limit of this
+     * gateway allows : it grows while Stripe accepts the charges and is halved when Stripe rate limits them. Batches
+     * of a tenant run at the same time share the limit. Each charge also goes through the outbound rate limit of the
+     * tenant and the bulkhead of the gateway, like a single purchase, so that a batch cannot starve the other tenants :
+     * an entry they refuse fails without calling Stripe, with a {@link RateLimitExceededException} telling when it
+     * may be retried if the rate limit refused it. The outcome of each entry is passed to the listener as soon as its
+     * charge completes, and a failed entry does not stop the others.
+     *
+     * @param entries the charges to perform
+     * @param listener receives the outcome of each entry
+     * @throws InterruptedException if interrupted while waiting, in which case entries not started yet are not
+     *         charged and not reported
+     */
+    public void purchaseBatch(List<StripeBatchEntry> entries, StripeBatchListener listener)
+            throws InterruptedException {
+        purchaseBatch(entries, listener, GatewayExecutors.getDefault());
+    }
+
+    /**
+     * Charges a batch of entries on the given executor.
+     *
+     * @see #purchaseBatch(List, StripeBatchListener)
+     */
+    public void purchaseBatch(List<StripeBatchEntry> entries, final StripeBatchListener listener,
+            Executor executor) throws InterruptedException {
+        final CountDownLatch completed = new CountDownLatch(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            final int index = i;
+            final StripeBatchEntry entry = entries.get(i);
+            final long permit = batchLimit.acquire();
+            Runnable charge = new Runnable()
+            {
+                @Override
+                public void run() {
+                    // Started once the charge runs, so that waiting in the executor queue does not use up its budget
+                    StripeRetryPolicy.Execution execution = retryPolicy.start();
+                    try {
+                        limiter.acquire();
+                        try {
+                            if (!bulkhead.tryEnter()) {
+                                metrics.recordBulkheadFull();
+                                listener.onFailure(index, new GatewayException("Stripe gateway bulkhead full"));
+                                return;
+                            }
+                            try {
+                                listener.onResponse(index, purchase(entry.getAmount(), entry.getOptions(), execution));
+                            } finally {
+                                bulkhead.exit();
+                            }
+                        } finally {
+                            limiter.release();
+                        }
+                    } catch (RateLimitExceededException e) {
+                        metrics.recordRateLimited();
+                        listener.onFailure(index, e);
+                    } catch (GatewayException e) {
+                        listener.onFailure(index, e);
+                    } catch (RuntimeException e) {
+                        listener.onFailure(index, new GatewayException(e));
+                    } finally {
+                        batchLimit.release(permit, execution.isRateLimited());
+                        completed.countDown();
+                    }
+                }
+            };
+            try {
+                executor.execute(charge);
+            } catch (RejectedExecutionException e) {
+                batchLimit.release(permit, false);
+                completed.countDown();
+                listener.onFailure(index, new GatewayException(e));
+            }
+        }
+        completed.await();
+    }
+
+    /**
+     * @return the number of charges batches currently run concurrently
+     */
+    public int getBatchConcurrency() {
+        return batchLimit.getLimit();
+    }
+
+    /**
+     * @param from the start of the range, inclusive, in seconds since the epoch
+     * @param to the end of the range, exclusive, in seconds since the epoch
+     * @return the settlement records of the charges of the tenant created in the range, to reconcile them
+     */
+    public SettlementSource settlements(long from, long to) {
+        return new StripeSettlementSource(tenantConfiguration.getApiKey(), from, to);
+    }
+
+    @Override
+    public ListenableFuture<GatewayResponse> purchaseAsync(BigDecimal amount, Map<PaymentData, Object> options) {
+        return GatewayExecutors.purchase(GatewayExecutors.getDefault(), this, amount, options);
+    }
+
+    @Override
+    public ListenableFuture<GatewayResponse> acknowledgeAsync(UUID orderId, Map<String, List<String>> data) {
+        return GatewayExecutors.acknowledge(GatewayExecutors.getDefault(), this, orderId, data);
+    }
+
+    /**
+     * Forgets the saved cards of the tenant and stops reporting the state of its circuit breaker, once the gateway is
+     * replaced or evicted from the cache of its factory.
+     */
+    @Override
+    public void close() {
+        if (savedCards != null) {
+            savedCards.invalidateAll();
+        }
+        metrics.unwatch(circuitBreaker);
+    }
+
     private CreditCardError getCode(String code) {
         switch (code) {
             case "invalid_number":
@@ -141,7 +649,7 @@ public class StripePaymentGateway implements CreditCardPaymentGateway
             case "incorrect_zip":
             case "missing":
             case "processing_error":
-            case "rate_limit":
+            case RATE_LIMIT:
             default:
                 return CreditCardError.OTHER;
         }
@@ -149,16 +657,153 @@ public class StripePaymentGateway implements CreditCardPaymentGateway
 
     @Override
     public GatewayResponse acknowledge(UUID orderId, Map<String, List<String>> data) throws GatewayException {
-        throw new RuntimeException("Not supported");
+        return callback(data);
     }
 
     @Override
     public GatewayResponse acknowledge(Map<String, List<String>> data) throws GatewayException {
-        throw new RuntimeException("Not supported");
+        return callback(data);
     }
 
+    /**
+     * Handles a Stripe webhook event, passed as its raw body under {@link #WEBHOOK_PAYLOAD} and its signature header
+     * under {@link #WEBHOOK_SIGNATURE}.
+     *
+     * @return the response to the event, without an operation when there is nothing to record
+     * @see #webhook(byte[], String)
+     */
     @Override
     public GatewayResponse callback(Map<String, List<String>> data) throws GatewayException {
-        throw new RuntimeException("Not supported");
+        String payload = getFirst(data, WEBHOOK_PAYLOAD);
+        if (payload == null) {
+            throw new GatewayException("Missing webhook payload");
+        }
+        return webhook(payload.getBytes(Charsets.UTF_8), getFirst(data, WEBHOOK_SIGNATURE));
+    }
+
+    /**
+     * Handles a Stripe webhook event.
+     *
+     * Charge events are mapped to a payment operation : succeeded and captured charges to
+     * {@link PaymentOperation.Result#CAPTURED}, failed and fully refunded charges to
+     * {@link PaymentOperation.Result#FAILED}. Disputes are only mapped once settled : to
+     * {@link PaymentOperation.Result#FAILED} when lost, to {@link PaymentOperation.Result#CAPTURED} when won or when
+     * their funds are reinstated. Partial refunds, open disputes and other events are acknowledged with an
+     * {@link #isIgnored(GatewayResponse) ignored} response : successful, so that Stripe does not send the event
+     * again, but without an operation, so there is nothing to persist.
+     *
+     * @param payload the raw event body, exactly as received
+     * @param signature the value of the "Stripe-Signature" header
+     * @return the response to the event, with a null operation when the event is ignored
+     */
+    public GatewayResponse webhook(byte[] payload, String signature) throws GatewayException {
+        long start = System.nanoTime();
+        try {
+            GatewayResponse response = handleWebhook(payload, signature);
+            metrics.record(GatewayMetrics.Operation.CALLBACK, start, 0, response);
+            return response;
+        } catch (GatewayException | RuntimeException e) {
+            metrics.recordFailure(GatewayMetrics.Operation.CALLBACK, start, 0);
+            throw e;
+        }
+    }
+
+    private GatewayResponse handleWebhook(byte[] payload, String signature) throws GatewayException {
+        if (webhookVerifier == null) {
+            throw new GatewayException("Stripe webhooks are not configured");
+        }
+        if (!webhookVerifier.verify(payload, signature)) {
+            throw new GatewayException("Invalid webhook signature");
+        }
+
+        StripeWebhookEvent event;
+        try {
+            event = StripeWebhookEvent.parse(payload);
+        } catch (IOException e) {
+            throw new GatewayException(e);
+        }
+
+        PaymentOperation.Result result = getResult(event);
+        if (result == null) {
+            this.logger.debug("Ignoring Stripe event {} of type {}", event.getId(), event.getType());
+            GatewayResponse response = new GatewayResponse(true, null);
+            response.setData(ImmutableMap.<String, Object>of(IGNORED_EVENT, Strings.nullToEmpty(event.getType())));
+            return response;
+        }
+
+        PaymentOperation op = new PaymentOperation();
+        op.setGatewayId("stripe");
+        op.setExternalId(event.getChargeId());
+        op.setResult(result);
+        op.setMemo(StripeMemos.event(event));
+        return new GatewayResponse(result == PaymentOperation.Result.CAPTURED, op);
+    }
+
+    /**
+     * @param response a response given to a webhook event
+     * @return whether the event was acknowledged with nothing to record, in which case the response has no operation
+     */
+    public static boolean isIgnored(GatewayResponse response) {
+        return response.getOperation() == null && response.getData() != null
+                && response.getData().containsKey(IGNORED_EVENT);
+    }
+
+    /**
+     * A call to the Stripe API.
+     */
+    private interface StripeCall<T>
+    {
+        T call() throws StripeException;
+    }
+
+    private PaymentOperation.Result getResult(StripeWebhookEvent event) {
+        String type = event.getType();
+        if (type == null) {
+            return null;
+        }
+        switch (type) {
+            case "charge.succeeded":
+            case "charge.captured":
+                return PaymentOperation.Result.CAPTURED;
+            case "charge.failed":
+                return PaymentOperation.Result.FAILED;
+            case "charge.refunded":
+                // Also sent for partial refunds, which leave the order paid
+                return isFullyRefunded(event) ? PaymentOperation.Result.FAILED : null;
+            case "charge.dispute.closed":
+                return getDisputeResult(event.getStatus());
+            case "charge.dispute.funds_reinstated":
+                return PaymentOperation.Result.CAPTURED;
+            default:
+                // Including disputes that are still open : created, updated, funds_withdrawn
+                return null;
+        }
+    }
+
+    private static boolean isFullyRefunded(StripeWebhookEvent event) {
+        Long amount = event.getAmount();
+        Long amountRefunded = event.getAmountRefunded();
+        return amount != null && amountRefunded != null && amountRefunded >= amount;
+    }
+
+    private static PaymentOperation.Result getDisputeResult(String status) {
+        if (status == null) {
+            return null;
+        }
+        switch (status) {
+            case "won":
+            case "warning_closed":
+                return PaymentOperation.Result.CAPTURED;
+            case "lost":
+            case "charge_refunded":
+                return PaymentOperation.Result.FAILED;
+            default:
+                return null;
+        }
+    }
+
+    private static String getFirst(Map<String, List<String>> data, String key) {
+        List<String> values = data.get(key);
+        return values == null || values.isEmpty() ? null : values.get(0);
     }
 }
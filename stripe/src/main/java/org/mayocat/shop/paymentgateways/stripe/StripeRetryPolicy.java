@@ -0,0 +1,137 @@
+package org.mayocat.shop.paymentgateways.stripe;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides whether, and after how long, a Stripe call that failed transiently (connection error, rate limiting) is
+ * retried.
+ *
+ * Delays grow exponentially with "full jitter" (a random delay between zero and the exponential bound), so that
+ * checkouts failing together during a Stripe brownout do not retry together. Retries stop after a maximum count, or
+ * when the next delay would exceed the total time budget of the call.
+ *
+ * @version $Id$
+ */
+public class StripeRetryPolicy
+{
+    private static final long BASE_DELAY = 100;
+
+    private static final long MAX_DELAY = 2000;
+
+    private final int maxRetries;
+
+    private final long budget;
+
+    /**
+     * @param maxRetries the maximum number of retries of a call
+     * @param budget the total time, in milliseconds, a call may spend waiting between retries
+     */
+    public StripeRetryPolicy(int maxRetries, long budget) {
+        this.maxRetries = maxRetries;
+        this.budget = budget;
+    }
+
+    /**
+     * @return the retry state of a new call
+     */
+    public Execution start() {
+        return new Execution();
+    }
+
+    /**
+     * Retry state of one call.
+     */
+    public class Execution
+    {
+        private final long deadline = System.currentTimeMillis() + budget;
+
+        private int retries;
+
+        private long waited;
+
+        private long remoteTime;
+
+        private boolean rateLimited;
+
+        private boolean unavailable;
+
+        /**
+         * Waits before the next retry, if one is allowed.
+         *
+         * @return true if the call should be retried, false if retries are exhausted
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public boolean backOff() throws InterruptedException {
+            if (retries >= maxRetries) {
+                return false;
+            }
+            long bound = Math.min(MAX_DELAY, BASE_DELAY << retries);
+            long delay = ThreadLocalRandom.current().nextLong(bound + 1);
+            if (System.currentTimeMillis() + delay > deadline) {
+                return false;
+            }
+            Thread.sleep(delay);
+            retries++;
+            waited += delay;
+            remoteTime += TimeUnit.MILLISECONDS.toNanos(delay);
+            return true;
+        }
+
+        /**
+         * @return the number of retries performed so far
+         */
+        public int getRetries() {
+            return retries;
+        }
+
+        /**
+         * @return the time, in milliseconds, spent waiting between retries so far
+         */
+        public long getWaited() {
+            return waited;
+        }
+
+        /**
+         * @param nanos time spent in a call to Stripe
+         */
+        public void addRemoteTime(long nanos) {
+            remoteTime += nanos;
+        }
+
+        /**
+         * Records that Stripe rate limited the call.
+         */
+        public void rateLimited() {
+            rateLimited = true;
+        }
+
+        /**
+         * @return whether Stripe rate limited the call at least once
+         */
+        public boolean isRateLimited() {
+            return rateLimited;
+        }
+
+        /**
+         * Records that the call failed because Stripe could not be reached or failed to process it.
+         */
+        public void unavailable() {
+            unavailable = true;
+        }
+
+        /**
+         * @return whether the call failed because of Stripe, rather than because of the request
+         */
+        public boolean isUnavailable() {
+            return unavailable;
+        }
+
+        /**
+         * @return the time, in nanoseconds, spent in calls to Stripe and waiting to retry them so far
+         */
+        public long getRemoteTime() {
+            return remoteTime;
+        }
+    }
+}
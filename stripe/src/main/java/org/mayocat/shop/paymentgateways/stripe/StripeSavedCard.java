@@ -0,0 +1,41 @@
+package org.mayocat.shop.paymentgateways.stripe;
+
+/**
+ * The Stripe customer created for a customer of the shop, and the card saved on it.
+ *
+ * @version $Id$
+ */
+class StripeSavedCard
+{
+    private final String customerId;
+
+    private final String cardId;
+
+    private final String cardKey;
+
+    /**
+     * @param customerId the ID of the Stripe customer
+     * @param cardId the ID of the card saved on the Stripe customer
+     * @param cardKey identifies the card among those the customer of the shop pays with, without holding its number
+     */
+    StripeSavedCard(String customerId, String cardId, String cardKey) {
+        this.customerId = customerId;
+        this.cardId = cardId;
+        this.cardKey = cardKey;
+    }
+
+    String getCustomerId() {
+        return customerId;
+    }
+
+    String getCardId() {
+        return cardId;
+    }
+
+    /**
+     * @return whether the saved card is the card the customer pays with
+     */
+    boolean isFor(String cardKey) {
+        return this.cardKey.equals(cardKey);
+    }
+}
@@ -0,0 +1,93 @@
+package org.mayocat.shop.paymentgateways.stripe;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.Charge;
+import com.stripe.model.ChargeCollection;
+import com.stripe.net.RequestOptions;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import org.mayocat.shop.paymentgateways.common.SettlementRecord;
+import org.mayocat.shop.paymentgateways.common.SettlementSource;
+
+/**
+ * Settlement records of the charges of a Stripe account created in a time range, listed a page at a time.
+ *
+ * Charges are captured when paid and not fully refunded, for their amount minus what was refunded.
+ *
+ * @version $Id$
+ */
+public class StripeSettlementSource implements SettlementSource
+{
+    private static final int PAGE_SIZE = 100;
+
+    private final RequestOptions requestOptions;
+
+    private final long from;
+
+    private final long to;
+
+    private Iterator<Charge> page;
+
+    private String lastId;
+
+    private boolean hasMore = true;
+
+    /**
+     * @param apiKey the API key of the account
+     * @param from the start of the range, inclusive, in seconds since the epoch
+     * @param to the end of the range, exclusive, in seconds since the epoch
+     */
+    public StripeSettlementSource(String apiKey, long from, long to) {
+        StripeApiBase.init();
+        this.requestOptions = (new RequestOptions.RequestOptionsBuilder()).setApiKey(apiKey).build();
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public SettlementRecord next() throws IOException {
+        while (page == null || !page.hasNext()) {
+            if (!hasMore) {
+                return null;
+            }
+            page = nextPage();
+        }
+
+        Charge charge = page.next();
+        lastId = charge.getId();
+        long amount = charge.getAmount() == null ? 0 : charge.getAmount();
+        long refunded = charge.getAmountRefunded() == null ? 0 : charge.getAmountRefunded();
+        boolean captured = Boolean.TRUE.equals(charge.getPaid()) && !Boolean.TRUE.equals(charge.getRefunded());
+        String currency = charge.getCurrency() == null ? null : charge.getCurrency().toUpperCase(Locale.ROOT);
+        return new SettlementRecord(charge.getId(), amount - refunded, currency, captured);
+    }
+
+    private Iterator<Charge> nextPage() throws IOException {
+        Map<String, Object> created = new HashMap<>();
+        created.put("gte", from);
+        created.put("lt", to);
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("limit", PAGE_SIZE);
+        parameters.put("created", created);
+        if (lastId != null) {
+            parameters.put("starting_after", lastId);
+        }
+
+        try {
+            ChargeCollection charges = Charge.all(parameters, requestOptions);
+            List<Charge> data = charges.getData();
+            hasMore = Boolean.TRUE.equals(charges.getHasMore()) && !data.isEmpty();
+            return data.iterator();
+        } catch (StripeException e) {
+            throw new IOException("Failed to list Stripe charges after " + lastId, e);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
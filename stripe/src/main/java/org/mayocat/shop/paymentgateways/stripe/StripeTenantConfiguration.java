@@ -7,7 +7,129 @@ public class StripeTenantConfiguration
 {
     private String apiKey;
 
+    /**
+     * Maximum number of automatic retries of a charge, on connection errors and rate limiting.
+     */
+    private int maxRetries = 3;
+
+    /**
+     * Total time, in milliseconds, a charge may spend waiting between retries.
+     */
+    private long retryBudget = 5000;
+
+    /**
+     * Whether to keep the raw charge and full stack traces in payment operation memos.
+     */
+    private boolean debug = false;
+
+    /**
+     * Signing secret of the webhook endpoint, as shown in the Stripe dashboard. Webhooks are refused when not set.
+     */
+    private String webhookSecret;
+
+    /**
+     * Number of concurrent charges batches start with. It then adapts to the rate limiting of Stripe.
+     */
+    private int batchConcurrency = 4;
+
+    /**
+     * Maximum number of concurrent charges of batches.
+     */
+    private int maxBatchConcurrency = 32;
+
+    /**
+     * Number of purchases per second the tenant may make, zero for no limit. Purchases beyond it are refused without
+     * calling Stripe.
+     */
+    private double rateLimit = 0;
+
+    /**
+     * Number of purchases the tenant may make at once, above its rate limit, after being idle.
+     */
+    private int rateLimitBurst = 20;
+
+    /**
+     * Number of consecutive purchases failing to reach Stripe after which purchases fail at once, without calling
+     * Stripe.
+     */
+    private int circuitFailureThreshold = 5;
+
+    /**
+     * Time, in milliseconds, purchases fail at once before a probe purchase is let through to Stripe.
+     */
+    private long circuitOpenDuration = 30000;
+
+    /**
+     * Whether to create a Stripe customer holding the card of a customer on its first purchase, and to charge that
+     * saved card on the next purchases made with the same card, instead of sending the card again. Requires
+     * {@link #cardKeySecret}.
+     */
+    private boolean reuseCustomers = false;
+
+    /**
+     * Secret keying the hashes that tell the saved card of a customer from its other cards. Changing it makes the next
+     * purchase of each customer save its card on a new Stripe customer.
+     */
+    private String cardKeySecret;
+
+    /**
+     * Maximum number of customers whose Stripe customer and saved card are remembered.
+     */
+    private int customerCacheSize = 10000;
+
     public String getApiKey() {
         return apiKey;
     }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getRetryBudget() {
+        return retryBudget;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    public String getWebhookSecret() {
+        return webhookSecret;
+    }
+
+    public int getBatchConcurrency() {
+        return batchConcurrency;
+    }
+
+    public int getMaxBatchConcurrency() {
+        return maxBatchConcurrency;
+    }
+
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    public int getRateLimitBurst() {
+        return rateLimitBurst;
+    }
+
+    public int getCircuitFailureThreshold() {
+        return circuitFailureThreshold;
+    }
+
+    public long getCircuitOpenDuration() {
+        return circuitOpenDuration;
+    }
+
+    public boolean isReuseCustomers() {
+        return reuseCustomers;
+    }
+
+    public String getCardKeySecret() {
+        return cardKeySecret;
+    }
+
+    public int getCustomerCacheSize() {
+        return customerCacheSize;
+    }
 }
@@ -0,0 +1,163 @@
+package org.mayocat.shop.paymentgateways.stripe;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+
+/**
+ * The few fields of a Stripe webhook event the gateway needs, read with Jackson's streaming parser instead of binding
+ * the whole event : everything else in the payload is skipped without being materialized.
+ *
+ * @version $Id$
+ */
+class StripeWebhookEvent
+{
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private String id;
+
+    private String type;
+
+    private String objectType;
+
+    private String objectId;
+
+    private String chargeId;
+
+    private String status;
+
+    private Long amount;
+
+    private Long amountRefunded;
+
+    private String currency;
+
+    private String failureCode;
+
+    static StripeWebhookEvent parse(byte[] payload) throws IOException {
+        StripeWebhookEvent event = new StripeWebhookEvent();
+        try (JsonParser parser = JSON_FACTORY.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Stripe event payload is not a JSON object");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                parser.nextToken();
+                switch (field) {
+                    case "id":
+                        event.id = text(parser);
+                        break;
+                    case "type":
+                        event.type = text(parser);
+                        break;
+                    case "data":
+                        event.parseData(parser);
+                        break;
+                    default:
+                        parser.skipChildren();
+                }
+            }
+        }
+        return event;
+    }
+
+    private void parseData(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return;
+        }
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("object".equals(field) && parser.getCurrentToken() == JsonToken.START_OBJECT) {
+                parseObject(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void parseObject(JsonParser parser) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            switch (field) {
+                case "id":
+                    objectId = text(parser);
+                    break;
+                case "object":
+                    objectType = text(parser);
+                    break;
+                case "charge":
+                    // Disputes and refunds reference their charge
+                    chargeId = text(parser);
+                    break;
+                case "status":
+                    status = text(parser);
+                    break;
+                case "amount":
+                    amount = number(parser);
+                    break;
+                case "amount_refunded":
+                    amountRefunded = number(parser);
+                    break;
+                case "currency":
+                    currency = text(parser);
+                    break;
+                case "failure_code":
+                    failureCode = text(parser);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        if ("charge".equals(objectType)) {
+            chargeId = objectId;
+        }
+    }
+
+    private static String text(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    private static Long number(JsonParser parser) throws IOException {
+        return parser.getCurrentToken() == JsonToken.VALUE_NUMBER_INT ? parser.getLongValue() : null;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    String getChargeId() {
+        return chargeId;
+    }
+
+    String getStatus() {
+        return status;
+    }
+
+    Long getAmount() {
+        return amount;
+    }
+
+    Long getAmountRefunded() {
+        return amountRefunded;
+    }
+
+    String getCurrency() {
+        return currency;
+    }
+
+    String getFailureCode() {
+        return failureCode;
+    }
+}
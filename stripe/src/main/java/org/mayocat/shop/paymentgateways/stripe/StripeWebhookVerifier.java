@@ -0,0 +1,113 @@
+package org.mayocat.shop.paymentgateways.stripe;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Verifies the "Stripe-Signature" header of webhook events : an HMAC-SHA256, keyed with the endpoint signing secret,
+ * of the event timestamp and raw body.
+ *
+ * @version $Id$
+ */
+class StripeWebhookVerifier
+{
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    private static final String TIMESTAMP = "t";
+
+    private static final String SIGNATURE = "v1";
+
+    /**
+     * How old an event can be, to limit replays of intercepted events.
+     */
+    private static final long TOLERANCE = TimeUnit.MINUTES.toSeconds(5);
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(Charsets.US_ASCII);
+
+    private static final Splitter HEADER_SPLITTER = Splitter.on(',').trimResults();
+
+    private final SecretKeySpec secretKey;
+
+    StripeWebhookVerifier(String signingSecret) {
+        this.secretKey = new SecretKeySpec(signingSecret.getBytes(Charsets.UTF_8), HMAC_ALGORITHM);
+    }
+
+    /**
+     * @param payload the raw event body
+     * @param header the value of the "Stripe-Signature" header
+     * @return true if one of the header signatures matches the payload, and the event is recent enough
+     */
+    boolean verify(byte[] payload, String header) {
+        return verify(payload, header, TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()));
+    }
+
+    /**
+     * @param payload the raw event body
+     * @param header the value of the "Stripe-Signature" header
+     * @param now the current time, in seconds since the epoch
+     * @return true if one of the header signatures matches the payload, and the event is recent enough
+     */
+    boolean verify(byte[] payload, String header, long now) {
+        if (header == null) {
+            return false;
+        }
+
+        String timestamp = null;
+        for (String element : HEADER_SPLITTER.split(header)) {
+            if (element.startsWith(TIMESTAMP + "=")) {
+                timestamp = element.substring(TIMESTAMP.length() + 1);
+            }
+        }
+        if (timestamp == null || !isRecent(timestamp, now)) {
+            return false;
+        }
+
+        byte[] expected = sign(timestamp, payload);
+        for (String element : HEADER_SPLITTER.split(header)) {
+            if (element.startsWith(SIGNATURE + "=")) {
+                // Constant time comparison
+                byte[] signature = element.substring(SIGNATURE.length() + 1).getBytes(Charsets.US_ASCII);
+                if (MessageDigest.isEqual(expected, signature)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isRecent(String timestamp, long now) {
+        try {
+            long age = now - Long.parseLong(timestamp);
+            return Math.abs(age) <= TOLERANCE;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private byte[] sign(String timestamp, byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(secretKey);
+            mac.update(timestamp.getBytes(Charsets.US_ASCII));
+            mac.update((byte) '.');
+            return toHex(mac.doFinal(payload));
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new RuntimeException("Failed to compute webhook signature", e);
+        }
+    }
+
+    private static byte[] toHex(byte[] bytes) {
+        byte[] hex = new byte[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return hex;
+    }
+}
@@ -0,0 +1,71 @@
+package org.mayocat.shop.paymentgateways.stripe;
+
+import com.google.common.base.Charsets;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @version $Id$
+ */
+public class StripeWebhookVerifierTest
+{
+    private static final String SECRET = "whsec_test_secret";
+
+    private static final byte[] PAYLOAD = "{\"id\":\"evt_1\",\"type\":\"charge.succeeded\"}".getBytes(Charsets.UTF_8);
+
+    private static final long TIMESTAMP = 1492774577;
+
+    /**
+     * HMAC-SHA256 of "1492774577." and the payload, keyed with the secret.
+     */
+    private static final String SIGNATURE = "4ee5e8d695c9619e003fd480d3d51700d924e29697337d379a6ef6e06e703ab4";
+
+    private static final String HEADER = "t=" + TIMESTAMP + ",v1=" + SIGNATURE;
+
+    private final StripeWebhookVerifier verifier = new StripeWebhookVerifier(SECRET);
+
+    @Test
+    public void knownSignature() {
+        assertTrue(verifier.verify(PAYLOAD, HEADER, TIMESTAMP));
+    }
+
+    @Test
+    public void otherSecretOrPayload() {
+        assertFalse(new StripeWebhookVerifier("whsec_other").verify(PAYLOAD, HEADER, TIMESTAMP));
+        byte[] tampered = "{\"id\":\"evt_1\",\"type\":\"charge.refunded\"}".getBytes(Charsets.UTF_8);
+        assertFalse(verifier.verify(tampered, HEADER, TIMESTAMP));
+        assertFalse(verifier.verify(PAYLOAD, "t=" + (TIMESTAMP + 1) + ",v1=" + SIGNATURE, TIMESTAMP));
+    }
+
+    @Test
+    public void timestampTolerance() {
+        assertTrue(verifier.verify(PAYLOAD, HEADER, TIMESTAMP + 300));
+        assertTrue(verifier.verify(PAYLOAD, HEADER, TIMESTAMP - 300));
+        assertFalse(verifier.verify(PAYLOAD, HEADER, TIMESTAMP + 301));
+        assertFalse(verifier.verify(PAYLOAD, HEADER, TIMESTAMP - 301));
+    }
+
+    @Test
+    public void multipleSignatures() {
+        String otherSignature = SIGNATURE.replace('4', '5');
+        assertTrue(verifier.verify(PAYLOAD, "t=" + TIMESTAMP + ",v1=" + otherSignature + ",v1=" + SIGNATURE,
+                TIMESTAMP));
+        assertTrue(verifier.verify(PAYLOAD, "t=" + TIMESTAMP + ", v1=" + SIGNATURE + ", v1=" + otherSignature,
+                TIMESTAMP));
+        assertFalse(verifier.verify(PAYLOAD, "t=" + TIMESTAMP + ",v1=" + otherSignature + ",v1=" + otherSignature,
+                TIMESTAMP));
+        // Only v1 signatures are checked
+        assertFalse(verifier.verify(PAYLOAD, "t=" + TIMESTAMP + ",v0=" + SIGNATURE, TIMESTAMP));
+    }
+
+    @Test
+    public void malformedHeaders() {
+        assertFalse(verifier.verify(PAYLOAD, null, TIMESTAMP));
+        assertFalse(verifier.verify(PAYLOAD, "", TIMESTAMP));
+        assertFalse(verifier.verify(PAYLOAD, "v1=" + SIGNATURE, TIMESTAMP));
+        assertFalse(verifier.verify(PAYLOAD, "t=now,v1=" + SIGNATURE, TIMESTAMP));
+        assertFalse(verifier.verify(PAYLOAD, "t=" + TIMESTAMP, TIMESTAMP));
+    }
+}